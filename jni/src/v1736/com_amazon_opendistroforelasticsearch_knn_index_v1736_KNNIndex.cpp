@@ -23,6 +23,13 @@
 #include "methodfactory.h"
 #include "spacefactory.h"
 #include "space.h"
+#include "object.h"
+
+#include <cstdint>
+#include <cstring>
+#include <fstream>
+#include <memory>
+#include <sys/stat.h>
 
 using std::vector;
 
@@ -35,6 +42,8 @@ using similarity::AnyParams;
 using similarity::Space;
 using similarity::ObjectVector;
 using similarity::Object;
+using similarity::IdType;
+using similarity::LabelType;
 using similarity::KNNQuery;
 using similarity::KNNQueue;
 
@@ -55,6 +64,20 @@ inline void has_exception_in_stack(JNIEnv* env)
         throw std::runtime_error("Exception Occured");
 }
 
+/*
+ * Copies a java string, such as the name of the space of a graph
+ */
+static string getString(JNIEnv* env, jstring javaString)
+{
+    const char* rawString = env->GetStringUTFChars(javaString, NULL);
+    if (rawString == NULL) {
+        throw std::runtime_error("Unable to read string argument");
+    }
+    string copy(rawString);
+    env->ReleaseStringUTFChars(javaString, rawString);
+    return copy;
+}
+
 void catch_cpp_exception_and_throw_java(JNIEnv* env)
 {
     try {
@@ -74,7 +97,7 @@ void catch_cpp_exception_and_throw_java(JNIEnv* env)
     }
 }
 
-JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_saveIndex(JNIEnv* env, jclass cls, jintArray ids, jobjectArray vectors, jstring indexPath, jobjectArray algoParams)
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_saveIndex(JNIEnv* env, jclass cls, jintArray ids, jobjectArray vectors, jstring indexPath, jobjectArray algoParams, jstring spaceType)
 {
     Space<float>* space = NULL;
     ObjectVector dataset;
@@ -83,7 +106,8 @@ JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v173
 
     try {
         initLibrary();
-        space = SpaceFactoryRegistry<float>::Instance().CreateSpace("l2", AnyParams());
+        string spaceTypeString = getString(env, spaceType);
+        space = SpaceFactoryRegistry<float>::Instance().CreateSpace(spaceTypeString, AnyParams());
         object_ids = env->GetIntArrayElements(ids, 0);
         for (int i = 0; i < env->GetArrayLength(vectors); i++) {
             jfloatArray vectorArray = (jfloatArray)env->GetObjectArrayElement(vectors, i);
@@ -92,7 +116,7 @@ JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v173
             env->ReleaseFloatArrayElements(vectorArray, vector, 0);
         }
 
-        index = MethodFactoryRegistry<float>::Instance().CreateMethod(false, "hnsw", "l2", *space, dataset);
+        index = MethodFactoryRegistry<float>::Instance().CreateMethod(false, "hnsw", spaceTypeString, *space, dataset);
 
         int paramsCount = env->GetArrayLength(algoParams);
         vector<string> paramsList;
@@ -123,103 +147,327 @@ JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v173
     }
 }
 
-JNIEXPORT jobjectArray JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_queryIndex(JNIEnv* env, jobject indexObject, jfloatArray queryVector, jint k, jobjectArray algoParams)
+/*
+ * Holds the state of a graph that is built incrementally from batches of vectors. The vectors are
+ * copied into nmslib objects as they arrive, so the java side only needs to hold one batch at a time.
+ */
+struct IndexBuilder {
+    Space<float>* space;
+    string spaceType;
+    ObjectVector dataset;
+    vector<string> params;
+
+    IndexBuilder() : space(NULL) {}
+
+    ~IndexBuilder() {
+        for (size_t i = 0; i < dataset.size(); i++) {
+            delete dataset[i];
+        }
+        dataset.clear();
+        if (space) { delete space; }
+    }
+};
+
+JNIEXPORT jlong JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_initIndexBuilder(JNIEnv* env, jclass cls, jobjectArray algoParams, jstring spaceType)
 {
-    Space<float>* space = NULL;
-    KNNQueue<float>* result = NULL;
-    Object* queryObject = NULL;
+    IndexBuilder* builder = NULL;
 
     try {
-        jclass indexClass = env->GetObjectClass(indexObject);
-        jmethodID getIndex = env->GetMethodID(indexClass, "getIndex", "()J");
-        jlong indexValue = env->CallLongMethod(indexObject, getIndex);
-        Index<float>* index = reinterpret_cast<Index<float>*>(indexValue);
-        float* rawQueryvector = env->GetFloatArrayElements(queryVector, 0);
-        space = SpaceFactoryRegistry<float>::Instance().CreateSpace("l2", AnyParams());
-        queryObject = new Object(-1, -1, env->GetArrayLength(queryVector)*sizeof(float), rawQueryvector);
-        KNNQuery<float> query(*space, queryObject, k);
-        env->ReleaseFloatArrayElements(queryVector, rawQueryvector, 0);
-        has_exception_in_stack(env);
+        initLibrary();
+        builder = new IndexBuilder();
+        builder->spaceType = getString(env, spaceType);
+        builder->space = SpaceFactoryRegistry<float>::Instance().CreateSpace(builder->spaceType, AnyParams());
 
         int paramsCount = env->GetArrayLength(algoParams);
-        vector<string> paramsList;
         for (int i=0; i<paramsCount; i++) {
             jstring param = (jstring) (env->GetObjectArrayElement(algoParams, i));
             const char *rawString = env->GetStringUTFChars(param, 0);
-            paramsList.push_back(rawString);
+            builder->params.push_back(rawString);
             env->ReleaseStringUTFChars(param, rawString);
         }
-        index->SetQueryTimeParams(AnyParams(paramsList));
-        index->Search(&query);
-        result = query.Result()->Clone();
         has_exception_in_stack(env);
-        int resultSize = result->Size();
-        jclass resultClass = env->FindClass("com/amazon/opendistroforelasticsearch/knn/index/KNNQueryResult");
-        jmethodID allArgs = env->GetMethodID(resultClass, "<init>", "(IF)V");
-        jobjectArray results = env->NewObjectArray(resultSize, resultClass, NULL);
-        for (int i = 0; i < resultSize; i++) {
-            float distance = result->TopDistance();
-            long id = result->Pop()->id();
-            env->SetObjectArrayElement(results, i, env->NewObject(resultClass, allArgs, id, distance));
-        }
+        return (jlong) builder;
+    }
+    catch (...) {
+        if (builder) { delete builder; }
+        catch_cpp_exception_and_throw_java(env);
+    }
+    return 0;
+}
+
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_addToIndexBuilder(JNIEnv* env, jclass cls, jlong builderPointer, jintArray ids, jfloatArray vectors, jint count, jint dimension)
+{
+    int* object_ids = NULL;
+    float* data = NULL;
+
+    try {
+        IndexBuilder* builder = reinterpret_cast<IndexBuilder*>(builderPointer);
+        object_ids = env->GetIntArrayElements(ids, 0);
         has_exception_in_stack(env);
+        data = (float*) env->GetPrimitiveArrayCritical(vectors, 0);
+        if (data == NULL) {
+            throw std::runtime_error("Unable to access the vectors batch");
+        }
+        // nmslib objects copy the vector, so the batch can be reused by the caller
+        for (int i = 0; i < count; i++) {
+            builder->dataset.push_back(new Object(object_ids[i], -1, dimension*sizeof(float), data + ((size_t) i) * dimension));
+        }
+        env->ReleasePrimitiveArrayCritical(vectors, data, JNI_ABORT);
+        data = NULL;
+        env->ReleaseIntArrayElements(ids, object_ids, JNI_ABORT);
+    }
+    catch (...) {
+        if (data) { env->ReleasePrimitiveArrayCritical(vectors, data, JNI_ABORT); }
+        if (object_ids) { env->ReleaseIntArrayElements(ids, object_ids, JNI_ABORT); }
+        catch_cpp_exception_and_throw_java(env);
+    }
+}
 
-        //free up memory
-        delete space;
-        delete result;
-        delete queryObject;
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_saveIndexBuilder(JNIEnv* env, jclass cls, jlong builderPointer, jstring indexPath)
+{
+    Index<float>* index = NULL;
+    const char* rawIndexPath = NULL;
 
-        return results;
+    try {
+        IndexBuilder* builder = reinterpret_cast<IndexBuilder*>(builderPointer);
+        index = MethodFactoryRegistry<float>::Instance().CreateMethod(false, "hnsw", builder->spaceType, *(builder->space), builder->dataset);
+        index->CreateIndex(AnyParams(builder->params));
+        has_exception_in_stack(env);
+        rawIndexPath = env->GetStringUTFChars(indexPath, NULL);
+        index->SaveIndex(rawIndexPath);
+        env->ReleaseStringUTFChars(indexPath, rawIndexPath);
+        rawIndexPath = NULL;
+        has_exception_in_stack(env);
+        delete index;
     }
     catch (...) {
-        if (space) { delete space; }
-        if (result) { delete result; }
-        if (queryObject) { delete queryObject; }
+        if (rawIndexPath) { env->ReleaseStringUTFChars(indexPath, rawIndexPath); }
+        if (index) { delete index; }
         catch_cpp_exception_and_throw_java(env);
     }
-    return NULL;
 }
 
-JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_init(JNIEnv* env, jobject indexObject, jstring indexPath)
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_freeIndexBuilder(JNIEnv* env, jclass cls, jlong builderPointer)
 {
-    Space<float>* space = NULL;
+    try {
+        IndexBuilder* builder = reinterpret_cast<IndexBuilder*>(builderPointer);
+        delete builder;
+    }
+    catch (...) {
+        catch_cpp_exception_and_throw_java(env);
+    }
+}
+
+/*
+ * A loaded graph together with the space it was built in. The space is created once at load time
+ * and shared by all the queries on the graph.
+ */
+struct IndexWrapper {
+    Space<float>* space;
+    Index<float>* index;
+    jlong memoryBytes;
+
+    IndexWrapper() : space(NULL), index(NULL), memoryBytes(0) {}
+
+    ~IndexWrapper() {
+        if (index) { delete index; }
+        if (space) { delete space; }
+    }
+};
+
+/*
+ * Per thread scratch memory reused across queries, so that a query does not allocate on the native heap
+ * once the buffers have grown to the largest dimension and k seen by the thread.
+ */
+struct QueryContext {
+    vector<char> queryBuffer;
+    vector<jlong> filter;
+    vector<jint> ids;
+    vector<jfloat> distances;
+};
+
+static thread_local QueryContext queryContext;
+
+/*
+ * Only accepts results whose id is set in a bitset over the doc ids, so that docs excluded by a filter or
+ * deleted never take up any of the k slots of the result.
+ */
+class FilteredKNNQuery : public KNNQuery<float> {
+  public:
+    FilteredKNNQuery(const Space<float>& space, const Object* queryObject, unsigned k, const jlong* filter, size_t filterLength)
+        : KNNQuery<float>(space, queryObject, k), filter(filter), filterLength(filterLength) {}
+
+    bool CheckAndAddToResult(const float distance, const Object* object) override {
+        IdType id = object->id();
+        size_t word = ((size_t) id) >> 6;
+        if (id < 0 || word >= filterLength || (filter[word] & (((jlong) 1) << (id & 63))) == 0) {
+            return false;
+        }
+        return KNNQuery<float>::CheckAndAddToResult(distance, object);
+    }
+
+  private:
+    const jlong* filter;
+    size_t filterLength;
+};
+
+/*
+ * Native memory held by a graph loaded from the given file. nmslib does not report its allocations, so they are
+ * derived from how Hnsw::LoadOptimizedIndex lays out the graph it reads:
+ * - the level 0 data and links, and the upper level link lists, which are copied as is from the file
+ * - one link list pointer and one data object per element
+ * - one visited list, of one 16 bit tag per element. nmslib pools the visited lists and allocates one more for
+ *   each search running concurrently on the graph, so the pool can grow up to the number of search threads. Only
+ *   the first list is counted, which the graph needs for any search.
+ * The file starts with a uint32 flag telling whether the index is in the optimized format, followed by the
+ * number of elements as a size_t. Graphs in the regular format are weighed by their file size.
+ */
+static jlong estimateIndexMemory(const char* path)
+{
+    const jlong perElementBytes = sizeof(void*) + sizeof(void*) + sizeof(Object) + sizeof(uint16_t);
+
+    struct stat fileStat;
+    if (stat(path, &fileStat) != 0) {
+        return 0;
+    }
+    jlong fileSize = (jlong) fileStat.st_size;
+
+    std::ifstream input(path, std::ios::binary);
+    uint32_t optimizedIndexFlag = 0;
+    size_t totalElements = 0;
+    input.read(reinterpret_cast<char*>(&optimizedIndexFlag), sizeof(optimizedIndexFlag));
+    input.read(reinterpret_cast<char*>(&totalElements), sizeof(totalElements));
+    if (!input || !optimizedIndexFlag || totalElements > (size_t) fileSize) {
+        return fileSize;
+    }
+    return fileSize + (jlong) totalElements * perElementBytes;
+}
+
+JNIEXPORT jlong JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_initIndex(JNIEnv* env, jclass cls, jstring indexPath, jstring spaceType)
+{
+    IndexWrapper* indexWrapper = NULL;
     ObjectVector* dataset = NULL;
-    Index<float>* index = NULL;
+    const char* rawIndexPath = NULL;
 
     try {
         initLibrary();
-        space = SpaceFactoryRegistry<float>::Instance().CreateSpace("l2", AnyParams());
+        indexWrapper = new IndexWrapper();
+        string spaceTypeString = getString(env, spaceType);
+        indexWrapper->space = SpaceFactoryRegistry<float>::Instance().CreateSpace(spaceTypeString, AnyParams());
         dataset = new ObjectVector();
-        Index<float>* index = MethodFactoryRegistry<float>::Instance().CreateMethod(false, "hnsw", "l2", *space, *dataset);
-        index->LoadIndex(env->GetStringUTFChars(indexPath, NULL));
-        has_exception_in_stack(env);
-        jclass indexClass = env->GetObjectClass(indexObject);
-        jmethodID setIndex = env->GetMethodID(indexClass, "setIndex", "(J)V");
-        env->CallVoidMethod(indexObject, setIndex, (jlong)index);
+        indexWrapper->index = MethodFactoryRegistry<float>::Instance().CreateMethod(false, "hnsw", spaceTypeString, *(indexWrapper->space), *dataset);
+        rawIndexPath = env->GetStringUTFChars(indexPath, NULL);
+        indexWrapper->index->LoadIndex(rawIndexPath);
+        indexWrapper->memoryBytes = estimateIndexMemory(rawIndexPath);
+        env->ReleaseStringUTFChars(indexPath, rawIndexPath);
+        rawIndexPath = NULL;
         has_exception_in_stack(env);
 
         // free up memory
-        delete space;
         delete dataset;
+        return (jlong) indexWrapper;
     }
     catch (...) {
-        if (space) { delete space; }
+        if (rawIndexPath) { env->ReleaseStringUTFChars(indexPath, rawIndexPath); }
+        if (indexWrapper) { delete indexWrapper; }
         if (dataset) { delete dataset; }
         catch_cpp_exception_and_throw_java(env);
     }
+    return 0;
+}
+
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_setQueryParams(JNIEnv* env, jclass cls, jlong indexPointer, jobjectArray algoParams)
+{
+    try {
+        IndexWrapper* indexWrapper = reinterpret_cast<IndexWrapper*>(indexPointer);
+        int paramsCount = env->GetArrayLength(algoParams);
+        vector<string> paramsList;
+        for (int i=0; i<paramsCount; i++) {
+            jstring param = (jstring) (env->GetObjectArrayElement(algoParams, i));
+            const char *rawString = env->GetStringUTFChars(param, 0);
+            paramsList.push_back(rawString);
+            env->ReleaseStringUTFChars(param, rawString);
+        }
+        has_exception_in_stack(env);
+        indexWrapper->index->SetQueryTimeParams(AnyParams(paramsList));
+    }
+    catch (...) {
+        catch_cpp_exception_and_throw_java(env);
+    }
 }
 
-JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_gc(JNIEnv* env, jobject indexObject)
+JNIEXPORT jint JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_searchIndex(JNIEnv* env, jclass cls, jlong indexPointer, jfloatArray queryVector, jint k, jlongArray filter, jintArray ids, jfloatArray distances)
 {
     try {
-        jclass indexClass = env->GetObjectClass(indexObject);
-        jmethodID getIndex = env->GetMethodID(indexClass, "getIndex", "()J");
-        // index heap pointer
-        jlong indexValue = env->CallLongMethod(indexObject, getIndex);
-        Index<float>* index = reinterpret_cast<Index<float>*>(indexValue);
+        IndexWrapper* indexWrapper = reinterpret_cast<IndexWrapper*>(indexPointer);
+
+        // Lay out the query object in the reused thread local buffer instead of allocating a new one
+        int dimension = env->GetArrayLength(queryVector);
+        size_t dataLength = dimension * sizeof(float);
+        if (queryContext.queryBuffer.size() < DATA_OFFSET + dataLength) {
+            queryContext.queryBuffer.resize(DATA_OFFSET + dataLength);
+        }
+        char* buffer = queryContext.queryBuffer.data();
+        IdType queryId = -1;
+        LabelType queryLabel = -1;
+        memcpy(buffer + ID_OFFSET, &queryId, ID_SIZE);
+        memcpy(buffer + LABEL_OFFSET, &queryLabel, LABEL_SIZE);
+        memcpy(buffer + DATALENGTH_OFFSET, &dataLength, DATALENGTH_SIZE);
+        env->GetFloatArrayRegion(queryVector, 0, dimension, reinterpret_cast<jfloat*>(buffer + DATA_OFFSET));
         has_exception_in_stack(env);
-        delete index;
+        Object queryObject(buffer);
+
+        KNNQuery<float> unfilteredQuery(*(indexWrapper->space), &queryObject, k);
+        KNNQuery<float>* query = &unfilteredQuery;
+        std::unique_ptr<FilteredKNNQuery> filteredQuery;
+        if (filter != NULL) {
+            // Copied rather than pinned, so that the search does not hold off the garbage collector
+            size_t filterLength = env->GetArrayLength(filter);
+            if (queryContext.filter.size() < filterLength) {
+                queryContext.filter.resize(filterLength);
+            }
+            env->GetLongArrayRegion(filter, 0, filterLength, queryContext.filter.data());
+            has_exception_in_stack(env);
+            filteredQuery.reset(new FilteredKNNQuery(*(indexWrapper->space), &queryObject, k,
+                                                     queryContext.filter.data(), filterLength));
+            query = filteredQuery.get();
+        }
+        indexWrapper->index->Search(query);
+
+        // The query is discarded after this call, so its result queue can be drained without cloning it
+        KNNQueue<float>* result = const_cast<KNNQueue<float>*>(query->Result());
+        int resultSize = result->Size();
+        if (queryContext.ids.size() < (size_t) resultSize) {
+            queryContext.ids.resize(resultSize);
+            queryContext.distances.resize(resultSize);
+        }
+        for (int i = 0; i < resultSize; i++) {
+            queryContext.distances[i] = result->TopDistance();
+            queryContext.ids[i] = result->Pop()->id();
+        }
+        env->SetIntArrayRegion(ids, 0, resultSize, queryContext.ids.data());
+        env->SetFloatArrayRegion(distances, 0, resultSize, queryContext.distances.data());
         has_exception_in_stack(env);
+
+        return resultSize;
+    }
+    catch (...) {
+        catch_cpp_exception_and_throw_java(env);
+    }
+    return 0;
+}
+
+JNIEXPORT jlong JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_getIndexMemory(JNIEnv* env, jclass cls, jlong indexPointer)
+{
+    IndexWrapper* indexWrapper = reinterpret_cast<IndexWrapper*>(indexPointer);
+    return indexWrapper->memoryBytes;
+}
+
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_freeIndex(JNIEnv* env, jclass cls, jlong indexPointer)
+{
+    try {
+        IndexWrapper* indexWrapper = reinterpret_cast<IndexWrapper*>(indexPointer);
+        delete indexWrapper;
     }
     catch (...) {
         catch_cpp_exception_and_throw_java(env);
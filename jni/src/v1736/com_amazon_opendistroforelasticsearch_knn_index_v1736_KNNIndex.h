@@ -25,34 +25,82 @@ extern "C" {
 /*
  * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
  * Method:    saveIndex
- * Signature: ([I[[FLjava/lang/String;[Ljava/lang/String;)V
+ * Signature: ([I[[FLjava/lang/String;[Ljava/lang/String;Ljava/lang/String;)V
  */
 JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_saveIndex
-  (JNIEnv *, jclass, jintArray, jobjectArray, jstring, jobjectArray);
+  (JNIEnv *, jclass, jintArray, jobjectArray, jstring, jobjectArray, jstring);
 
 /*
  * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
- * Method:    queryIndex
- * Signature: ([FI[Ljava/lang/String;)[Lcom/amazon/opendistroforelasticsearch/knn/index/KNNQueryResult;
+ * Method:    initIndexBuilder
+ * Signature: ([Ljava/lang/String;Ljava/lang/String;)J
  */
-JNIEXPORT jobjectArray JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_queryIndex
-  (JNIEnv *, jobject, jfloatArray, jint, jobjectArray);
+JNIEXPORT jlong JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_initIndexBuilder
+  (JNIEnv *, jclass, jobjectArray, jstring);
 
 /*
  * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
- * Method:    init
- * Signature: (Ljava/lang/String;)V
+ * Method:    addToIndexBuilder
+ * Signature: (J[I[FII)V
  */
-JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_init
-  (JNIEnv *, jobject, jstring);
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_addToIndexBuilder
+  (JNIEnv *, jclass, jlong, jintArray, jfloatArray, jint, jint);
 
 /*
  * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
- * Method:    gc
- * Signature: ()V
+ * Method:    saveIndexBuilder
+ * Signature: (JLjava/lang/String;)V
  */
-JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_gc
-  (JNIEnv *, jobject);
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_saveIndexBuilder
+  (JNIEnv *, jclass, jlong, jstring);
+
+/*
+ * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
+ * Method:    getIndexMemory
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_getIndexMemory
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
+ * Method:    freeIndexBuilder
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_freeIndexBuilder
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
+ * Method:    initIndex
+ * Signature: (Ljava/lang/String;Ljava/lang/String;)J
+ */
+JNIEXPORT jlong JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_initIndex
+  (JNIEnv *, jclass, jstring, jstring);
+
+/*
+ * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
+ * Method:    setQueryParams
+ * Signature: (J[Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_setQueryParams
+  (JNIEnv *, jclass, jlong, jobjectArray);
+
+/*
+ * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
+ * Method:    searchIndex
+ * Signature: (J[FI[J[I[F)I
+ */
+JNIEXPORT jint JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_searchIndex
+  (JNIEnv *, jclass, jlong, jfloatArray, jint, jlongArray, jintArray, jfloatArray);
+
+/*
+ * Class:     com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex
+ * Method:    freeIndex
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_amazon_opendistroforelasticsearch_knn_index_v1736_KNNIndex_freeIndex
+  (JNIEnv *, jclass, jlong);
 
 #ifdef __cplusplus
 }
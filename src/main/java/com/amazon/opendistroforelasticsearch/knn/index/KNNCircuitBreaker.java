@@ -15,7 +15,6 @@
 
 package com.amazon.opendistroforelasticsearch.knn.index;
 
-import com.amazon.opendistroforelasticsearch.knn.index.v1736.KNNIndex;
 
 import com.amazon.opendistroforelasticsearch.knn.plugin.stats.StatNames;
 import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNStatsAction;
@@ -31,7 +30,6 @@ import org.elasticsearch.threadpool.ThreadPool;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Runs the circuit breaker logic and updates the settings
@@ -68,8 +66,11 @@ public class KNNCircuitBreaker {
         this.clusterService = clusterService;
         this.client = client;
         Runnable runnable = () -> {
+            // Expired graphs are otherwise only swept on cache accesses
+            KNNWeight.knnIndexCache.cleanUp();
+
             if (KNNWeight.knnIndexCache.isCacheCapacityReached() && clusterService.localNode().isDataNode()) {
-                long currentSizeKiloBytes =  KNNWeight.knnIndexCache.cache.asMap().values().stream().collect(Collectors.summingLong(KNNIndex::getIndexSize));
+                long currentSizeKiloBytes =  KNNWeight.knnIndexCache.getWeight();
                 long circuitBreakerLimitSizeKiloBytes = KNNSettings.getCircuitBreakerLimit().getKb();
                 long circuitBreakerUnsetSizeKiloBytes = (long) ((KNNSettings.getCircuitBreakerUnsetPercentage()/100) * circuitBreakerLimitSizeKiloBytes);
                 /**
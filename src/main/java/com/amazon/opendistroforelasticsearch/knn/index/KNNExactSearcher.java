@@ -0,0 +1,180 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Scores docs against the query vector by streaming their vectors from doc values, without going through
+ * the graph. Backs exact queries and is used when the candidates are too few for a graph search to find k of them.
+ */
+final class KNNExactSearcher {
+
+    private KNNExactSearcher() {}
+
+    /**
+     * Finds the k candidates nearest to the query vector
+     *
+     * @param reader segment reader
+     * @param field knn vector field
+     * @param spaceType space of the field
+     * @param queryVector query vector
+     * @param candidates docs to score, or null to score every doc with a vector
+     * @param liveDocs live docs of the segment, or null if all docs are live. Only applied when candidates is null
+     * @param k number of neighbours to return
+     * @param docs buffer of at least k elements to write the doc ids to
+     * @param scores buffer of at least k elements to write the scores to
+     * @return number of results written to the buffers, in no particular order
+     * @throws IOException if the doc values cannot be read
+     */
+    static int search(LeafReader reader, String field, SpaceType spaceType, float[] queryVector,
+                      DocIdSetIterator candidates, Bits liveDocs, int k, int[] docs, float[] scores) throws IOException {
+        BinaryDocValues values = DocValues.getBinary(reader, field);
+        float[] vector = new float[queryVector.length];
+        // docs and scores hold a max heap on distance, so the farthest of the current top k is at the root
+        int size = 0;
+        DocIdSetIterator iterator = candidates == null ? values : candidates;
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            if (candidates == null) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+            } else if (!values.advanceExact(doc)) {
+                continue;
+            }
+            BytesRef value = values.binaryValue();
+            int dimension = KNNVectorSerializer.dimension(value);
+            if (dimension != queryVector.length) {
+                throw new IllegalArgumentException(String.format("Query vector dimension mismatch. Expected: %d, Given: %d",
+                        dimension, queryVector.length));
+            }
+            KNNVectorSerializer.deserialize(value, vector);
+            size = offer(docs, scores, k, size, doc, spaceType.distance(queryVector, vector));
+        }
+
+        for (int i = 0; i < size; i++) {
+            scores[i] = spaceType.score(scores[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Computes the exact distances of candidates found through approximate distances and keeps the k nearest.
+     * The candidates are read in increasing doc id order, as the doc values can only move forward.
+     *
+     * @param reader segment reader
+     * @param field knn vector field
+     * @param spaceType space of the field
+     * @param queryVector query vector
+     * @param candidateDocs doc ids of the candidates, which get sorted
+     * @param candidateDistances approximate distances of the candidates, which get sorted along with the doc ids
+     * @param candidateCount number of candidates
+     * @param k number of neighbours to keep
+     * @param docs buffer of at least k elements to write the doc ids to
+     * @param distances buffer of at least k elements to write the exact distances to
+     * @return number of results written to the buffers, in no particular order
+     * @throws IOException if the doc values cannot be read
+     */
+    static int rescore(LeafReader reader, String field, SpaceType spaceType, float[] queryVector,
+                       int[] candidateDocs, float[] candidateDistances, int candidateCount, int k,
+                       int[] docs, float[] distances) throws IOException {
+        KNNScorer.sortByDoc(candidateDocs, candidateDistances, candidateCount);
+        BinaryDocValues values = DocValues.getBinary(reader, field);
+        float[] vector = new float[queryVector.length];
+        int size = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = candidateDocs[i];
+            if (!values.advanceExact(doc)) {
+                continue;
+            }
+            int dimension = KNNVectorSerializer.deserialize(values.binaryValue(), vector);
+            if (dimension != queryVector.length) {
+                throw new IllegalStateException(String.format("Vector dimension mismatch. Expected: %d, Given: %d",
+                        queryVector.length, dimension));
+            }
+            size = offer(docs, distances, k, size, doc, spaceType.distance(queryVector, vector));
+        }
+        return size;
+    }
+
+    /**
+     * Adds the doc to the max heap on distance if it is among the capacity nearest docs seen so far
+     *
+     * @return new size of the heap
+     */
+    static int offer(int[] docs, float[] distances, int capacity, int size, int doc, float distance) {
+        if (size < capacity) {
+            docs[size] = doc;
+            distances[size] = distance;
+            siftUp(docs, distances, size);
+            return size + 1;
+        }
+        if (distance < distances[0]) {
+            docs[0] = doc;
+            distances[0] = distance;
+            siftDown(docs, distances, size);
+        }
+        return size;
+    }
+
+    private static void siftUp(int[] docs, float[] distances, int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (distances[parent] >= distances[index]) {
+                return;
+            }
+            swap(docs, distances, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] docs, float[] distances, int size) {
+        int index = 0;
+        while (true) {
+            int largest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && distances[left] > distances[largest]) {
+                largest = left;
+            }
+            if (right < size && distances[right] > distances[largest]) {
+                largest = right;
+            }
+            if (largest == index) {
+                return;
+            }
+            swap(docs, distances, index, largest);
+            index = largest;
+        }
+    }
+
+    private static void swap(int[] docs, float[] distances, int i, int j) {
+        int doc = docs[i];
+        docs[i] = docs[j];
+        docs[j] = doc;
+        float distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+    }
+}
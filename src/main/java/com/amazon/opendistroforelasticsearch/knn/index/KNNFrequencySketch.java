@@ -0,0 +1,214 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate, aging access frequency of the graphs, used by the TinyLFU admission policy of the cache.
+ *
+ * Frequencies are kept in a count-min sketch of 4 bit counters, 16 to a long, with 4 counters per key.
+ * A key is only added to the sketch on its second access: the first one sets it in a bloom filter, the
+ * doorkeeper, so that keys seen once do not take up counters. Once the number of recorded accesses reaches
+ * ten times the capacity, all the counters are halved and the doorkeeper is cleared, so that frequencies
+ * reflect recent accesses.
+ *
+ * Every cache lookup records an access, so the counters are updated with compare and swap rather than under a lock.
+ * Concurrent updates to the same long retry, and an access recorded while the counters are halved or the sketch
+ * grows may be lost, which only makes the frequencies a little more approximate.
+ */
+final class KNNFrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_FREQUENCY = 15;
+    private static final int MIN_CAPACITY = 64;
+
+    private volatile Counters counters;
+    private final AtomicInteger size = new AtomicInteger();
+
+    KNNFrequencySketch(int capacity) {
+        int length = Integer.highestOneBit(Math.max(MIN_CAPACITY, capacity) - 1) << 1;
+        counters = new Counters(new AtomicLongArray(length), new AtomicLongArray(length / 4));
+    }
+
+    /**
+     * Grows the sketch to track at least the given number of keys. The counters of the larger table start from
+     * those of the current one, so the recorded frequencies are kept.
+     *
+     * @param capacity expected number of distinct keys
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > counters.table.length()) {
+            grow(capacity);
+        }
+    }
+
+    private synchronized void grow(int capacity) {
+        Counters current = counters;
+        int length = current.table.length();
+        if (capacity <= length) {
+            return;
+        }
+        int newLength = Integer.highestOneBit(capacity - 1) << 1;
+        // A counter of the table is found in the larger one at the same position, or at the same position in one
+        // of the copies above it, as the index of a counter only gains high bits when the table grows
+        AtomicLongArray table = new AtomicLongArray(newLength);
+        AtomicLongArray doorkeeper = new AtomicLongArray(newLength / 4);
+        for (int i = 0; i < newLength; i++) {
+            table.set(i, current.table.get(i & (length - 1)));
+        }
+        for (int i = 0; i < newLength / 4; i++) {
+            doorkeeper.set(i, current.doorkeeper.get(i & (length / 4 - 1)));
+        }
+        counters = new Counters(table, doorkeeper);
+    }
+
+    /**
+     * Records an access to the key
+     *
+     * @param key key accessed
+     */
+    void increment(String key) {
+        Counters current = counters;
+        int hash = spread(key.hashCode());
+        if (setDoorkeeper(current, hash)) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                added |= incrementAt(current, indexOf(current, hash, i));
+            }
+            if (!added) {
+                return;
+            }
+        }
+        if (size.incrementAndGet() >= current.sampleSize) {
+            reset(current);
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent accesses to the key
+     *
+     * @param key key to look up
+     * @return estimated frequency, between 0 and 16
+     */
+    int frequency(String key) {
+        Counters current = counters;
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(current, hash, i);
+            int counter = (int) ((current.table.get(index >>> 4) >>> ((index & 15) << 2)) & 0xFL);
+            frequency = Math.min(frequency, counter);
+        }
+        return getDoorkeeper(current, hash) ? frequency + 1 : frequency;
+    }
+
+    /**
+     * @param index position of the counter among all the counters of the table
+     * @return false if the counter is already at its maximum
+     */
+    private static boolean incrementAt(Counters counters, int index) {
+        int slot = index >>> 4;
+        int offset = (index & 15) << 2;
+        while (true) {
+            long value = counters.table.get(slot);
+            if (((value >>> offset) & 0xFL) == MAX_FREQUENCY) {
+                return false;
+            }
+            if (counters.table.compareAndSet(slot, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the key was already set in the doorkeeper
+     */
+    private static boolean setDoorkeeper(Counters counters, int hash) {
+        boolean present = true;
+        for (int i = 0; i < 2; i++) {
+            int bit = indexOf(counters, hash, i);
+            long mask = 1L << bit;
+            if ((counters.doorkeeper.getAndAccumulate(bit >>> 6, mask, (word, set) -> word | set) & mask) == 0) {
+                present = false;
+            }
+        }
+        return present;
+    }
+
+    private static boolean getDoorkeeper(Counters counters, int hash) {
+        for (int i = 0; i < 2; i++) {
+            int bit = indexOf(counters, hash, i);
+            if ((counters.doorkeeper.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Halves the counters, on the thread whose access reached the sample size
+     */
+    private void reset(Counters counters) {
+        int count = size.get();
+        if (count < counters.sampleSize || !size.compareAndSet(count, 0)) {
+            return;
+        }
+        for (int i = 0; i < counters.table.length(); i++) {
+            counters.table.getAndUpdate(i, value -> (value >>> 1) & RESET_MASK);
+        }
+        for (int i = 0; i < counters.doorkeeper.length(); i++) {
+            counters.doorkeeper.set(i, 0L);
+        }
+    }
+
+    /**
+     * @return position of the i-th counter of the key among the table.length * 16 counters
+     */
+    private static int indexOf(Counters counters, int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (counters.table.length() * 16 - 1);
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    /**
+     * Counters of the sketch, replaced as a whole when the sketch grows
+     */
+    private static final class Counters {
+        private final AtomicLongArray table;
+        /**
+         * One doorkeeper bit per counter
+         */
+        private final AtomicLongArray doorkeeper;
+        private final int sampleSize;
+
+        private Counters(AtomicLongArray table, AtomicLongArray doorkeeper) {
+            this.table = table;
+            this.doorkeeper = doorkeeper;
+            this.sampleSize = 10 * table.length();
+        }
+    }
+}
@@ -15,46 +15,137 @@
 
 package com.amazon.opendistroforelasticsearch.knn.index;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngines;
 import com.google.common.cache.CacheStats;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalNotification;
-import com.amazon.opendistroforelasticsearch.knn.index.v1736.KNNIndex;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.WatcherHandle;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 /**
- * KNNIndex level caching with weight based, time based evictions. This caching helps us
+ * Graph level caching with weight based, time based evictions. This caching helps us
  * to manage the hnsw graphs in the memory and garbage collect them after specified timeout
  * or when weightCircuitBreaker is hit.
+ *
+ * Cache hits are lock free lookups in a concurrent map. A miss installs a loading entry for its key and
+ * loads the graph outside of any lock, so concurrent requests for the same graph wait for that single load
+ * while requests for other graphs are not held up by it. The weight limit applies to the whole cache,
+ * evicting the least recently used graphs first.
+ *
+ * The graphs of each index form a partition of the cache. An index can cap the weight of its graphs with
+ * index.knn.cache.quota, and protect them from evictions caused by other indices with index.knn.cache.priority:
+ * when the cache is full, graphs of lower priority indices are evicted before any graph of a higher priority.
+ *
+ * With knn.cache.admission_policy set to tinylfu, a graph whose load would evict other graphs is only admitted if
+ * it is worth more than the graphs it would evict, its worth being its recent access frequency times the time it
+ * takes to load. A graph that is not admitted is still loaded for the query that needs it, but it never evicts an
+ * admitted graph. If evicting the graphs on probation makes room for it, it is kept on probation: it is evicted
+ * before any other graph of the same priority, so that the next load flushes a one-off graph rather than the graphs
+ * in regular use, and until then further queries on it share the loaded graph. Otherwise it is served outside of
+ * the cache to the queries waiting for its load, and freed as soon as they release it.
+ *
+ * Evicted graphs are freed on the knn_gc thread pool once the queries in flight on them release them. Until a
+ * free completes its memory still counts against the weight limit. A load that would not fit waits for the queries
+ * holding the evicted graphs to release them and for their frees to complete, which takes no longer than a graph
+ * search, and fails with a {@link CircuitBreakingException} only if they are not freed within a bounded time.
  */
 public class KNNIndexCache {
 
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    /**
+     * Minimum interval between two sweeps for expired graphs triggered by cache accesses
+     */
+    private static final long CLEAN_UP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Name of the thread pool freeing evicted graphs
+     */
+    public static final String GC_THREAD_POOL = "knn_gc";
+
+    /**
+     * Upper bound on how long a load waits for the evicted graphs to be freed. Queries hold a graph for a single
+     * search and freeing it only takes returning its memory to the allocator, so a longer wait means the queries
+     * or the gc thread pool are backed up.
+     */
+    private static final long MAX_FREE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
     private AtomicBoolean cacheCapacityReached;
+    private volatile ThreadPool threadPool;
 
     private static Logger logger = LogManager.getLogger(KNNIndexCache.class);
     private static KNNIndexFileListener knnIndexFileListener = null;
 
     private static KNNIndexCache INSTANCE;
-    public Cache<String, KNNIndex> cache;
+
+    private volatile ConcurrentHashMap<String, CacheEntry> cache;
+    private final ConcurrentHashMap<String, KNNIndexCachePartition> partitions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> openSegments = new ConcurrentHashMap<>();
+    private volatile long maximumWeight;
+    private volatile long expiryTimeNanos;
+    private volatile boolean admissionEnabled;
+
+    private final KNNFrequencySketch sketch = new KNNFrequencySketch(0);
+
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong lastCleanUpNanos = new AtomicLong(System.nanoTime());
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadExceptionCount = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder rejectionCount = new LongAdder();
+    private final LongAdder loadedWeight = new LongAdder();
+    private final LongAdder loadedTime = new LongAdder();
+
+    private final AtomicLong pendingFreeCount = new AtomicLong();
+    private final AtomicLong pendingFreeWeight = new AtomicLong();
+    private final LongAdder freeCount = new LongAdder();
+    private final LongAdder totalFreeTime = new LongAdder();
+    private final ReentrantLock freeLock = new ReentrantLock();
+    private final Condition freed = freeLock.newCondition();
+
+    /**
+     * Sets the thread pool providing the executors that free evicted graphs and apply settings updates
+     *
+     * @param threadPool node thread pool
+     */
+    public void setThreadPool(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
 
     public static void setKnnIndexFileListener(KNNIndexFileListener knnIndexFileListener) {
         KNNIndexCache.knnIndexFileListener = knnIndexFileListener;
     }
 
-    private KNNIndexCache() {
+    KNNIndexCache() {
         initCache();
     }
 
@@ -70,74 +161,794 @@ public class KNNIndexCache {
     }
 
     public void initCache() {
-        CacheBuilder<String, KNNIndex> cacheBuilder = CacheBuilder.newBuilder()
-                                                                  .recordStats()
-                                                                  .concurrencyLevel(1)
-                                                                  .removalListener(k -> onRemoval(k));
+        readSettings();
+        cacheCapacityReached = new AtomicBoolean(false);
+        cache = new ConcurrentHashMap<>();
+    }
+
+    private void readSettings() {
         if(KNNSettings.state().getSettingValue(KNNSettings.KNN_MEMORY_CIRCUIT_BREAKER_ENABLED)) {
-            cacheBuilder.maximumWeight(KNNSettings.getCircuitBreakerLimit().getKb()).weigher((k, v) -> (int)v.getIndexSize());
+            maximumWeight = KNNSettings.getCircuitBreakerLimit().getKb();
+        } else {
+            maximumWeight = Long.MAX_VALUE;
         }
 
         if(KNNSettings.state().getSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_ENABLED)) {
             /**
              * If the hnsw index is not accessed for knn.cache.item.expiry.minutes, it would be garbage collected.
              */
-            long expiryTime = KNNSettings.state().getSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES);
-            cacheBuilder.expireAfterAccess(expiryTime, TimeUnit.MINUTES);
+            TimeValue expiryTime = KNNSettings.state().getSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES);
+            expiryTimeNanos = expiryTime.nanos();
+        } else {
+            expiryTimeNanos = 0;
         }
 
-        cacheCapacityReached = new AtomicBoolean(false);
-
-        cache = cacheBuilder.build();
+        String admissionPolicy = KNNSettings.state().getSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY);
+        admissionEnabled = KNNSettings.ADMISSION_POLICY_TINYLFU.equals(admissionPolicy);
     }
 
-    public synchronized void rebuild() {
-        logger.info("KNN Cache rebuilding.");
-        executor.execute(() -> {
-            cache.invalidateAll();
-            initCache(); }
+    /**
+     * Applies the latest cache settings to the loaded graphs. The graphs stay resident unless the new weight
+     * limit or expiry time requires them to be evicted.
+     */
+    public void updateSettings() {
+        logger.info("KNN Cache settings updated.");
+        executeInBackground(() -> {
+            readSettings();
+            evictIfNeeded(0, false);
+            cleanUp(); }
         );
     }
 
     /**
-     * On cache eviction, the corresponding hnsw index will be deleted from native memory.
+     * Runs the task on the generic thread pool, or on the calling thread if the pool is not available or rejects it
+     */
+    private void executeInBackground(Runnable task) {
+        ThreadPool pool = threadPool;
+        if (pool == null) {
+            task.run();
+            return;
+        }
+        try {
+            pool.generic().execute(task);
+        } catch (EsRejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * On cache eviction, the corresponding graph will be freed from memory.
      *
-     * @param removalNotification key, value that got evicted.
+     * @param key indexPath of the evicted graph
+     * @param knnIndex evicted graph
+     * @param watcherHandle registration of the graph file with the file listener, if any
+     * @param cause reason of the eviction
      */
-    public void onRemoval(RemovalNotification<String, KNNIndex> removalNotification) {
-        try {            KNNIndex knnIndex = removalNotification.getValue();
+    private void onRemoval(String key, KNNGraph knnIndex, long indexWeight, WatcherHandle<FileWatcher> watcherHandle,
+                           RemovalCause cause) {
+        // The native memory is freed once the queries still holding the graph release it
+        pendingFreeCount.incrementAndGet();
+        pendingFreeWeight.addAndGet(indexWeight);
+        long evictionTime = System.nanoTime();
+        knnIndex.setFreeAction(() -> free(key, knnIndex, indexWeight, evictionTime));
+        knnIndex.release();
 
-            if (RemovalCause.SIZE == removalNotification.getCause()) {
+        try {
+            if (RemovalCause.SIZE == cause) {
                 KNNSettings.state().updateCircuitBreakerSettings(true);
                 setCacheCapacityReached(true);
             }
-            // TODO will change below logger to debug when close to ship it
-            logger.info("[KNN] Cache evicted. Key {}, Reason: {}", removalNotification.getKey()
-                    ,removalNotification.getCause());
-
-            // This flag is to ensure, callers already holding the object do not query if index
-            // is deleted
-            knnIndex.isDeleted.set(true);
-            executor.execute(() -> knnIndex.gc());
+            logger.debug("[KNN] Cache evicted. Key {}, Reason: {}", key, cause);
+            if (knnIndexFileListener != null && watcherHandle != null) {
+                knnIndexFileListener.unregister(Paths.get(key), watcherHandle);
+            }
 
         } catch(Exception ex) {
-            logger.error("Exception occured while performing gc for hnsw index " + removalNotification.getKey());
+            logger.error("Exception occured while performing gc for hnsw index " + key);
         }
     }
 
     /**
-     * Loads corresponding index for the given key to memory and returns the index object.
+     * Frees the graph on the gc thread pool, or on the calling thread if the pool is not available or its
+     * queue is full
+     */
+    private void free(String key, KNNGraph knnIndex, long indexWeight, long evictionTime) {
+        Runnable gc = () -> {
+            try {
+                knnIndex.free();
+            } catch (Exception ex) {
+                logger.error("Exception occured while performing gc for hnsw index " + key, ex);
+            } finally {
+                freeCount.increment();
+                totalFreeTime.add(System.nanoTime() - evictionTime);
+                pendingFreeCount.decrementAndGet();
+                pendingFreeWeight.addAndGet(-indexWeight);
+                freeLock.lock();
+                try {
+                    freed.signalAll();
+                } finally {
+                    freeLock.unlock();
+                }
+            }
+        };
+
+        ThreadPool pool = threadPool;
+        if (pool == null) {
+            gc.run();
+            return;
+        }
+        try {
+            pool.executor(GC_THREAD_POOL).execute(gc);
+        } catch (EsRejectedExecutionException e) {
+            gc.run();
+        }
+    }
+
+    /**
+     * Makes sure the evicted graphs not freed yet leave room for the given weight, so that the native memory
+     * actually in use stays under the limit. The load waits for a bounded time for the queries in flight to release
+     * the evicted graphs they hold and for those graphs to be freed.
+     *
+     * @param loadWeight weight in KiloBytes of the graph about to be loaded
+     * @param cachedWeight weight in KiloBytes of the graphs in the cache, or of a full cache for a graph served
+     *                     outside of it
+     * @throws CircuitBreakingException if the evicted graphs are not freed in time to make room
+     */
+    private void awaitPendingFrees(long loadWeight, LongSupplier cachedWeight) {
+        if (cachedWeight.getAsLong() + pendingFreeWeight.get() + loadWeight <= maximumWeight) {
+            return;
+        }
+        long deadline = System.nanoTime() + MAX_FREE_WAIT_NANOS;
+        freeLock.lock();
+        try {
+            while (true) {
+                long pendingWeight = pendingFreeWeight.get();
+                if (pendingWeight == 0 || cachedWeight.getAsLong() + pendingWeight + loadWeight <= maximumWeight) {
+                    return;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw circuitBreakingException(loadWeight, "not freed in time");
+                }
+                freed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw circuitBreakingException(loadWeight, "not freed before the load was interrupted");
+        } finally {
+            freeLock.unlock();
+        }
+    }
+
+    private CircuitBreakingException circuitBreakingException(long loadWeight, String reason) {
+        logger.debug("[KNN] Graph of {} KB not loaded as {} KB of evicted graphs are {}", loadWeight,
+                pendingFreeWeight.get(), reason);
+        return new CircuitBreakingException("[knn] Not enough memory to load a graph of [" + loadWeight
+                + "kb], as [" + pendingFreeWeight.get() + "kb] of evicted graphs are " + reason,
+                loadWeight * 1024, maximumWeight * 1024, CircuitBreaker.Durability.TRANSIENT);
+    }
+
+    /**
+     * Loads corresponding index for the given key to memory and returns the index object. The returned index is
+     * acquired on behalf of the caller, who must {@link KNNGraph#release()} it once done querying so that an
+     * evicted graph can be freed.
+     *
+     * @param key indexPath where the serialized hnsw graph is stored
+     * @param spaceType space the graph was built in
+     * @return the loaded graph, or null if the graph could not be loaded
+     * @throws CircuitBreakingException if the memory of evicted graphs is not released in time to load the graph
+     */
+    public KNNGraph getIndex(String key, SpaceType spaceType) {
+        maybeCleanUp();
+        if (admissionEnabled) {
+            sketch.increment(key);
+        }
+        boolean recorded = false;
+        while (true) {
+            Map<String, CacheEntry> entries = cache;
+            CacheEntry entry = entries.get(key);
+            if (entry == null) {
+                CacheEntry newEntry = newEntry(key);
+                entry = entries.putIfAbsent(key, newEntry);
+                if (entry == null) {
+                    if (!recorded) {
+                        recordMiss(newEntry);
+                    }
+                    if (admissionEnabled) {
+                        sketch.ensureCapacity(entries.size());
+                    }
+                    return load(entries, key, spaceType, newEntry);
+                }
+            }
+
+            // Only a graph already loaded is a hit, queries waiting for a load in progress count as misses
+            if (!recorded) {
+                if (entry.isLoaded()) {
+                    hitCount.increment();
+                    entry.partition.hitCount.increment();
+                } else {
+                    recordMiss(entry);
+                }
+                recorded = true;
+            }
+            entry.lastAccessNanos = System.nanoTime();
+            KNNGraph index;
+            try {
+                index = entry.future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CircuitBreakingException) {
+                    throw (CircuitBreakingException) e.getCause();
+                }
+                logger.error("Exception occured while computing the index. Skipped Adding to cache");
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            // A graph can only fail to be acquired once it is out of the cache, so the next lookup reloads it
+            if (index.acquire()) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * Loads the graph for the given key into the cache ahead of the queries, unless it is there already. No query
+     * asked for the graph, so unlike {@link #getIndex(String, SpaceType)} the lookup counts neither as a hit or a
+     * miss nor as an access for the admission policy.
      *
      * @param key indexPath where the serialized hnsw graph is stored
-     * @return KNNIndex holding the heap pointer of the loaded graph
+     * @param spaceType space the graph was built in
+     * @return true if the graph is in the cache, false if it could not be loaded or was served outside of the cache
+     * @throws CircuitBreakingException if the memory of evicted graphs is not released in time to load the graph
      */
-    public KNNIndex getIndex(String key) {
+    public boolean preload(String key, SpaceType spaceType) {
+        Map<String, CacheEntry> entries = cache;
+        CacheEntry entry = entries.get(key);
+        if (entry == null) {
+            CacheEntry newEntry = newEntry(key);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                if (admissionEnabled) {
+                    sketch.ensureCapacity(entries.size());
+                }
+                KNNGraph index = load(entries, key, spaceType, newEntry);
+                if (index == null) {
+                    return false;
+                }
+                index.release();
+                return entries.get(key) == newEntry;
+            }
+        }
+
         try {
-            return cache.get(key, () -> computeIndex(key));
+            entry.future.get();
         } catch (ExecutionException e) {
-            logger.error("Exception occured while computing the index. Skipped Adding to cache");
+            if (e.getCause() instanceof CircuitBreakingException) {
+                throw (CircuitBreakingException) e.getCause();
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return entries.get(key) == entry;
+    }
+
+    private void recordMiss(CacheEntry entry) {
+        missCount.increment();
+        entry.partition.missCount.increment();
+    }
+
+    private KNNGraph load(Map<String, CacheEntry> entries, String key, SpaceType spaceType, CacheEntry entry) {
+        long startTime = System.nanoTime();
+        KNNGraph index;
+        boolean admitted;
+        long reservedWeight = 0;
+        try {
+            long loadWeight = KNNGraphEngines.getGraphEngine(key).estimateMemorySize(key);
+            admitted = admit(key, loadWeight);
+            if (admitted) {
+                evictIfOverQuota(entry.partition, loadWeight, false);
+                evictIfNeeded(loadWeight, false);
+                awaitPendingFrees(loadWeight, weight::get);
+            } else if (evictProbation(entry.partition, loadWeight)) {
+                awaitPendingFrees(loadWeight, weight::get);
+            } else {
+                reserveOutsideCache(loadWeight);
+                reservedWeight = loadWeight;
+            }
+            if (knnIndexFileListener != null) {
+                entry.watcherHandle = knnIndexFileListener.register(Paths.get(key));
+            }
+            index = computeIndex(key, spaceType);
+        } catch (CircuitBreakingException e) {
+            totalLoadTime.add(System.nanoTime() - startTime);
+            entries.remove(key, entry);
+            entry.future.completeExceptionally(e);
+            throw e;
+        } catch (Exception e) {
+            if (entry.watcherHandle != null) {
+                knnIndexFileListener.unregister(Paths.get(key), entry.watcherHandle);
+            }
+            if (reservedWeight > 0) {
+                unreserve(reservedWeight);
+            }
+            loadExceptionCount.increment();
+            totalLoadTime.add(System.nanoTime() - startTime);
+            entries.remove(key, entry);
+            entry.future.completeExceptionally(e);
+            logger.error("Exception occured while computing the index. Skipped Adding to cache", e);
+            return null;
+        }
+        long loadTime = System.nanoTime() - startTime;
+        loadSuccessCount.increment();
+        totalLoadTime.add(loadTime);
+
+        entry.weight = index.getMemorySize();
+        entry.loadNanos = loadTime;
+        loadedWeight.add(entry.weight);
+        loadedTime.add(loadTime);
+        entry.lastAccessNanos = System.nanoTime();
+        entry.probation = !admitted;
+        if (!admitted) {
+            rejectionCount.increment();
+        }
+        if (reservedWeight > 0) {
+            // Graphs may have left the cache while the graph was loading, leaving it room to stay on probation
+            if (!fits(entry.partition, entry.weight)) {
+                pendingFreeWeight.addAndGet(entry.weight - reservedWeight);
+                return serveOutsideCache(entries, key, entry, index);
+            }
+            unreserve(reservedWeight);
+        }
+        weight.addAndGet(entry.weight);
+        entry.partition.weight.addAndGet(entry.weight);
+        // Acquired for the caller before it is published, as it could be evicted right away
+        index.acquire();
+        entry.future.complete(index);
+
+        // The entry could have been invalidated while the graph was loading
+        if (entries.get(key) != entry) {
+            release(key, entry, RemovalCause.EXPLICIT);
+        }
+        // A graph on probation heavier than estimated only evicts graphs on probation, starting with itself
+        evictIfOverQuota(entry.partition, 0, !admitted);
+        evictIfNeeded(0, !admitted);
+        return index;
+    }
+
+    /**
+     * Makes room for a graph not admitted by the admission policy by evicting the graphs on probation, never a graph
+     * that was admitted
+     *
+     * @param partition partition of the index of the graph
+     * @param loadWeight weight in KiloBytes of the graph about to be loaded
+     * @return true if the graph fits in the cache, false if it must be served outside of it
+     */
+    private boolean evictProbation(KNNIndexCachePartition partition, long loadWeight) {
+        evictIfOverQuota(partition, loadWeight, true);
+        evictIfNeeded(loadWeight, true);
+        return fits(partition, loadWeight);
+    }
+
+    private boolean fits(KNNIndexCachePartition partition, long loadWeight) {
+        return weight.get() + loadWeight <= maximumWeight && !partition.isOverQuota(loadWeight);
+    }
+
+    /**
+     * Counts a graph to be served outside of the cache against the evicted graphs not freed yet, so that loads wait
+     * for it to be freed as they would for an evicted graph. Only one graph is served outside of the cache at a time,
+     * once the evicted graphs are freed, so that the memory in use exceeds the limit by one graph at most.
+     *
+     * @param loadWeight weight in KiloBytes of the graph about to be loaded
+     * @throws CircuitBreakingException if the evicted graphs are not freed in time
+     */
+    private void reserveOutsideCache(long loadWeight) {
+        freeLock.lock();
+        try {
+            awaitPendingFrees(loadWeight, () -> maximumWeight - loadWeight);
+            pendingFreeCount.incrementAndGet();
+            pendingFreeWeight.addAndGet(loadWeight);
+        } finally {
+            freeLock.unlock();
+        }
+    }
+
+    private void unreserve(long reservedWeight) {
+        pendingFreeCount.decrementAndGet();
+        pendingFreeWeight.addAndGet(-reservedWeight);
+        freeLock.lock();
+        try {
+            freed.signalAll();
+        } finally {
+            freeLock.unlock();
+        }
+    }
+
+    /**
+     * Hands a graph that does not fit in the cache to the queries waiting for it without caching it, freeing it as
+     * soon as they release it. Its weight was reserved as a pending free by {@link #reserveOutsideCache(long)}.
+     */
+    private KNNGraph serveOutsideCache(Map<String, CacheEntry> entries, String key, CacheEntry entry, KNNGraph index) {
+        // Its weight never counted in the cache, so it must not be released from it
+        entry.released.set(true);
+        entries.remove(key, entry);
+        if (entry.watcherHandle != null) {
+            knnIndexFileListener.unregister(Paths.get(key), entry.watcherHandle);
+        }
+        long servedTime = System.nanoTime();
+        index.setFreeAction(() -> free(key, index, entry.weight, servedTime));
+        // Acquired for the caller before the reference of the loader is released
+        index.acquire();
+        entry.future.complete(index);
+        index.release();
+        logger.debug("[KNN] Graph {} served outside of the cache", key);
+        return index;
+    }
+
+    /**
+     * Loads the graph for the given key in the background on the knn_warmup thread pool, unless it is already
+     * in the cache
+     *
+     * @param key indexPath where the serialized hnsw graph is stored
+     * @param spaceType space the graph was built in
+     */
+    public void loadAsync(String key, SpaceType spaceType) {
+        ThreadPool pool = threadPool;
+        if (pool == null || cache.containsKey(key)) {
+            return;
+        }
+        try {
+            pool.executor(KNNIndexWarmer.WARMUP_THREAD_POOL).execute(() -> KNNIndexWarmer.load(key, spaceType));
+        } catch (EsRejectedExecutionException e) {
+            logger.debug("[KNN] Skipped preloading {} as the warmup thread pool is full", key);
+        }
+    }
+
+    /**
+     * Records that a reader opened the segment of the graph for the given key. Several readers can have the same
+     * segment open at once, such as the reader of the engine and those opened by CheckIndex or a frozen index.
+     *
+     * @param key indexPath where the serialized hnsw graph is stored
+     */
+    public void openSegment(String key) {
+        openSegments.merge(key, 1, Integer::sum);
+    }
+
+    /**
+     * Records that a reader closed the segment of the graph for the given key, invalidating the graph once no reader
+     * has the segment open anymore
+     *
+     * @param key indexPath where the serialized hnsw graph is stored
+     */
+    public void closeSegment(String key) {
+        // Invalidated within the update so that a reader opening the segment meanwhile does not lose the graph
+        openSegments.compute(key, (segmentKey, count) -> {
+            if (count == null || count <= 1) {
+                invalidate(segmentKey);
+                return null;
+            }
+            return count - 1;
+        });
+    }
+
+    /**
+     * Removes the graph for the given key from the cache and frees it once no longer in use
+     *
+     * @param key indexPath where the serialized hnsw graph is stored
+     */
+    public void invalidate(String key) {
+        CacheEntry entry = cache.get(key);
+        if (entry != null && cache.remove(key, entry)) {
+            release(key, entry, RemovalCause.EXPLICIT);
+        }
+    }
+
+    /**
+     * Removes all the graphs stored under the given directory from the cache
+     *
+     * @param directory directory holding the graphs, such as the index directory of a shard
+     */
+    public void invalidateAll(Path directory) {
+        for (String key : cache.keySet()) {
+            if (Paths.get(key).startsWith(directory)) {
+                invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all the graphs from the cache
+     */
+    public void invalidateAll() {
+        for (String key : cache.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Evicts the graphs that have not been accessed within the expiry time
+     */
+    public void cleanUp() {
+        long expiryTime = expiryTimeNanos;
+        if (expiryTime <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<String, CacheEntry> mapEntry : cache.entrySet()) {
+            CacheEntry entry = mapEntry.getValue();
+            if (entry.isLoaded() && now - entry.lastAccessNanos > expiryTime && cache.remove(mapEntry.getKey(), entry)) {
+                evictionCount.increment();
+                release(mapEntry.getKey(), entry, RemovalCause.EXPIRED);
+            }
+        }
+    }
+
+    private void maybeCleanUp() {
+        long now = System.nanoTime();
+        long lastCleanUp = lastCleanUpNanos.get();
+        if (expiryTimeNanos > 0 && now - lastCleanUp > CLEAN_UP_INTERVAL_NANOS
+                    && lastCleanUpNanos.compareAndSet(lastCleanUp, now)) {
+            cleanUp();
+        }
+    }
+
+    /**
+     * Evicts the least recently used graphs until the cache fits in the maximum weight
+     *
+     * @param headroom weight in KiloBytes to leave available under the maximum weight
+     * @param probationOnly whether to only evict the graphs on probation
+     */
+    private void evictIfNeeded(long headroom, boolean probationOnly) {
+        if (weight.get() + headroom <= maximumWeight) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            while (weight.get() + headroom > maximumWeight) {
+                if (!evictOne(null, RemovalCause.SIZE, probationOnly)) {
+                    return;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the least recently used graphs of the index until its graphs fit in its quota
+     *
+     * @param partition partition of the index
+     * @param headroom weight in KiloBytes to leave available under the quota
+     * @param probationOnly whether to only evict the graphs on probation
+     */
+    private void evictIfOverQuota(KNNIndexCachePartition partition, long headroom, boolean probationOnly) {
+        if (!partition.isOverQuota(headroom)) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            while (partition.isOverQuota(headroom)) {
+                if (!evictOne(partition, RemovalCause.QUOTA, probationOnly)) {
+                    return;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the least recently used graph among those of the lowest priority, graphs on probation first
+     *
+     * The victim is found by scanning every entry of the cache while holding the eviction lock, so each eviction
+     * takes time linear in the number of cached graphs. A node caches one graph per segment and field, a few
+     * thousand at most, which scans in far less time than the load that triggers the eviction takes. Lookups do
+     * not take the lock, so only loads and settings updates wait on a scan.
+     *
+     * @param partition partition to evict from, or null to evict from the whole cache
+     * @param cause reason of the eviction
+     * @param probationOnly whether to only evict the graphs on probation
+     * @return false if there was no graph to evict
+     */
+    private boolean evictOne(KNNIndexCachePartition partition, RemovalCause cause, boolean probationOnly) {
+        String victimKey = null;
+        CacheEntry victim = null;
+        for (Map.Entry<String, CacheEntry> mapEntry : cache.entrySet()) {
+            CacheEntry entry = mapEntry.getValue();
+            if (!entry.isLoaded() || (partition != null && entry.partition != partition)
+                    || (probationOnly && !entry.probation)) {
+                continue;
+            }
+            if (victim == null || isEvictedBefore(entry, victim)) {
+                victimKey = mapEntry.getKey();
+                victim = entry;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (cache.remove(victimKey, victim)) {
+            evictionCount.increment();
+            release(victimKey, victim, cause);
+        }
+        return true;
+    }
+
+    /**
+     * Decides whether a graph about to be loaded is worth the graphs it would evict, when the TinyLFU admission
+     * policy is enabled. The worth of a graph is its access frequency times its load time, so a graph accessed
+     * once is not admitted over graphs that are accessed regularly, nor a large graph over several small ones
+     * that take as long to load in total.
+     *
+     * @param key indexPath of the graph about to be loaded
+     * @param loadWeight estimated weight in KiloBytes of the graph
+     * @return true if the graph should be admitted to the cache rather than kept on probation once loaded
+     */
+    private boolean admit(String key, long loadWeight) {
+        if (!admissionEnabled || weight.get() + loadWeight <= maximumWeight) {
+            return true;
+        }
+        // Without any load to estimate the load time of the graph from, there is nothing to weigh it against
+        long weightSum = loadedWeight.sum();
+        if (weightSum == 0) {
+            return true;
+        }
+
+        // Access times are copied so that concurrent hits do not change the order while sorting
+        List<Victim> victims = new ArrayList<>();
+        for (Map.Entry<String, CacheEntry> mapEntry : cache.entrySet()) {
+            if (mapEntry.getValue().isLoaded()) {
+                victims.add(new Victim(mapEntry.getKey(), mapEntry.getValue()));
+            }
+        }
+        victims.sort(Comparator.comparingInt((Victim victim) -> victim.priority)
+                               .thenComparing(victim -> !victim.entry.probation)
+                               .thenComparingLong(victim -> victim.lastAccessNanos));
+
+        // Load time of the graph estimated from the load throughput so far
+        double loadCost = (double) loadWeight * loadedTime.sum() / weightSum;
+        double candidateWorth = sketch.frequency(key) * loadCost;
+        double victimsWorth = 0;
+        long evictedWeight = 0;
+        for (Victim victim : victims) {
+            if (weight.get() - evictedWeight + loadWeight <= maximumWeight) {
+                break;
+            }
+            evictedWeight += victim.entry.weight;
+            victimsWorth += (double) sketch.frequency(victim.key) * victim.entry.loadNanos;
+            if (victimsWorth >= candidateWorth) {
+                logger.debug("[KNN] Graph {} not admitted to the cache", key);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEvictedBefore(CacheEntry entry, CacheEntry other) {
+        int priority = entry.partition.getPriority();
+        int otherPriority = other.partition.getPriority();
+        if (priority != otherPriority) {
+            return priority < otherPriority;
+        }
+        if (entry.probation != other.probation) {
+            return entry.probation;
+        }
+        return entry.lastAccessNanos < other.lastAccessNanos;
+    }
+
+    private CacheEntry newEntry(String key) {
+        // Graphs are stored in <index uuid>/<shard id>/index/ under the data path of the node
+        Path graphPath = Paths.get(key);
+        String indexUuid = "";
+        String shard = "";
+        if (graphPath.getNameCount() >= 4) {
+            indexUuid = graphPath.getName(graphPath.getNameCount() - 4).toString();
+            shard = graphPath.getName(graphPath.getNameCount() - 3).toString();
+        }
+        return new CacheEntry(partitions.computeIfAbsent(indexUuid, KNNIndexCachePartition::new), shard);
+    }
+
+    /**
+     * Sets the name of an index and the limits on its graphs
+     *
+     * @param indexUuid uuid of the index
+     * @param indexName name of the index
+     * @param quota maximum weight in KiloBytes of the graphs of the index, 0 if unlimited
+     * @param priority priority of the graphs of the index over those of other indices
+     */
+    public void updatePartition(String indexUuid, String indexName, long quota, int priority) {
+        partitions.computeIfAbsent(indexUuid, KNNIndexCachePartition::new).setIndexName(indexName);
+        updatePartitionPriority(indexUuid, priority);
+        updatePartitionQuota(indexUuid, quota);
+    }
+
+    /**
+     * Sets the quota of an index, evicting its graphs that no longer fit in it
+     *
+     * @param indexUuid uuid of the index
+     * @param quota maximum weight in KiloBytes of the graphs of the index, 0 if unlimited
+     */
+    public void updatePartitionQuota(String indexUuid, long quota) {
+        KNNIndexCachePartition partition = partitions.computeIfAbsent(indexUuid, KNNIndexCachePartition::new);
+        partition.setQuota(quota);
+        if (partition.isOverQuota(0)) {
+            executeInBackground(() -> evictIfOverQuota(partition, 0, false));
+        }
+    }
+
+    /**
+     * Sets the priority of the graphs of an index over those of other indices
+     *
+     * @param indexUuid uuid of the index
+     * @param priority priority of the index
+     */
+    public void updatePartitionPriority(String indexUuid, int priority) {
+        partitions.computeIfAbsent(indexUuid, KNNIndexCachePartition::new).setPriority(priority);
+    }
+
+    /**
+     * Forgets an index removed from the node. Its graphs are invalidated as its shards close.
+     *
+     * @param indexUuid uuid of the index
+     */
+    public void removePartition(String indexUuid) {
+        partitions.remove(indexUuid);
+    }
+
+    /**
+     * Returns the graphs in the cache broken down by index and shard
+     *
+     * @return for each index, the weight, count, hits and misses of its graphs, and the weight and count of the
+     * graphs of each of its shards
+     */
+    public Map<String, Object> getIndicesStats() {
+        Map<KNNIndexCachePartition, Map<String, long[]>> shardStats = new HashMap<>();
+        for (CacheEntry entry : cache.values()) {
+            if (entry.isLoaded()) {
+                long[] stats = shardStats.computeIfAbsent(entry.partition, partition -> new HashMap<>())
+                                         .computeIfAbsent(entry.shard, shard -> new long[2]);
+                stats[0] += entry.weight;
+                stats[1]++;
+            }
+        }
+
+        Map<String, Object> indicesStats = new HashMap<>();
+        for (KNNIndexCachePartition partition : partitions.values()) {
+            Map<String, long[]> shards = shardStats.getOrDefault(partition, new HashMap<>());
+            if (shards.isEmpty() && partition.hitCount.sum() == 0 && partition.missCount.sum() == 0) {
+                continue;
+            }
+            Map<String, Object> shardsStats = new HashMap<>();
+            long graphCount = 0;
+            for (Map.Entry<String, long[]> shard : shards.entrySet()) {
+                Map<String, Object> stats = new HashMap<>();
+                stats.put("graph_memory_usage", shard.getValue()[0]);
+                stats.put("graph_count", shard.getValue()[1]);
+                shardsStats.put(shard.getKey(), stats);
+                graphCount += shard.getValue()[1];
+            }
+
+            Map<String, Object> indexStats = new HashMap<>();
+            indexStats.put("graph_memory_usage", partition.weight.get());
+            indexStats.put("graph_count", graphCount);
+            indexStats.put("hit_count", partition.hitCount.sum());
+            indexStats.put("miss_count", partition.missCount.sum());
+            indexStats.put("quota", partition.getQuota());
+            indexStats.put("priority", partition.getPriority());
+            indexStats.put("shards", shardsStats);
+            indicesStats.put(partition.getIndexName(), indexStats);
+        }
+        return indicesStats;
+    }
+
+    private void release(String key, CacheEntry entry, RemovalCause cause) {
+        if (entry.isLoaded() && entry.released.compareAndSet(false, true)) {
+            weight.addAndGet(-entry.weight);
+            entry.partition.weight.addAndGet(-entry.weight);
+            onRemoval(key, entry.future.join(), entry.weight, entry.watcherHandle, cause);
         }
-        return null;
     }
 
     /**
@@ -146,7 +957,18 @@ public class KNNIndexCache {
      * @return Stats of the  cache
      */
     public CacheStats getStats() {
-        return cache.stats();
+        return new CacheStats(hitCount.sum(), missCount.sum(), loadSuccessCount.sum(), loadExceptionCount.sum(),
+                totalLoadTime.sum(), evictionCount.sum());
+    }
+
+    /**
+     * Returns the number of graphs loaded for a query but not admitted by the admission policy, which were kept on
+     * probation
+     *
+     * @return Number of rejected graphs
+     */
+    public Long getRejectionCount() {
+        return rejectionCount.sum();
     }
 
     /**
@@ -155,7 +977,44 @@ public class KNNIndexCache {
      * @return Weight of the cache
      */
     public Long getWeight() {
-        return cache.asMap().values().stream().mapToLong(KNNIndex::getIndexSize).sum();
+        return weight.get();
+    }
+
+    /**
+     * Returns the number of evicted graphs waiting to be freed
+     *
+     * @return Number of pending frees
+     */
+    public Long getPendingFreeCount() {
+        return pendingFreeCount.get();
+    }
+
+    /**
+     * Returns the weight in KiloBytes of the evicted graphs waiting to be freed
+     *
+     * @return Weight of pending frees
+     */
+    public Long getPendingFreeWeight() {
+        return pendingFreeWeight.get();
+    }
+
+    /**
+     * Returns the number of graphs freed
+     *
+     * @return Number of frees
+     */
+    public Long getFreeCount() {
+        return freeCount.sum();
+    }
+
+    /**
+     * Returns the total time in nanoseconds from the eviction of a graph until its memory was freed,
+     * summed over all freed graphs
+     *
+     * @return Total free time
+     */
+    public Long getTotalFreeTime() {
+        return totalFreeTime.sum();
     }
 
     /**
@@ -177,19 +1036,84 @@ public class KNNIndexCache {
     }
 
     /**
-     * Loads hnsw index to memory. Registers the location of the serialized graph with ResourceWatcher.
+     * Loads hnsw index to memory with the engine named in its file. The cache registers the location of the
+     * serialized graph with ResourceWatcher for as long as the graph is cached.
      *
      * @param indexPathUrl path for serialized hnsw graph
-     * @return KNNIndex holding the heap pointer of the loaded graph
-     * @throws Exception Exception could occur when registering the index path
-     * to Resource watcher
+     * @param spaceType space the graph was built in
+     * @return the loaded graph
+     * @throws Exception Exception could occur when reading the serialized graph
      */
-    public KNNIndex computeIndex(String indexPathUrl) throws Exception {
+    public KNNGraph computeIndex(String indexPathUrl, SpaceType spaceType) throws Exception {
         if(Strings.isNullOrEmpty(indexPathUrl))
             throw new IllegalStateException("indexPath is null while performing load index");
         logger.debug("Loading index on cache miss .. {}", indexPathUrl);
-        Path indexPath = Paths.get(indexPathUrl);
-        knnIndexFileListener.register(indexPath);
-        return KNNIndex.loadIndex(indexPathUrl);
+        return KNNGraphEngines.getGraphEngine(indexPathUrl).load(indexPathUrl, spaceType);
+    }
+
+    /**
+     * A graph in the cache, or the pending load of one
+     */
+    private static final class CacheEntry {
+        private final CompletableFuture<KNNGraph> future = new CompletableFuture<>();
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final KNNIndexCachePartition partition;
+        private final String shard;
+        private volatile long lastAccessNanos;
+        private volatile long weight;
+        private volatile long loadNanos;
+        private volatile WatcherHandle<FileWatcher> watcherHandle;
+        /**
+         * Whether the graph was not admitted by the admission policy, which makes it the first to be evicted
+         */
+        private volatile boolean probation;
+
+        private CacheEntry(KNNIndexCachePartition partition, String shard) {
+            this.partition = partition;
+            this.shard = shard;
+        }
+
+        private boolean isLoaded() {
+            return future.isDone() && !future.isCompletedExceptionally();
+        }
+    }
+
+    /**
+     * A graph that could be evicted to admit another one, in eviction order
+     */
+    private static final class Victim {
+        private final String key;
+        private final CacheEntry entry;
+        private final int priority;
+        private final long lastAccessNanos;
+
+        private Victim(String key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.priority = entry.partition.getPriority();
+            this.lastAccessNanos = entry.lastAccessNanos;
+        }
+    }
+
+    /**
+     * Reasons for a graph to leave the cache
+     */
+    private enum RemovalCause {
+        /**
+         * The graph was invalidated, as its segment or shard closed or its file got deleted
+         */
+        EXPLICIT,
+        /**
+         * The graph was not accessed within the expiry time
+         */
+        EXPIRED,
+        /**
+         * The cache as a whole exceeded its weight limit
+         */
+        SIZE,
+        /**
+         * The graphs of the index exceeded the quota of the index
+         */
+        QUOTA
     }
 }
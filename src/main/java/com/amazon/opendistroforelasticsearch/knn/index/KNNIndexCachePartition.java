@@ -0,0 +1,82 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Share of the cache used by the graphs of one index. Each index can be given a quota on the weight of its
+ * graphs, and a priority deciding which graphs are evicted first when the cache as a whole is full.
+ */
+final class KNNIndexCachePartition {
+
+    private final String indexUuid;
+    private volatile String indexName;
+    private volatile long quota;
+    private volatile int priority;
+
+    final AtomicLong weight = new AtomicLong();
+    final LongAdder hitCount = new LongAdder();
+    final LongAdder missCount = new LongAdder();
+
+    KNNIndexCachePartition(String indexUuid) {
+        this.indexUuid = indexUuid;
+        this.indexName = indexUuid;
+    }
+
+    String getIndexUuid() {
+        return indexUuid;
+    }
+
+    /**
+     * @return name of the index, or its uuid if the index is not known to the node
+     */
+    String getIndexName() {
+        return indexName;
+    }
+
+    void setIndexName(String indexName) {
+        this.indexName = indexName;
+    }
+
+    /**
+     * @return maximum weight in KiloBytes of the graphs of the index, 0 if unlimited
+     */
+    long getQuota() {
+        return quota;
+    }
+
+    void setQuota(long quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * @return priority of the graphs of the index. Graphs with lower priorities are evicted first.
+     */
+    int getPriority() {
+        return priority;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    boolean isOverQuota(long headroom) {
+        long limit = quota;
+        return limit > 0 && weight.get() + headroom > limit;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Ties the graphs in the cache to the lifecycle of the shards of an index: warms up the graphs of the shards of
+ * indices with index.knn.warmup_on_start as the shards start, and drops the graphs of shards from the cache as the
+ * shards close, which covers deleted indices too.
+ */
+public class KNNIndexEventListener implements IndexEventListener {
+    private static Logger logger = LogManager.getLogger(KNNIndexEventListener.class);
+
+    private final ThreadPool threadPool;
+    private final KNNIndexCache knnIndexCache;
+
+    public KNNIndexEventListener(ThreadPool threadPool, KNNIndexCache knnIndexCache) {
+        this.threadPool = threadPool;
+        this.knnIndexCache = knnIndexCache;
+    }
+
+    @Override
+    public void afterIndexShardStarted(IndexShard indexShard) {
+        if (!indexShard.indexSettings().getValue(KNNSettings.INDEX_KNN_WARMUP_ON_START_SETTING)) {
+            return;
+        }
+        threadPool.generic().execute(() -> {
+            try {
+                KNNIndexWarmer.warmup(indexShard, threadPool.executor(KNNIndexWarmer.WARMUP_THREAD_POOL));
+            } catch (Exception e) {
+                logger.warn("[KNN] Failed to warm up shard " + indexShard.shardId(), e);
+            }
+        });
+    }
+
+    @Override
+    public void afterIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+        if (indexShard != null) {
+            knnIndexCache.invalidateAll(indexShard.shardPath().resolveIndex());
+        }
+    }
+
+    @Override
+    public void afterIndexRemoved(Index index, IndexSettings indexSettings,
+                                  IndicesClusterStateService.AllocatedIndices.IndexRemovalReason reason) {
+        knnIndexCache.removePartition(index.getUUID());
+    }
+}
@@ -20,40 +20,80 @@ import org.apache.logging.log4j.Logger;
 import org.elasticsearch.watcher.FileChangesListener;
 import org.elasticsearch.watcher.FileWatcher;
 import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.watcher.WatcherHandle;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * File Listener class to perform hsnw index garbage collection when the corresponding
  * segments get deleted
+ *
+ * Graphs are invalidated as soon as their segment is closed or their shard is closed, so polling only
+ * serves as a fallback. The files are polled at a low frequency, and only while their graph is cached.
  */
 public class KNNIndexFileListener implements FileChangesListener {
     private static Logger logger = LogManager.getLogger(KNNIndexFileListener.class);
 
     private ResourceWatcherService resourceWatcherService;
+    private final Map<Path, WatcherHandle<FileWatcher>> watcherHandles = new ConcurrentHashMap<>();
 
     public KNNIndexFileListener(ResourceWatcherService resourceWatcherService) {
         this.resourceWatcherService= resourceWatcherService;
     }
 
-    public void register(Path filePath) throws Exception {
+    /**
+     * Starts polling the file for as long as its graph is cached. A graph reloaded into the cache registers its
+     * file again, which replaces the watcher of its previous load.
+     *
+     * @param filePath path of the graph file
+     * @return handle to pass to {@link #unregister} once the graph leaves the cache, or null if the file could not
+     *         be watched
+     * @throws Exception if the file cannot be read
+     */
+    public WatcherHandle<FileWatcher> register(Path filePath) throws Exception {
 
         final FileWatcher watcher = new FileWatcher(filePath);
         watcher.addListener(this);
         watcher.init();
+        WatcherHandle<FileWatcher> handle;
         try {
-            resourceWatcherService.add(watcher, ResourceWatcherService.Frequency.HIGH);
-
+            handle = resourceWatcherService.add(watcher, ResourceWatcherService.Frequency.LOW);
         } catch (IOException e) {
             logger.error("couldn't initialize resource watcher for file " + filePath.toString(), e);
+            return null;
+        }
+        WatcherHandle<FileWatcher> previous = watcherHandles.put(filePath, handle);
+        if (previous != null) {
+            previous.stop();
         }
         logger.debug("[KNN] Registered file {}", filePath.toString());
+        return handle;
+    }
+
+    /**
+     * Stops polling the file, once its graph is no longer cached. Only the given registration is stopped, so
+     * that a graph leaving the cache late does not stop the watcher of the graph reloaded in its place.
+     *
+     * @param filePath path of the graph file
+     * @param handle handle returned when the file was registered for the graph
+     */
+    public void unregister(Path filePath, WatcherHandle<FileWatcher> handle) {
+        handle.stop();
+        if (watcherHandles.remove(filePath, handle)) {
+            logger.debug("[KNN] Unregistered file {}", filePath.toString());
+        }
     }
 
     @Override
     public void onFileDeleted(Path indexFilePath) {
         logger.debug("[KNN] Invalidated because file {} is deleted", indexFilePath.toString());
-        KNNWeight.knnIndexCache.cache.invalidate(indexFilePath.toString());
+        WatcherHandle<FileWatcher> handle = watcherHandles.get(indexFilePath);
+        if (handle != null) {
+            unregister(indexFilePath, handle);
+        }
+        KNNWeight.knnIndexCache.invalidate(indexFilePath.toString());
     }
 }
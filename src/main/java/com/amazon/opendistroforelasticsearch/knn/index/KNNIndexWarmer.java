@@ -0,0 +1,126 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNCodec;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngines;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexShard;
+
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads the graphs of a shard into the cache ahead of the queries, so that the first queries after a restart or
+ * a relocation do not pay for loading them.
+ */
+public final class KNNIndexWarmer {
+
+    private static Logger logger = LogManager.getLogger(KNNIndexWarmer.class);
+
+    /**
+     * Name of the thread pool loading graphs during warmups
+     */
+    public static final String WARMUP_THREAD_POOL = "knn_warmup";
+
+    private KNNIndexWarmer() {}
+
+    /**
+     * Loads every graph of the shard into the cache, several at a time, and waits for them to be loaded
+     *
+     * @param indexShard shard to warm up
+     * @param executor executor to load the graphs on. Must not be the one running this method.
+     * @return number of graphs of the shard now in the cache
+     * @throws IOException if the segments of the shard cannot be listed
+     */
+    public static int warmup(IndexShard indexShard, Executor executor) throws IOException {
+        Map<String, SpaceType> graphPaths = new LinkedHashMap<>();
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("knn-warmup")) {
+            for (LeafReaderContext leaf : searcher.reader().leaves()) {
+                SegmentReader reader = (SegmentReader) FilterLeafReader.unwrap(leaf.reader());
+                String directory = ((FSDirectory) FilterDirectory.unwrap(reader.directory())).getDirectory().toString();
+                String hnswFileExtension = reader.getSegmentInfo().info.getUseCompoundFile()
+                                                   ? KNNCodec.HNSW_COMPOUND_EXTENSION : KNNCodec.HNSW_EXTENSION;
+                for (FieldInfo field : reader.getFieldInfos()) {
+                    if (!field.attributes().containsKey(KNNVectorFieldMapper.KNN_FIELD)) {
+                        continue;
+                    }
+                    SpaceType spaceType = SpaceType.getSpace(field.getAttribute(KNNConstants.SPACE_TYPE));
+                    for (String fileName : reader.getSegmentInfo().files()) {
+                        if (KNNGraphEngines.isGraphFile(fileName, reader.getSegmentName(), field.name,
+                                hnswFileExtension)) {
+                            graphPaths.put(PathUtils.get(directory, fileName).toString(), spaceType);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<CompletableFuture<Boolean>> loads = new ArrayList<>(graphPaths.size());
+        for (Map.Entry<String, SpaceType> graph : graphPaths.entrySet()) {
+            loads.add(CompletableFuture.supplyAsync(() -> load(graph.getKey(), graph.getValue()), executor));
+        }
+
+        int loaded = 0;
+        for (CompletableFuture<Boolean> load : loads) {
+            if (load.join()) {
+                loaded++;
+            }
+        }
+        logger.info("[KNN] Warmed up {} of {} graphs for shard {}", loaded, graphPaths.size(), indexShard.shardId());
+        return loaded;
+    }
+
+    /**
+     * Loads the graph into the cache unless it is there already
+     *
+     * @param graphPath path of the graph file
+     * @param spaceType space the graph was built in
+     * @return true if the graph is in the cache, false if it could not be loaded or was not kept in the cache
+     */
+    static boolean load(String graphPath, SpaceType spaceType) {
+        return AccessController.doPrivileged(
+                new PrivilegedAction<Boolean>() {
+                    public Boolean run() {
+                        try {
+                            return KNNIndexCache.getInstance().preload(graphPath, spaceType);
+                        } catch (CircuitBreakingException e) {
+                            logger.debug("[KNN] Skipped loading {}: {}", graphPath, e.getMessage());
+                            return false;
+                        }
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNQuantizedVectors;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+
+/**
+ * Searches the quantized vectors of a field with a reduced precision encoding in a segment too small for a graph.
+ * The quantized vectors are scanned to collect the nearest candidates by their approximate distance, which are then
+ * re-scored against the full precision doc values, so only a few full precision vectors are read per query.
+ */
+final class KNNQuantizedSearcher {
+
+    private KNNQuantizedSearcher() {}
+
+    /**
+     * Finds the k docs nearest to the query vector
+     *
+     * @param reader segment reader
+     * @param field knn vector field
+     * @param spaceType space of the field
+     * @param quantizedVectors quantized vectors of the field in the segment
+     * @param queryVector query vector
+     * @param acceptDocs docs that can be returned, or null if every doc with a vector can be returned
+     * @param k number of neighbours to return
+     * @param rescoreFactor number of candidates re-scored per neighbour, or 0 to rank the docs by their quantized distance
+     * @param docs buffer of at least k elements to write the doc ids to
+     * @param scores buffer of at least k elements to write the scores to
+     * @return number of results written to the buffers, in no particular order
+     * @throws IOException if the vectors cannot be read
+     */
+    static int search(LeafReader reader, String field, SpaceType spaceType, KNNQuantizedVectors quantizedVectors,
+                      float[] queryVector, Bits acceptDocs, int k, int rescoreFactor, int[] docs, float[] scores)
+            throws IOException {
+        if (quantizedVectors.dimension() != queryVector.length) {
+            throw new IllegalArgumentException(String.format("Query vector dimension mismatch. Expected: %d, Given: %d",
+                    quantizedVectors.dimension(), queryVector.length));
+        }
+
+        int[] candidateDocs = docs;
+        float[] candidateDistances = scores;
+        int candidateCount = k;
+        if (rescoreFactor > 0) {
+            candidateCount = (int) Math.min((long) k * rescoreFactor, Math.max(k, quantizedVectors.size()));
+            candidateDocs = new int[candidateCount];
+            candidateDistances = new float[candidateCount];
+        }
+
+        float[] vector = new float[queryVector.length];
+        int size = 0;
+        KNNQuantizedVectors.VectorIterator iterator = quantizedVectors.iterator();
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            if (acceptDocs != null && !acceptDocs.get(doc)) {
+                continue;
+            }
+            iterator.vector(vector);
+            size = KNNExactSearcher.offer(candidateDocs, candidateDistances, candidateCount, size, doc,
+                    spaceType.distance(queryVector, vector));
+        }
+
+        if (rescoreFactor > 0) {
+            size = KNNExactSearcher.rescore(reader, field, spaceType, queryVector, candidateDocs, candidateDistances, size,
+                    k, docs, scores);
+        }
+
+        for (int i = 0; i < size; i++) {
+            scores[i] = spaceType.score(scores[i]);
+        }
+        return size;
+    }
+}
@@ -21,6 +21,7 @@ import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.Weight;
 
 import java.io.IOException;
+import java.util.Objects;
 
 /**
  * Class for representing the KNN query
@@ -30,11 +31,30 @@ public class KNNQuery extends Query {
     private final String field;
     private final float[] queryVector;
     private final int k;
+    private final Query filterQuery;
+    private final boolean exact;
 
     public KNNQuery(String field, float[] queryVector, int k) {
+        this(field, queryVector, k, null, false);
+    }
+
+    public KNNQuery(String field, float[] queryVector, int k, Query filterQuery) {
+        this(field, queryVector, k, filterQuery, false);
+    }
+
+    /**
+     * @param field knn vector field
+     * @param queryVector query vector
+     * @param k number of neighbours to return per segment
+     * @param filterQuery query the neighbours have to match, or null
+     * @param exact whether to score every candidate from doc values instead of searching the graphs
+     */
+    public KNNQuery(String field, float[] queryVector, int k, Query filterQuery, boolean exact) {
         this.field = field;
         this.queryVector = queryVector;
         this.k = k;
+        this.filterQuery = filterQuery;
+        this.exact = exact;
     }
 
     public String getField() {
@@ -49,6 +69,14 @@ public class KNNQuery extends Query {
         return this.k;
     }
 
+    public Query getFilterQuery() {
+        return this.filterQuery;
+    }
+
+    public boolean isExact() {
+        return this.exact;
+    }
+
     /**
      * Constructs Weight implementation for this query
      *
@@ -62,7 +90,11 @@ public class KNNQuery extends Query {
         if (!KNNSettings.isKNNPluginEnabled()) {
             throw new IllegalStateException("KNN plugin is disabled. To enable update knn.plugin.enabled to true");
         }
-        return new KNNWeight(this, boost);
+        Weight filterWeight = null;
+        if (filterQuery != null) {
+            filterWeight = searcher.createWeight(searcher.rewrite(filterQuery), ScoreMode.COMPLETE_NO_SCORES, 1f);
+        }
+        return new KNNWeight(this, boost, filterWeight);
     }
 
     @Override
@@ -72,7 +104,7 @@ public class KNNQuery extends Query {
 
     @Override
     public int hashCode() {
-        return field.hashCode() ^ queryVector.hashCode() ^ k;
+        return field.hashCode() ^ queryVector.hashCode() ^ k ^ Objects.hashCode(filterQuery) ^ Boolean.hashCode(exact);
     }
 
     @Override
@@ -82,6 +114,7 @@ public class KNNQuery extends Query {
     }
 
     private boolean equalsTo(KNNQuery other) {
-        return this.field.equals(other.getField()) && this.queryVector.equals(other.getQueryVector()) && this.k == other.getK();
+        return this.field.equals(other.getField()) && this.queryVector.equals(other.getQueryVector()) && this.k == other.getK()
+                       && Objects.equals(this.filterQuery, other.getFilterQuery()) && this.exact == other.isExact();
     }
 };
@@ -26,9 +26,13 @@ import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.QueryShardContext;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -39,6 +43,16 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
     private static Logger logger = LogManager.getLogger(KNNQueryBuilder.class);
     public static final ParseField VECTOR_FIELD = new ParseField("vector");
     public static final ParseField K_FIELD = new ParseField("k");
+    public static final ParseField FILTER_FIELD = new ParseField("filter");
+    public static final ParseField METHOD_FIELD = new ParseField("method");
+    /**
+     * Searches the per segment graphs for the approximate nearest neighbours
+     */
+    public static final String METHOD_APPROXIMATE = "approximate";
+    /**
+     * Scores every candidate from doc values for the exact nearest neighbours
+     */
+    public static final String METHOD_EXACT = "exact";
     public static int K_MAX = 10000;
     /**
      * The name for the knn query
@@ -50,6 +64,8 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
     private final String fieldName;
     private final float[] vector;
     private int k = 0;
+    private final QueryBuilder filter;
+    private boolean exact = false;
 
     /**
      * Constructs a new knn query
@@ -59,6 +75,18 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
      * @param k         K nearest neighbours for the given vector
      */
     public KNNQueryBuilder(String fieldName, float[] vector, int k) {
+        this(fieldName, vector, k, null);
+    }
+
+    /**
+     * Constructs a new knn query that only returns neighbours matching the filter
+     *
+     * @param fieldName Name of the filed
+     * @param vector    Array of floating points
+     * @param k         K nearest neighbours for the given vector
+     * @param filter    Query the neighbours have to match, or null to consider all the docs
+     */
+    public KNNQueryBuilder(String fieldName, float[] vector, int k, QueryBuilder filter) {
         if (Strings.isNullOrEmpty(fieldName)) {
             throw new IllegalArgumentException("[" + NAME + "] requires fieldName");
         }
@@ -78,6 +106,7 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
         this.fieldName = fieldName;
         this.vector = vector;
         this.k = k;
+        this.filter = filter;
     }
 
     private static float[] ObjectsToFloats(List<Object> objs) {
@@ -97,6 +126,8 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
         fieldName = in.readString();
         vector = in.readFloatArray();
         k = in.readInt();
+        filter = in.readOptionalNamedWriteable(QueryBuilder.class);
+        exact = in.readBoolean();
     }
 
     public static KNNQueryBuilder fromXContent(XContentParser parser) throws IOException {
@@ -104,6 +135,8 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
         List<Object> vector = null;
         float boost = AbstractQueryBuilder.DEFAULT_BOOST;
         int k = 0;
+        QueryBuilder filter = null;
+        String method = METHOD_APPROXIMATE;
         String queryName = null;
         String currentFieldName = null;
         XContentParser.Token token;
@@ -116,6 +149,9 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
                 while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
                     if (token == XContentParser.Token.FIELD_NAME) {
                         currentFieldName = parser.currentName();
+                    } else if (token == XContentParser.Token.START_OBJECT
+                                       && FILTER_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                        filter = parseInnerQueryBuilder(parser);
                     } else if (token.isValue() || token == XContentParser.Token.START_ARRAY) {
                         if (VECTOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             vector = parser.list();
@@ -123,6 +159,8 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
                             boost = parser.floatValue();
                         } else if (K_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             k = parser.intValue();
+                        } else if (METHOD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            method = parser.text();
                         } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             queryName = parser.text();
                         } else {
@@ -141,7 +179,13 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
             }
         }
 
-        KNNQueryBuilder knnQuery = new KNNQueryBuilder(fieldName, ObjectsToFloats(vector), k);
+        if (!METHOD_APPROXIMATE.equals(method) && !METHOD_EXACT.equals(method)) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] unknown method [" + method + "], expected ["
+                                                                         + METHOD_APPROXIMATE + "] or [" + METHOD_EXACT + "]");
+        }
+
+        KNNQueryBuilder knnQuery = new KNNQueryBuilder(fieldName, ObjectsToFloats(vector), k, filter);
+        knnQuery.exact(METHOD_EXACT.equals(method));
         knnQuery.queryName(queryName);
         knnQuery.boost(boost);
         return knnQuery;
@@ -152,6 +196,8 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
         out.writeString(fieldName);
         out.writeFloatArray(vector);
         out.writeInt(k);
+        out.writeOptionalNamedWriteable(filter);
+        out.writeBoolean(exact);
     }
 
     /**
@@ -172,6 +218,29 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
         return this.k;
     }
 
+    /**
+     * @return The filter the neighbours have to match, or null if there is none
+     */
+    public QueryBuilder filter() {
+        return this.filter;
+    }
+
+    /**
+     * @param exact whether to score every candidate instead of searching the graphs
+     * @return this query
+     */
+    public KNNQueryBuilder exact(boolean exact) {
+        this.exact = exact;
+        return this;
+    }
+
+    /**
+     * @return Whether every candidate is scored instead of searching the graphs
+     */
+    public boolean exact() {
+        return this.exact;
+    }
+
     @Override
     public void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
@@ -179,6 +248,12 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
 
         builder.field(VECTOR_FIELD.getPreferredName(), vector);
         builder.field(K_FIELD.getPreferredName(), k);
+        if (filter != null) {
+            builder.field(FILTER_FIELD.getPreferredName(), filter);
+        }
+        if (exact) {
+            builder.field(METHOD_FIELD.getPreferredName(), METHOD_EXACT);
+        }
         printBoostAndQueryName(builder);
         builder.endObject();
         builder.endObject();
@@ -186,19 +261,36 @@ public class KNNQueryBuilder extends AbstractQueryBuilder<KNNQueryBuilder> {
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        return new KNNQuery(this.fieldName, vector, k);
+        Query filterQuery = filter == null ? null : filter.toQuery(context);
+        return new KNNQuery(this.fieldName, vector, k, filterQuery, exact);
+    }
+
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException {
+        if (filter != null) {
+            QueryBuilder rewrittenFilter = filter.rewrite(context);
+            if (rewrittenFilter instanceof MatchNoneQueryBuilder) {
+                return rewrittenFilter;
+            }
+            if (rewrittenFilter != filter) {
+                return new KNNQueryBuilder(fieldName, vector, k, rewrittenFilter).exact(exact);
+            }
+        }
+        return super.doRewrite(context);
     }
 
     @Override
     protected boolean doEquals(KNNQueryBuilder other) {
         return Objects.equals(fieldName, other.fieldName) &&
-                       Objects.equals(vector, other.vector) &&
-                       Objects.equals(k, other.k);
+                       Arrays.equals(vector, other.vector) &&
+                       Objects.equals(k, other.k) &&
+                       Objects.equals(filter, other.filter) &&
+                       exact == other.exact;
     }
 
     @Override
     protected int doHashCode() {
-        return Objects.hash(fieldName, vector, k);
+        return Objects.hash(fieldName, Arrays.hashCode(vector), k, filter, exact);
     }
 
     @Override
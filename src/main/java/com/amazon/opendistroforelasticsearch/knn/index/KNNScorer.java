@@ -18,9 +18,10 @@ package com.amazon.opendistroforelasticsearch.knn.index;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.IntroSorter;
 
 import java.io.IOException;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * <p>
@@ -29,19 +30,66 @@ import java.util.Map;
  * </p>
  * <p>
  * Document scores are computed using nmslib via JNI implementation.
+ * Matching docs and their scores are held in a pair of parallel arrays sorted by doc id,
+ * and the iterator advances over them by index.
  * </p>
  */
 public class KNNScorer extends Scorer {
 
-    private final DocIdSetIterator docIdsIter;
-    private final Map<Integer, Float> scores;
+    private final int[] docs;
+    private final float[] scores;
+    private final int size;
     private final float boost;
+    private final DocIdSetIterator docIdsIter;
+    private int index = -1;
 
-    public KNNScorer(Weight weight, DocIdSetIterator docIdsIter, Map<Integer, Float> scores, float boost) {
+    /**
+     * @param weight weight of the query
+     * @param docs matching doc ids, sorted in increasing order
+     * @param scores scores of the matching docs, parallel to docs
+     * @param size number of valid entries in docs and scores
+     * @param boost boost of the query
+     */
+    public KNNScorer(Weight weight, int[] docs, float[] scores, int size, float boost) {
         super(weight);
-        this.docIdsIter = docIdsIter;
+        this.docs = docs;
         this.scores = scores;
+        this.size = size;
         this.boost = boost;
+        this.docIdsIter = new ArrayDocIdSetIterator();
+    }
+
+    /**
+     * Sorts the first size entries of the parallel doc and score arrays in increasing order of doc id
+     *
+     * @param docs doc ids
+     * @param scores scores of the docs
+     * @param size number of valid entries
+     */
+    public static void sortByDoc(int[] docs, float[] scores, int size) {
+        new IntroSorter() {
+            private int pivot;
+
+            @Override
+            protected void swap(int i, int j) {
+                int doc = docs[i];
+                docs[i] = docs[j];
+                docs[j] = doc;
+                float score = scores[i];
+                scores[i] = scores[j];
+                scores[j] = score;
+            }
+
+            @Override
+            protected void setPivot(int i) {
+                pivot = docs[i];
+            }
+
+            @Override
+            protected int comparePivot(int j) {
+                return Integer.compare(pivot, docs[j]);
+            }
+        }.sort(0, size);
     }
 
     @Override
@@ -57,15 +105,45 @@ public class KNNScorer extends Scorer {
     @Override
     public float score() {
         assert docID() != DocIdSetIterator.NO_MORE_DOCS;
-        Float score = scores.get(docID());
-        if (score == null)
-            throw new RuntimeException("Null score for the docID: " + docID());
-        return score;
+        return scores[index];
     }
 
     @Override
     public int docID() {
         return docIdsIter.docID();
     }
-}
 
+    private class ArrayDocIdSetIterator extends DocIdSetIterator {
+
+        @Override
+        public int docID() {
+            if (index < 0) {
+                return -1;
+            }
+            return index < size ? docs[index] : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int nextDoc() {
+            if (index < size) {
+                index++;
+            }
+            return docID();
+        }
+
+        @Override
+        public int advance(int target) {
+            if (index < size) {
+                int from = Math.max(index + 1, 0);
+                int position = Arrays.binarySearch(docs, from, size, target);
+                index = position >= 0 ? position : -position - 1;
+            }
+            return docID();
+        }
+
+        @Override
+        public long cost() {
+            return size;
+        }
+    }
+}
@@ -67,14 +67,30 @@ public class KNNSettings {
     public static final String KNN_ALGO_PARAM_EF_CONSTRUCTION = "index.knn.algo_param.ef_construction";
     public static final String KNN_ALGO_PARAM_EF_SEARCH = "index.knn.algo_param.ef_search";
     public static final String KNN_ALGO_PARAM_INDEX_THREAD_QTY = "knn.algo_param.index_thread_qty";
+    public static final String KNN_GRAPH_BUILD_THRESHOLD = "index.knn.graph_build_threshold";
+    public static final String KNN_QUANTIZATION_RESCORE_FACTOR = "index.knn.quantization.rescore_factor";
+    public static final String KNN_ALGO_PARAM_IVF_NLIST = "index.knn.algo_param.ivf_nlist";
+    public static final String KNN_ALGO_PARAM_IVF_NPROBE = "index.knn.algo_param.ivf_nprobe";
+    public static final String KNN_ALGO_PARAM_PQ_M = "index.knn.algo_param.pq_m";
+    public static final String KNN_WARMUP_ON_START = "index.knn.warmup_on_start";
+    public static final String KNN_CACHE_QUOTA = "index.knn.cache.quota";
+    public static final String KNN_CACHE_PRIORITY = "index.knn.cache.priority";
     public static final String KNN_MEMORY_CIRCUIT_BREAKER_ENABLED = "knn.memory.circuit_breaker.enabled";
     public static final String KNN_MEMORY_CIRCUIT_BREAKER_LIMIT = "knn.memory.circuit_breaker.limit";
     public static final String KNN_CIRCUIT_BREAKER_TRIGGERED = "knn.circuit_breaker.triggered";
     public static final String KNN_CACHE_ITEM_EXPIRY_ENABLED = "knn.cache.item.expiry.enabled";
     public static final String KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES = "knn.cache.item.expiry.minutes";
+    public static final String KNN_CACHE_PRELOAD_NEW_SEGMENTS = "knn.cache.preload_new_segments";
+    public static final String KNN_CACHE_ADMISSION_POLICY = "knn.cache.admission_policy";
     public static final String KNN_PLUGIN_ENABLED = "knn.plugin.enabled";
     public static final String KNN_CIRCUIT_BREAKER_UNSET_PERCENTAGE = "knn.circuit_breaker.unset.percentage";
 
+    /**
+     * Values of knn.cache.admission_policy
+     */
+    public static final String ADMISSION_POLICY_LRU = "lru";
+    public static final String ADMISSION_POLICY_TINYLFU = "tinylfu";
+
     /**
      * Settings Definition
      */
@@ -109,6 +125,86 @@ public class KNNSettings {
             2,
             IndexScope);
 
+    /**
+     * graph_build_threshold - the minimum number of vectors in a segment for a graph to be built for it.
+     * Smaller segments are written without a graph and queries on them are answered by scoring every vector.
+     * Small segments are typically merged away soon after being flushed, so this saves building graphs
+     * that are only ever loaded once, if at all.
+     */
+    public static final Setting<Integer> INDEX_KNN_GRAPH_BUILD_THRESHOLD_SETTING =  Setting.intSetting(KNN_GRAPH_BUILD_THRESHOLD,
+            0,
+            0,
+            IndexScope);
+
+    /**
+     * ivf_nlist - the number of lists the vectors of a segment are partitioned into by the ivf_pq engine, around as
+     * many centroids. 0 uses the square root of the number of vectors in the segment.
+     */
+    public static final Setting<Integer> INDEX_KNN_ALGO_PARAM_IVF_NLIST_SETTING =  Setting.intSetting(KNN_ALGO_PARAM_IVF_NLIST,
+            0,
+            0,
+            IndexScope);
+
+    /**
+     * ivf_nprobe - the number of lists scanned by a search on the ivf_pq engine, those with the centroids nearest to
+     * the query. Higher nprobe leads to more accurate but slower search.
+     */
+    public static final Setting<Integer> INDEX_KNN_ALGO_PARAM_IVF_NPROBE_SETTING =  Setting.intSetting(KNN_ALGO_PARAM_IVF_NPROBE,
+            8,
+            1,
+            IndexScope);
+
+    /**
+     * pq_m - the number of sub-vectors the ivf_pq engine splits vectors into, each quantized to one byte. It is the
+     * number of bytes a vector takes in the index, whatever its dimension. Higher m leads to more accurate distances
+     * but a bigger index.
+     */
+    public static final Setting<Integer> INDEX_KNN_ALGO_PARAM_PQ_M_SETTING =  Setting.intSetting(KNN_ALGO_PARAM_PQ_M,
+            16,
+            1,
+            IndexScope);
+
+    /**
+     * quantization.rescore_factor - searches on fields with a reduced precision encoding or on the ivf_pq engine
+     * collect rescore_factor * k candidates from the quantized vectors and re-score them against the full precision
+     * vectors to pick the top k.
+     * Higher values recover more of the accuracy lost to quantization at the cost of reading more doc values.
+     * 0 returns the top k by their quantized distance.
+     */
+    public static final Setting<Integer> INDEX_KNN_QUANTIZATION_RESCORE_FACTOR_SETTING =  Setting.intSetting(KNN_QUANTIZATION_RESCORE_FACTOR,
+            2,
+            0,
+            IndexScope);
+
+    /**
+     * warmup_on_start - whether the graphs of a shard are loaded into the cache as soon as the shard starts, so that
+     * the first queries after a restart or a relocation do not pay for loading them.
+     */
+    public static final Setting<Boolean> INDEX_KNN_WARMUP_ON_START_SETTING =  Setting.boolSetting(KNN_WARMUP_ON_START,
+            false,
+            IndexScope,
+            Dynamic);
+
+    /**
+     * cache.quota - the maximum memory the graphs of the index can take up in the cache of a node. Once reached,
+     * loading a graph of the index evicts the least recently used graphs of the same index rather than those of
+     * other indices. 0 means the index is only limited by the circuit breaker limit.
+     */
+    public static final Setting<ByteSizeValue> INDEX_KNN_CACHE_QUOTA_SETTING =  Setting.byteSizeSetting(KNN_CACHE_QUOTA,
+            new ByteSizeValue(0),
+            IndexScope,
+            Dynamic);
+
+    /**
+     * cache.priority - when the cache of a node is full, graphs of indices with a lower priority are evicted before
+     * any graph of an index with a higher priority.
+     */
+    public static final Setting<Integer> INDEX_KNN_CACHE_PRIORITY_SETTING =  Setting.intSetting(KNN_CACHE_PRIORITY,
+            0,
+            0,
+            IndexScope,
+            Dynamic);
+
     /**
      * index_thread_quantity - the parameter specifies how many threads the nms library should use to create the graph.
      * By default, the nms library sets this value to NUM_CORES. However, because ES can spawn NUM_CORES threads for
@@ -155,6 +251,19 @@ public class KNNSettings {
              */
             put(KNN_CACHE_ITEM_EXPIRY_ENABLED, Setting.boolSetting(KNN_CACHE_ITEM_EXPIRY_ENABLED, false, NodeScope, Dynamic));
             put(KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES, Setting.positiveTimeSetting(KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES, TimeValue.timeValueHours(3), NodeScope, Dynamic));
+
+            /**
+             * Whether the graphs of a segment are loaded in the background as soon as the segment is opened,
+             * after a refresh or a merge, rather than by the first query on it
+             */
+            put(KNN_CACHE_PRELOAD_NEW_SEGMENTS, Setting.boolSetting(KNN_CACHE_PRELOAD_NEW_SEGMENTS, false, NodeScope, Dynamic));
+
+            /**
+             * Which graphs are kept when the cache is full: lru admits every loaded graph and evicts the least
+             * recently used ones, tinylfu only admits a graph if it is accessed more often than those it would evict
+             */
+            put(KNN_CACHE_ADMISSION_POLICY, new Setting<>(KNN_CACHE_ADMISSION_POLICY, ADMISSION_POLICY_LRU,
+                    KNNSettings::parseAdmissionPolicy, NodeScope, Dynamic));
         }
     };
 
@@ -180,13 +289,12 @@ public class KNNSettings {
                     newVal -> {
                         logger.debug("The value of setting [{}] changed to [{}]", setting.getKey(), newVal);
                         latestSettings.put(setting.getKey(), newVal);
-                        // spawn a thread
-                        KNNWeight.knnIndexCache.rebuild();
+                        KNNWeight.knnIndexCache.updateSettings();
                     });
         }
 
         /**
-         * We do not have to rebuild the cache for below settings
+         * The cache does not depend on below settings
          */
         clusterService.getClusterSettings().addSettingsUpdateConsumer(
                 KNN_CIRCUIT_BREAKER_TRIGGERED_SETTING,
@@ -219,6 +327,20 @@ public class KNNSettings {
         return (T) latestSettings.getOrDefault(key, getSetting(key).getDefault(Settings.EMPTY));
     }
 
+    /**
+     * Overrides the value of a setting, as a settings update would. A null value restores the default.
+     *
+     * @param key setting key
+     * @param value new value of the setting
+     */
+    void setSettingValue(String key, Object value) {
+        if (value == null) {
+            latestSettings.remove(key);
+        } else {
+            latestSettings.put(key, value);
+        }
+    }
+
     public Setting<?> getSetting(String key) {
         if (dynamicCacheSettings.containsKey(key)) {
             return dynamicCacheSettings.get(key);
@@ -243,6 +365,14 @@ public class KNNSettings {
         List<Setting<?>> settings =  Arrays.asList(INDEX_KNN_ALGO_PARAM_M_SETTING,
                 INDEX_KNN_ALGO_PARAM_EF_CONSTRUCTION_SETTING,
                 INDEX_KNN_ALGO_PARAM_EF_SEARCH_SETTING,
+                INDEX_KNN_GRAPH_BUILD_THRESHOLD_SETTING,
+                INDEX_KNN_QUANTIZATION_RESCORE_FACTOR_SETTING,
+                INDEX_KNN_ALGO_PARAM_IVF_NLIST_SETTING,
+                INDEX_KNN_ALGO_PARAM_IVF_NPROBE_SETTING,
+                INDEX_KNN_ALGO_PARAM_PQ_M_SETTING,
+                INDEX_KNN_WARMUP_ON_START_SETTING,
+                INDEX_KNN_CACHE_QUOTA_SETTING,
+                INDEX_KNN_CACHE_PRIORITY_SETTING,
                 KNN_ALGO_PARAM_INDEX_THREAD_QTY_SETTING,
                 KNN_CIRCUIT_BREAKER_TRIGGERED_SETTING,
                 KNN_CIRCUIT_BREAKER_UNSET_PERCENTAGE_SETTING);
@@ -309,6 +439,14 @@ public class KNNSettings {
         }
     }
 
+    public static String parseAdmissionPolicy(String value) {
+        if (!ADMISSION_POLICY_LRU.equals(value) && !ADMISSION_POLICY_TINYLFU.equals(value)) {
+            throw new IllegalArgumentException("Unknown value [" + value + "] for [" + KNN_CACHE_ADMISSION_POLICY
+                    + "], expected [" + ADMISSION_POLICY_LRU + "] or [" + ADMISSION_POLICY_TINYLFU + "]");
+        }
+        return value;
+    }
+
     /**
      * Updates knn.circuit_breaker.triggered setting to true/false
      * @param flag true/false
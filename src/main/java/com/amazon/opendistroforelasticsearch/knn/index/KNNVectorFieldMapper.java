@@ -15,6 +15,9 @@
 
 package com.amazon.opendistroforelasticsearch.knn.index;
 
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngines;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw.KNNHnswGraphEngine;
 import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
 
 import org.apache.lucene.document.StoredField;
@@ -66,6 +69,9 @@ public class KNNVectorFieldMapper extends FieldMapper implements ArrayValueMappe
 
     public static class Names {
         public static final String IGNORE_MALFORMED = "ignore_malformed";
+        public static final String SPACE_TYPE = "space_type";
+        public static final String ENCODING = "encoding";
+        public static final String ENGINE = "engine";
     }
 
     public static class Defaults {
@@ -139,6 +145,11 @@ public class KNNVectorFieldMapper extends FieldMapper implements ArrayValueMappe
             builder.algoParams(KNNConstants.HNSW_ALGO_M, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_ALGO_PARAM_M_SETTING));
             builder.algoParams(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_ALGO_PARAM_EF_CONSTRUCTION_SETTING));
             builder.algoParams(KNNConstants.HNSW_ALGO_EF_SEARCH, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_ALGO_PARAM_EF_SEARCH_SETTING));
+            builder.algoParams(KNNConstants.GRAPH_BUILD_THRESHOLD, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_GRAPH_BUILD_THRESHOLD_SETTING));
+            builder.algoParams(KNNConstants.RESCORE_FACTOR, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_QUANTIZATION_RESCORE_FACTOR_SETTING));
+            builder.algoParams(KNNConstants.IVF_NLIST, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_ALGO_PARAM_IVF_NLIST_SETTING));
+            builder.algoParams(KNNConstants.IVF_NPROBE, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_ALGO_PARAM_IVF_NPROBE_SETTING));
+            builder.algoParams(KNNConstants.PQ_M, parserContext.getIndexAnalyzers().getIndexSettings().getValue(KNNSettings.INDEX_KNN_ALGO_PARAM_PQ_M_SETTING));
 
 
             /**
@@ -170,7 +181,85 @@ public class KNNVectorFieldMapper extends FieldMapper implements ArrayValueMappe
                 }
             }
 
+            /**
+             * The graphs are built in the space of the field, so it cannot be changed either
+             */
+            Object spaceTypeNode = node.remove(Names.SPACE_TYPE);
+            SpaceType spaceType;
+            try {
+                spaceType = SpaceType.getSpace(spaceTypeNode == null ? null : XContentMapValues.nodeStringValue(spaceTypeNode, null));
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException(e.getMessage() + " for vector: " + name);
+            }
+            for (MappedFieldType fieldType : parserContext.mapperService().fieldTypes()) {
+                if (name.equals(fieldType.name())) {
+                    SpaceType originalSpaceType = ((KNNVectorFieldType) fieldType).spaceType;
+                    if (originalSpaceType != spaceType) {
+                        throw new MapperParsingException(String.format("Space type cannot be updated. Previous value: %s, Current value: %s",
+                                originalSpaceType.getValue(), spaceType.getValue()));
+                    }
+                }
+            }
+
+            /**
+             * Existing segments hold their vectors in the encoding of the field, so it cannot be changed either
+             */
+            Object encodingNode = node.remove(Names.ENCODING);
+            VectorEncoding encoding;
+            try {
+                encoding = VectorEncoding.getEncoding(encodingNode == null ? null : XContentMapValues.nodeStringValue(encodingNode, null));
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException(e.getMessage() + " for vector: " + name);
+            }
+            for (MappedFieldType fieldType : parserContext.mapperService().fieldTypes()) {
+                if (name.equals(fieldType.name())) {
+                    VectorEncoding originalEncoding = ((KNNVectorFieldType) fieldType).encoding;
+                    if (originalEncoding != encoding) {
+                        throw new MapperParsingException(String.format("Encoding cannot be updated. Previous value: %s, Current value: %s",
+                                originalEncoding.getValue(), encoding.getValue()));
+                    }
+                }
+            }
+
+            /**
+             * Existing segments are indexed by the engine of the field, so it cannot be changed either. Any engine
+             * registered as a graph engine can be mapped.
+             */
+            Object engineNode = node.remove(Names.ENGINE);
+            KNNGraphEngine engine;
+            try {
+                engine = KNNGraphEngines.parse(engineNode == null ? null : XContentMapValues.nodeStringValue(engineNode, null));
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException(e.getMessage() + " for vector: " + name);
+            }
+            // A field in a space its engine cannot build graphs in would never get a graph
+            if (!engine.supports(spaceType)) {
+                throw new MapperParsingException(String.format("Engine %s does not support space type %s for vector: %s, "
+                        + "use engine %s which supports every space type", engine.getName(), spaceType.getValue(), name,
+                        KNNHnswGraphEngine.NAME));
+            }
+            if (!engine.supports(encoding)) {
+                throw new MapperParsingException(String.format("Engine %s cannot hold vectors with encoding %s for vector: %s",
+                        engine.getName(), encoding.getValue(), name));
+            }
+            for (MappedFieldType fieldType : parserContext.mapperService().fieldTypes()) {
+                if (name.equals(fieldType.name())) {
+                    String originalEngine = ((KNNVectorFieldType) fieldType).engine;
+                    if (!originalEngine.equals(engine.getName())) {
+                        throw new MapperParsingException(String.format("Engine cannot be updated. Previous value: %s, Current value: %s",
+                                originalEngine, engine.getName()));
+                    }
+                }
+            }
+
             builder.fieldType().dimension = dimensionValue;
+            builder.fieldType().putAttribute(KNNConstants.DIMENSION, String.valueOf(dimensionValue));
+            builder.fieldType().spaceType = spaceType;
+            builder.fieldType().putAttribute(KNNConstants.SPACE_TYPE, spaceType.getValue());
+            builder.fieldType().encoding = encoding;
+            builder.fieldType().putAttribute(KNNConstants.ENCODING, encoding.getValue());
+            builder.fieldType().engine = engine.getName();
+            builder.fieldType().putAttribute(KNNConstants.ENGINE, engine.getName());
             TypeParsers.parseField(builder, name, node, parserContext);
             for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext(); ) {
                 Map.Entry<String, Object> entry = iterator.next();
@@ -199,12 +288,39 @@ public class KNNVectorFieldMapper extends FieldMapper implements ArrayValueMappe
     public static class KNNVectorFieldType extends MappedFieldType {
 
         int dimension = -1;
+        SpaceType spaceType = SpaceType.DEFAULT;
+        VectorEncoding encoding = VectorEncoding.DEFAULT;
+        String engine = KNNGraphEngines.DEFAULT_ENGINE;
 
         public KNNVectorFieldType() {
         }
 
         KNNVectorFieldType(KNNVectorFieldType ref) {
             super(ref);
+            this.spaceType = ref.spaceType;
+            this.encoding = ref.encoding;
+            this.engine = ref.engine;
+        }
+
+        /**
+         * @return space the vectors of the field are searched in
+         */
+        public SpaceType getSpaceType() {
+            return spaceType;
+        }
+
+        /**
+         * @return precision the vectors of the field are searched at
+         */
+        public VectorEncoding getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * @return name of the graph engine the field is indexed with
+         */
+        public String getEngine() {
+            return engine;
         }
 
         @Override
@@ -285,5 +401,14 @@ public class KNNVectorFieldMapper extends FieldMapper implements ArrayValueMappe
             builder.field(Names.IGNORE_MALFORMED, ignoreMalformed.value());
         }
         builder.field("dimension", fieldType().dimension);
+        if (includeDefaults || fieldType().spaceType != SpaceType.DEFAULT) {
+            builder.field(Names.SPACE_TYPE, fieldType().spaceType.getValue());
+        }
+        if (includeDefaults || fieldType().encoding != VectorEncoding.DEFAULT) {
+            builder.field(Names.ENCODING, fieldType().encoding.getValue());
+        }
+        if (includeDefaults || !fieldType().engine.equals(KNNGraphEngines.DEFAULT_ENGINE)) {
+            builder.field(Names.ENGINE, fieldType().engine);
+        }
     }
 }
@@ -16,11 +16,18 @@
 package com.amazon.opendistroforelasticsearch.knn.index;
 
 import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNCodec;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNQuantizedVectors;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNSegmentIndex;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNSegmentIndexBinaryDocValues;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngines;
 import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
-import com.amazon.opendistroforelasticsearch.knn.index.v1736.KNNIndex;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FilterLeafReader;
 import org.apache.lucene.index.LeafReaderContext;
@@ -32,17 +39,17 @@ import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.FilterDirectory;
-import org.apache.lucene.util.DocIdSetBuilder;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
 import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
 
 import java.io.IOException;
-import java.nio.file.Path;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -53,13 +60,19 @@ public class KNNWeight extends Weight {
     private static Logger logger = LogManager.getLogger(KNNWeight.class);
     private final KNNQuery knnQuery;
     private final float boost;
+    private final Weight filterWeight;
 
     public static KNNIndexCache knnIndexCache = KNNIndexCache.getInstance();
 
     public KNNWeight(KNNQuery query, float boost) {
+        this(query, boost, null);
+    }
+
+    public KNNWeight(KNNQuery query, float boost, Weight filterWeight) {
         super(query);
         this.knnQuery = query;
         this.boost = boost;
+        this.filterWeight = filterWeight;
     }
 
     @Override
@@ -74,57 +87,78 @@ public class KNNWeight extends Weight {
     @Override
     public Scorer scorer(LeafReaderContext context) throws IOException {
         try {
-            SegmentReader reader = (SegmentReader) FilterLeafReader.unwrap(context.reader());
-            String directory = ((FSDirectory) FilterDirectory.unwrap(reader.directory())).getDirectory().toString();
-
             /**
-             * In case of compound file, extension would be .hnswc otherwise .hnsw
+             * Docs excluded by the filter or deleted are skipped while collecting the top k from the graph.
+             * A null filter means every doc in the segment is a candidate.
              */
-            String hnswFileExtension = reader.getSegmentInfo().info.getUseCompoundFile()
-                                               ? KNNCodec.HNSW_COMPOUND_EXTENSION : KNNCodec.HNSW_EXTENSION;
-            String hnswSuffix = knnQuery.getField() + hnswFileExtension;
-            List<String> hnswFiles = reader.getSegmentInfo().files().stream()
-                                           .filter(fileName -> fileName.endsWith(hnswSuffix))
-                                          .collect(Collectors.toList());
-
-            if(hnswFiles.isEmpty()) {
-                logger.debug("[KNN] No hsnw index found for field {} for segment {}",
-                        knnQuery.getField(), reader.getSegmentName());
+            int k = knnQuery.getK();
+            int maxDoc = context.reader().maxDoc();
+            Bits liveDocs = context.reader().getLiveDocs();
+            FixedBitSet filterBits = null;
+            int candidates = context.reader().numDocs();
+            if (filterWeight != null) {
+                filterBits = getFilterBits(context, liveDocs);
+                candidates = filterBits == null ? 0 : filterBits.cardinality();
+                if (candidates == 0) {
+                    return null;
+                }
+            } else if (liveDocs != null) {
+                filterBits = toFixedBitSet(liveDocs, maxDoc);
+            }
+
+            FieldInfo queryFieldInfo = context.reader().getFieldInfos().fieldInfo(knnQuery.getField());
+            if (queryFieldInfo == null) {
                 return null;
             }
 
-            FieldInfo queryFieldInfo = reader.getFieldInfos().fieldInfo(knnQuery.getField());
+            SpaceType spaceType = SpaceType.getSpace(queryFieldInfo.getAttribute(KNNConstants.SPACE_TYPE));
+            int[] docs = new int[k];
+            float[] scores = new float[k];
+            if (knnQuery.isExact()) {
+                return exactSearch(context, spaceType, filterBits, candidates, liveDocs, docs, scores);
+            }
 
             /**
-             * TODO Add logic to pick up the right nmslib version based on the version
-             * in the name of the file. As of now we have one version 1.7.3.6.
-             * So deferring this to future releases
+             * Segments below the graph build threshold, and fields in spaces their engine cannot index, have no
+             * graph. The quantized vectors stored instead for fields with a reduced precision encoding are scanned.
              */
+            VectorEncoding encoding = VectorEncoding.getEncoding(queryFieldInfo.getAttribute(KNNConstants.ENCODING));
+            String indexPath = getGraphPath(context);
+            if (indexPath == null) {
+                if (encoding != VectorEncoding.FP32) {
+                    return quantizedSearch(context, queryFieldInfo, spaceType, filterBits, candidates, liveDocs, docs,
+                            scores);
+                }
+                return exactSearch(context, spaceType, filterBits, candidates, liveDocs, docs, scores);
+            }
 
-            Path indexPath = PathUtils.get(directory, hnswFiles.get(0));
-            KNNQueryResult[] results = AccessController.doPrivileged(
-                    new PrivilegedAction<KNNQueryResult[]>() {
-                        public KNNQueryResult[] run() {
-                            KNNIndex index = knnIndexCache.getIndex(indexPath.toString());
-                            if(index.isDeleted.get()) {
-                                // Race condition occured. Looks like entry got evicted from cache and
-                                // possibly gc. Try to read again
-                                logger.info("[KNN] Race condition occured. Looks like entry got evicted " +
-                                                    "from cache and possible gc. Trying to read again");
-                                index = knnIndexCache.getIndex(indexPath.toString());
-                                if(index.isDeleted.get()) {
-                                    logger.info("Index deleted. Possibly getting evicted as segment exceeds the cache max weight. Path: " + indexPath.toString());
-                                    return  null;
-                                }
-                            }
-                            return index.queryIndex(knnQuery.getQueryVector(), knnQuery.getK(), getQueryParams(queryFieldInfo));
-                        }
-                    }
-            );
+            /**
+             * Graphs of quantized vectors, and graphs of engines that compress the vectors themselves, return
+             * approximate distances, so the nearest docs they return are re-scored against the full precision
+             * vectors. The graph is searched by the engine named in its file.
+             */
+            KNNGraphEngine graphEngine = KNNGraphEngines.getGraphEngine(indexPath);
+            int rescoreFactor = encoding != VectorEncoding.FP32 || graphEngine.approximatesDistances()
+                                        ? getRescoreFactor(queryFieldInfo) : 0;
+            int candidateCount = rescoreFactor > 0 ? (int) Math.min((long) k * rescoreFactor, Math.max(k, maxDoc)) : k;
+            if (filterBits != null && isExactSearchCheaper(candidates, maxDoc, candidateCount,
+                    graphEngine.getSearchBreadth(queryFieldInfo.attributes(), candidateCount, maxDoc))) {
+                return exactSearch(context, spaceType, filterBits, candidates, liveDocs, docs, scores);
+            }
 
-            if (results == null) {
-                logger.debug("No results for field {} for segment {}",
-                        knnQuery.getField(), reader.getSegmentName());
+            int resultSize;
+            if (rescoreFactor > 0) {
+                int[] candidateDocs = new int[candidateCount];
+                float[] candidateDistances = new float[candidateCount];
+                int candidateSize = searchGraph(indexPath, spaceType, queryFieldInfo, candidateCount, filterBits,
+                        candidateDocs, candidateDistances);
+                resultSize = KNNExactSearcher.rescore(context.reader(), knnQuery.getField(), spaceType,
+                        knnQuery.getQueryVector(), candidateDocs, candidateDistances, candidateSize, k, docs, scores);
+            } else {
+                resultSize = searchGraph(indexPath, spaceType, queryFieldInfo, k, filterBits, docs, scores);
+            }
+            if (resultSize == 0) {
+                logger.debug("No results for field {} in graph {}", knnQuery.getField(), indexPath);
                 return  null;
             }
 
@@ -132,16 +166,16 @@ public class KNNWeight extends Weight {
              * Scores represent the distance of the documents with respect to given query vector.
              * Lesser the score, the closer the document is to the query vector.
              * Since by default results are retrieved in the descending order of scores, to get the nearest
-             * neighbors we are inverting the scores.
+             * neighbors the space translates the distances into scores that decrease with them.
              */
-            Map<Integer, Float> scores = Arrays.stream(results).collect(
-                    Collectors.toMap(result -> result.getId(), result -> 1/(1 + result.getScore())));
-            int maxDoc = Collections.max(scores.keySet()) + 1;
-            DocIdSetBuilder docIdSetBuilder = new DocIdSetBuilder(maxDoc);
-            DocIdSetBuilder.BulkAdder setAdder = docIdSetBuilder.grow(maxDoc);
-            Arrays.stream(results).forEach(result -> setAdder.add(result.getId()));
-            DocIdSetIterator docIdSetIter = docIdSetBuilder.build().iterator();
-            return new KNNScorer(this, docIdSetIter, scores, boost);
+            for (int i = 0; i < resultSize; i++) {
+                scores[i] = spaceType.score(scores[i]);
+            }
+            KNNScorer.sortByDoc(docs, scores, resultSize);
+            return new KNNScorer(this, docs, scores, resultSize, boost);
+        } catch (CircuitBreakingException e) {
+            // Surfaced as is, so that the query fails with a retryable status
+            throw e;
         } catch (Exception e) {
             throw new IOException(e);
         }
@@ -149,13 +183,154 @@ public class KNNWeight extends Weight {
 
     @Override
     public boolean isCacheable(LeafReaderContext context) {
-        return true;
+        return filterWeight == null || filterWeight.isCacheable(context);
+    }
+
+    private Scorer exactSearch(LeafReaderContext context, SpaceType spaceType, FixedBitSet filterBits, int candidates,
+                               Bits liveDocs, int[] docs, float[] scores) throws IOException {
+        // Without a filter, streaming all the doc values and skipping deleted docs beats seeking per live doc
+        DocIdSetIterator candidateDocs = filterWeight == null ? null : new BitSetIterator(filterBits, candidates);
+        int resultSize = KNNExactSearcher.search(context.reader(), knnQuery.getField(), spaceType, knnQuery.getQueryVector(),
+                candidateDocs, liveDocs, knnQuery.getK(), docs, scores);
+        if (resultSize == 0) {
+            return null;
+        }
+        KNNScorer.sortByDoc(docs, scores, resultSize);
+        return new KNNScorer(this, docs, scores, resultSize, boost);
     }
 
-    private String[] getQueryParams(FieldInfo fieldInfo) {
-        if (fieldInfo.attributes().containsKey(KNNConstants.HNSW_ALGO_EF_SEARCH)) {
-            return new String[] {"efSearch=" + fieldInfo.attributes().get(KNNConstants.HNSW_ALGO_EF_SEARCH)};
+    /**
+     * Scans the quantized vectors of a segment too small for a graph. The candidates are scored exactly instead when
+     * they are so few that scoring them reads no more full precision vectors than re-scoring would.
+     */
+    private Scorer quantizedSearch(LeafReaderContext context, FieldInfo fieldInfo, SpaceType spaceType,
+                                   FixedBitSet filterBits, int candidates, Bits liveDocs, int[] docs,
+                                   float[] scores) throws IOException {
+        int k = knnQuery.getK();
+        int rescoreFactor = getRescoreFactor(fieldInfo);
+        KNNSegmentIndex segmentIndex = getSegmentIndex(context);
+        if (!(segmentIndex instanceof KNNQuantizedVectors)
+                    || (filterBits != null && candidates <= (long) k * Math.max(1, rescoreFactor))) {
+            return exactSearch(context, spaceType, filterBits, candidates, liveDocs, docs, scores);
+        }
+        int resultSize = KNNQuantizedSearcher.search(context.reader(), knnQuery.getField(), spaceType,
+                (KNNQuantizedVectors) segmentIndex, knnQuery.getQueryVector(), filterBits, k, rescoreFactor, docs,
+                scores);
+        if (resultSize == 0) {
+            return null;
+        }
+        KNNScorer.sortByDoc(docs, scores, resultSize);
+        return new KNNScorer(this, docs, scores, resultSize, boost);
+    }
+
+    /**
+     * @return path of the graph of the field in the segment, or null if the segment has none
+     */
+    private String getGraphPath(LeafReaderContext context) {
+        SegmentReader reader = (SegmentReader) FilterLeafReader.unwrap(context.reader());
+        String directory = ((FSDirectory) FilterDirectory.unwrap(reader.directory())).getDirectory().toString();
+
+        /**
+         * In case of compound file, extension would be .hnswc otherwise .hnsw
+         */
+        String hnswFileExtension = reader.getSegmentInfo().info.getUseCompoundFile()
+                                           ? KNNCodec.HNSW_COMPOUND_EXTENSION : KNNCodec.HNSW_EXTENSION;
+        List<String> hnswFiles = reader.getSegmentInfo().files().stream()
+                                       .filter(fileName -> KNNGraphEngines.isGraphFile(fileName,
+                                               reader.getSegmentName(), knnQuery.getField(), hnswFileExtension))
+                                       .collect(Collectors.toList());
+
+        /**
+         * Segments below the graph build threshold are written without a graph
+         */
+        if (hnswFiles.isEmpty()) {
+            logger.debug("[KNN] No hsnw index found for field {} for segment {}",
+                    knnQuery.getField(), reader.getSegmentName());
+            return null;
         }
-        return new String[] {};
+        return PathUtils.get(directory, hnswFiles.get(0)).toString();
+    }
+
+    /**
+     * Collects the k nearest docs from the graph, loading it into the cache if needed. The cache loads the graph
+     * with the engine and version named in its file, which need not be the engine the field is currently written
+     * with.
+     *
+     * @return number of results written to the buffers, with their distances
+     */
+    private int searchGraph(String indexPath, SpaceType spaceType, FieldInfo fieldInfo, int k, FixedBitSet filterBits,
+                            int[] docs, float[] distances) {
+        long[] filter = filterBits == null ? null : filterBits.getBits();
+        Integer resultSize = AccessController.doPrivileged(
+                new PrivilegedAction<Integer>() {
+                    public Integer run() {
+                        KNNGraph graph = knnIndexCache.getIndex(indexPath, spaceType);
+                        if (graph == null) {
+                            throw new IllegalStateException("Failed to load hnsw index " + indexPath);
+                        }
+                        // The graph is not freed while acquired, even if it gets evicted during the query
+                        try {
+                            return graph.search(knnQuery.getQueryVector(), k, fieldInfo.attributes(), filter, docs,
+                                    distances);
+                        } finally {
+                            graph.release();
+                        }
+                    }
+                }
+        );
+        return resultSize == null ? 0 : resultSize;
+    }
+
+    /**
+     * @return structure the field is searched through in the segment, or null if the segment has none
+     */
+    private KNNSegmentIndex getSegmentIndex(LeafReaderContext context) throws IOException {
+        BinaryDocValues values = context.reader().getBinaryDocValues(knnQuery.getField());
+        if (values instanceof KNNSegmentIndexBinaryDocValues) {
+            return ((KNNSegmentIndexBinaryDocValues) values).getSegmentIndex();
+        }
+        return null;
+    }
+
+    /**
+     * A graph search only visits the docs nearest to the query before filtering them, as many as the breadth
+     * estimated by its engine, so when the candidates are so sparse that fewer than k of them are expected among
+     * those, scoring the candidates directly is both cheaper and exact.
+     */
+    private static boolean isExactSearchCheaper(int candidates, int maxDoc, int k, long searchBreadth) {
+        return candidates <= k || searchBreadth * candidates < (long) k * maxDoc;
+    }
+
+    private FixedBitSet getFilterBits(LeafReaderContext context, Bits liveDocs) throws IOException {
+        Scorer filterScorer = filterWeight.scorer(context);
+        if (filterScorer == null) {
+            return null;
+        }
+        FixedBitSet bits = new FixedBitSet(context.reader().maxDoc());
+        DocIdSetIterator iterator = filterScorer.iterator();
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+                bits.set(doc);
+            }
+        }
+        return bits;
+    }
+
+    private static FixedBitSet toFixedBitSet(Bits bits, int maxDoc) {
+        if (bits instanceof FixedBitSet) {
+            return (FixedBitSet) bits;
+        }
+        FixedBitSet fixedBitSet = new FixedBitSet(maxDoc);
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (bits.get(doc)) {
+                fixedBitSet.set(doc);
+            }
+        }
+        return fixedBitSet;
+    }
+
+    private static int getRescoreFactor(FieldInfo fieldInfo) {
+        return KNNUtil.getIntAttribute(fieldInfo.attributes(), KNNConstants.RESCORE_FACTOR,
+                KNNSettings.INDEX_KNN_QUANTIZATION_RESCORE_FACTOR_SETTING.getDefault(Settings.EMPTY));
     }
 }
@@ -0,0 +1,152 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNScoringUtil;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Distance functions a knn_vector field can be searched with, set through the space_type parameter of its mapping.
+ *
+ * Each space converts its distances into scores that decrease as the distance grows, so that the nearest
+ * neighbours always get the highest scores. nmslib 1.7.3.6 only serializes hnsw graphs in the optimized format,
+ * which exists for the l2 and cosinesimil spaces, so fields in the other spaces must be mapped with an engine that
+ * supports them, such as javahnsw.
+ */
+public enum SpaceType {
+    L2("l2", true) {
+        @Override
+        public float distance(float[] queryVector, float[] vector) {
+            return KNNScoringUtil.l2SquaredDistance(queryVector, vector);
+        }
+
+        @Override
+        public float score(float distance) {
+            return KNNScoringUtil.l2Score((float) Math.sqrt(distance));
+        }
+    },
+    COSINESIMIL("cosinesimil", true) {
+        @Override
+        public float distance(float[] queryVector, float[] vector) {
+            return 1 - KNNScoringUtil.cosineSimilarity(queryVector, vector);
+        }
+    },
+    INNER_PRODUCT("innerproduct", false) {
+        @Override
+        public String getNmsSpace() {
+            return "negdotprod";
+        }
+
+        /**
+         * Negated dot product, as in the negdotprod space of nmslib
+         */
+        @Override
+        public float distance(float[] queryVector, float[] vector) {
+            return -KNNScoringUtil.innerProduct(queryVector, vector);
+        }
+
+        @Override
+        public float score(float distance) {
+            // The distance is negative for positive dot products, which get scores above 1
+            return distance < 0 ? 1 - distance : 1 / (1 + distance);
+        }
+    },
+    L1("l1", false) {
+        @Override
+        public float distance(float[] queryVector, float[] vector) {
+            return KNNScoringUtil.l1Distance(queryVector, vector);
+        }
+    },
+    LINF("linf", false) {
+        @Override
+        public float distance(float[] queryVector, float[] vector) {
+            return KNNScoringUtil.lInfDistance(queryVector, vector);
+        }
+    };
+
+    public static final SpaceType DEFAULT = L2;
+
+    private final String value;
+    private final boolean graphSupported;
+
+    SpaceType(String value, boolean graphSupported) {
+        this.value = value;
+        this.graphSupported = graphSupported;
+    }
+
+    /**
+     * @return name of the space in the mapping
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return name of the space in nmslib
+     */
+    public String getNmsSpace() {
+        return value;
+    }
+
+    /**
+     * @return whether nmslib can build hnsw graphs in this space
+     */
+    public boolean isGraphSupported() {
+        return graphSupported;
+    }
+
+    /**
+     * Distance between two vectors of the same dimension. Only its order matters to the search, the score
+     * is derived from it with {@link #score(float)}.
+     *
+     * @param queryVector query vector
+     * @param vector vector of a doc
+     * @return distance, lower when the vectors are nearer
+     */
+    public abstract float distance(float[] queryVector, float[] vector);
+
+    /**
+     * Translates a distance returned by {@link #distance(float[], float[])} into a score
+     *
+     * @param distance distance between the query and a doc
+     * @return score, higher when the distance is lower
+     */
+    public float score(float distance) {
+        return 1 / (1 + distance);
+    }
+
+    /**
+     * Parses the space of a mapping or a field attribute
+     *
+     * @param value name of the space, or null for the default space
+     * @return space type
+     */
+    public static SpaceType getSpace(String value) {
+        if (value == null) {
+            return DEFAULT;
+        }
+        for (SpaceType spaceType : values()) {
+            if (spaceType.value.equals(value.toLowerCase(Locale.ROOT))) {
+                return spaceType;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported space type [" + value + "], expected one of "
+                + Arrays.stream(values()).map(SpaceType::getValue).collect(Collectors.toList()));
+    }
+}
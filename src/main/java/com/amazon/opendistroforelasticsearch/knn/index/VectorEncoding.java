@@ -0,0 +1,84 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Precision the vectors of a knn_vector field are searched at, set through the encoding parameter of its mapping.
+ *
+ * fp32 fields are searched through hnsw graphs holding the full precision vectors. The other encodings trade some
+ * accuracy for memory: the graphs hold the quantized vectors, and the best candidates of a search are re-scored
+ * against the full precision doc values. They require an engine whose graphs can hold quantized vectors, such as
+ * javahnsw. Segments too small for a graph store their quantized vectors next to the doc values, and searches scan
+ * them instead.
+ */
+public enum VectorEncoding {
+    FP32("fp32", Float.BYTES),
+    /**
+     * IEEE 754 half precision floats
+     */
+    FP16("fp16", 2),
+    /**
+     * One byte per component, mapped linearly between the minimum and the maximum of that component in the segment
+     */
+    INT8("int8", 1);
+
+    public static final VectorEncoding DEFAULT = FP32;
+
+    private final String value;
+    private final int bytesPerComponent;
+
+    VectorEncoding(String value, int bytesPerComponent) {
+        this.value = value;
+        this.bytesPerComponent = bytesPerComponent;
+    }
+
+    /**
+     * @return name of the encoding in the mapping
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return number of bytes each component of a vector is stored in
+     */
+    public int getBytesPerComponent() {
+        return bytesPerComponent;
+    }
+
+    /**
+     * Parses the encoding of a mapping or a field attribute
+     *
+     * @param value name of the encoding, or null for the default encoding
+     * @return vector encoding
+     */
+    public static VectorEncoding getEncoding(String value) {
+        if (value == null) {
+            return DEFAULT;
+        }
+        for (VectorEncoding encoding : values()) {
+            if (encoding.value.equals(value.toLowerCase(Locale.ROOT))) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported encoding [" + value + "], expected one of "
+                + Arrays.stream(values()).map(VectorEncoding::getValue).collect(Collectors.toList()));
+    }
+}
@@ -15,31 +15,25 @@
 
 package com.amazon.opendistroforelasticsearch.knn.index;
 
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexableFieldType;
 import org.apache.lucene.util.BytesRef;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
-
 public class VectorField extends Field {
 
     public VectorField(String name, float[] value, IndexableFieldType type) {
-        super(name, new BytesRef(), type);
-        try {
-            this.setBytesValue(floatToByte(value));
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        super(name, new BytesRef(floatToByte(value)), type);
     }
 
-    public static byte[] floatToByte(float[] floats) throws Exception {
-        byte[] bytes;
-        try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-             ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);) {
-            objectStream.writeObject(floats);
-            bytes = byteStream.toByteArray();
-        }
-        return bytes;
+    /**
+     * Encodes the vector as raw little-endian floats. See {@link KNNVectorSerializer}
+     *
+     * @param floats vector
+     * @return encoded vector
+     */
+    public static byte[] floatToByte(float[] floats) {
+        return KNNVectorSerializer.serialize(floats);
     }
 }
@@ -27,9 +27,11 @@ import java.io.IOException;
 class KNNBinaryDocValues extends BinaryDocValues {
 
     private DocIDMerger<BinaryDocValuesSub> docIDMerger;
+    private final long cost;
 
-    KNNBinaryDocValues(DocIDMerger<BinaryDocValuesSub> docIdMerger) {
+    KNNBinaryDocValues(DocIDMerger<BinaryDocValuesSub> docIdMerger, long cost) {
         this.docIDMerger = docIdMerger;
+        this.cost = cost;
     }
 
     private BinaryDocValuesSub current;
@@ -61,9 +63,12 @@ class KNNBinaryDocValues extends BinaryDocValues {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * @return the number of values across the merged segments, including the ones of deleted docs
+     */
     @Override
     public long cost() {
-        throw new UnsupportedOperationException();
+        return cost;
     }
 
     @Override
@@ -19,7 +19,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.CompoundFormat;
+import org.apache.lucene.codecs.DocValuesConsumer;
 import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
 import org.apache.lucene.codecs.FieldInfosFormat;
 import org.apache.lucene.codecs.LiveDocsFormat;
 import org.apache.lucene.codecs.NormsFormat;
@@ -29,13 +31,10 @@ import org.apache.lucene.codecs.SegmentInfoFormat;
 import org.apache.lucene.codecs.StoredFieldsFormat;
 import org.apache.lucene.codecs.TermVectorsFormat;
 import org.apache.lucene.codecs.perfield.PerFieldDocValuesFormat;
-import org.apache.lucene.index.BinaryDocValues;
-import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.util.ArrayList;
 
 /**
  * Extends the Codec to support a new file format for KNN index
@@ -57,12 +56,27 @@ public final class KNNCodec extends Codec {
     public KNNCodec() {
         super(KNN_CODEC);
         this.docValuesFormat = new KNNDocValuesFormat();
-        this.perFieldDocValuesFormat = new PerFieldDocValuesFormat() {
+        DocValuesFormat perField = new PerFieldDocValuesFormat() {
             @Override
             public DocValuesFormat getDocValuesFormatForField(String field) {
                 return docValuesFormat;
             }
         };
+        /*
+         * Segments are read through the format recorded per field rather than through KNNDocValuesFormat, so the
+         * producer of the segment is wrapped at the codec level
+         */
+        this.perFieldDocValuesFormat = new DocValuesFormat(perField.getName()) {
+            @Override
+            public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+                return perField.fieldsConsumer(state);
+            }
+
+            @Override
+            public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+                return new KNNDocValuesProducer(perField.fieldsProducer(state), state);
+            }
+        };
         this.compoundFormat = new KNNCompoundFormat();
     }
 
@@ -128,32 +142,4 @@ public final class KNNCodec extends Codec {
     public PointsFormat pointsFormat() {
         return getDelegatee().pointsFormat();
     }
-
-    public static final class Pair {
-        public Pair(int[] docs, float[][] vectors) {
-            this.docs = docs;
-            this.vectors = vectors;
-        }
-
-        public int[] docs;
-        public float[][] vectors;
-    }
-
-    public static KNNCodec.Pair getFloats(BinaryDocValues values) throws IOException {
-        ArrayList<float[]> vectorList = new ArrayList<>();
-        ArrayList<Integer> docIdList = new ArrayList<>();
-        for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
-            byte[] value = values.binaryValue().bytes;
-
-            try (ByteArrayInputStream byteStream = new ByteArrayInputStream(value);
-                 ObjectInputStream objectStream = new ObjectInputStream(byteStream)) {
-                float[] vector = (float[]) objectStream.readObject();
-                vectorList.add(vector);
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-            docIdList.add(doc);
-        }
-        return new KNNCodec.Pair(docIdList.stream().mapToInt(Integer::intValue).toArray(), vectorList.toArray(new float[][]{}));
-    }
 }
@@ -21,9 +21,17 @@ import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.CompoundFormat;
 import org.apache.lucene.index.SegmentInfo;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
 import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.IOUtils;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -34,6 +42,7 @@ import java.util.stream.Collectors;
 public class KNNCompoundFormat extends CompoundFormat {
 
     private final Logger logger = LogManager.getLogger(KNNCompoundFormat.class);
+    private static final String TEMP_SUFFIX = "tmp";
 
     KNNCompoundFormat() {
     }
@@ -58,11 +67,44 @@ public class KNNCompoundFormat extends CompoundFormat {
         if (!hnswFiles.isEmpty()) {
             for (String hnswFile: hnswFiles) {
                 String hnswCompoundFile = hnswFile + "c";
-                dir.copyFrom(dir, hnswFile, hnswCompoundFile, context);
+                linkOrCopy(dir, hnswFile, hnswCompoundFile, context);
             }
             segmentFiles.removeAll(hnswFiles);
             si.setFiles(segmentFiles);
         }
         Codec.getDefault().compoundFormat().write(dir, si, context);
     }
+
+    /**
+     * Makes the graph available under the compound file name. The original file is deleted by the index writer
+     * once the compound file is written, so it cannot simply be renamed. Instead a hard link is created under a
+     * temporary name and renamed through the directory, so that it is tracked as one of the compound files.
+     * Falls back to copying the file when the file system does not support hard links.
+     */
+    private void linkOrCopy(Directory dir, String source, String dest, IOContext context) throws IOException {
+        Directory unwrapped = FilterDirectory.unwrap(dir);
+        if (unwrapped instanceof FSDirectory) {
+            Path directoryPath = ((FSDirectory) unwrapped).getDirectory();
+            String linkName = dest + TEMP_SUFFIX;
+            boolean linked = false;
+            try {
+                AccessController.doPrivileged(
+                        new PrivilegedExceptionAction<Path>() {
+                            public Path run() throws IOException {
+                                return Files.createLink(directoryPath.resolve(linkName), directoryPath.resolve(source));
+                            }
+                        }
+                );
+                linked = true;
+                dir.rename(linkName, dest);
+                return;
+            } catch (PrivilegedActionException | IOException | UnsupportedOperationException | SecurityException e) {
+                logger.debug("Unable to link {} to {}, copying it instead: {}", source, dest, e.getMessage());
+                if (linked) {
+                    IOUtils.deleteFilesIgnoringExceptions(dir, linkName);
+                }
+            }
+        }
+        dir.copyFrom(dir, source, dest, context);
+    }
 }
@@ -27,23 +27,28 @@ import org.apache.lucene.index.MergeState;
 import org.apache.lucene.index.SegmentWriteState;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.FilterDirectory;
-import org.apache.lucene.store.IndexInput;
-import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.util.IOUtils;
-import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
 import com.amazon.opendistroforelasticsearch.knn.index.KNNVectorFieldMapper;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.BinaryDocValuesSupplier;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngines;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNMergedGraph;
 import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
-import com.amazon.opendistroforelasticsearch.knn.index.util.NmsLibVersion;
-import com.amazon.opendistroforelasticsearch.knn.index.v1736.KNNIndex;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.zip.CRC32;
 
 /**
  * This class writes the KNN docvalues to the segments
@@ -53,6 +58,7 @@ class KNNDocValuesConsumer extends DocValuesConsumer implements Closeable {
     private final Logger logger = LogManager.getLogger(KNNDocValuesConsumer.class);
 
     private final String TEMP_SUFFIX = "tmp";
+    private static final int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
     private DocValuesConsumer delegatee;
     private SegmentWriteState state;
 
@@ -64,61 +70,120 @@ class KNNDocValuesConsumer extends DocValuesConsumer implements Closeable {
     @Override
     public void addBinaryField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
         delegatee.addBinaryField(field, valuesProducer);
-        addKNNBinaryField(field, valuesProducer);
+        addKNNBinaryField(field, valuesProducer, null);
     }
 
-    public void addKNNBinaryField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+    /**
+     * @param mergeState state of the merge for a merged segment, null for a flushed one
+     */
+    private void addKNNBinaryField(FieldInfo field, DocValuesProducer valuesProducer, MergeState mergeState)
+            throws IOException {
         if (field.attributes().containsKey(KNNVectorFieldMapper.KNN_FIELD)) {
 
+            BinaryDocValues values = valuesProducer.getBinary(field);
+            int graphBuildThreshold = getGraphBuildThreshold(field);
+
             /**
-             * We always write with latest NMS library version
+             * Fields with a reduced precision encoding are searched through a graph holding their quantized vectors.
+             * Segments too small for a graph store the quantized vectors themselves, which are scanned instead.
              */
-            if (!isNmsLibLatest()) {
-                throw new IllegalStateException("Nms library version mismatch. Correct version: "
-                                                        + NmsLibVersion.LATEST.indexLibraryVersion());
+            VectorEncoding encoding = VectorEncoding.getEncoding(field.getAttribute(KNNConstants.ENCODING));
+            if (encoding != VectorEncoding.FP32 && values.cost() < graphBuildThreshold) {
+                if (!KNNQuantizedVectors.write(state, field, () -> valuesProducer.getBinary(field), encoding)) {
+                    logger.debug("Skipping quantized vectors for field {} in segment {} as it has no vectors",
+                            field.name, state.segmentInfo.name);
+                }
+                return;
             }
 
-            BinaryDocValues values = valuesProducer.getBinary(field);
-            String hnswFileName = String.format("%s_%s_%s%s", state.segmentInfo.name, NmsLibVersion.LATEST.buildVersion,
-                    field.name, KNNCodec.HNSW_EXTENSION);
-            String indexPath = Paths.get(((FSDirectory) (FilterDirectory.unwrap(state.directory))).getDirectory().toString(),
-                    hnswFileName).toString();
+            /**
+             * We always write with the latest version of the graph engine, which is recorded in the file name.
+             * The mapper rejects fields in spaces that their engine cannot index, so this only skips the fields
+             * whose engine dropped a space in a later version.
+             */
+            KNNGraphEngine graphEngine = KNNGraphEngines.getLatest(field.getAttribute(KNNConstants.ENGINE));
+            SpaceType spaceType = SpaceType.getSpace(field.getAttribute(KNNConstants.SPACE_TYPE));
+            if (!graphEngine.supports(spaceType)) {
+                logger.debug("Skipping {} index creation for field {} in segment {} as space {} is not supported",
+                        graphEngine.getName(), field.name, state.segmentInfo.name, spaceType.getValue());
+                return;
+            }
 
-            KNNCodec.Pair pair = KNNCodec.getFloats(values);
-            if (pair == null || pair.vectors.length == 0 || pair.docs.length == 0) {
-                logger.info("Skipping hnsw index creation as there are no vectors or docs in the documents");
+            if (values.cost() < graphBuildThreshold) {
+                logger.debug("Skipping {} index creation for field {} in segment {} as it has fewer than {} vectors",
+                        graphEngine.getName(), field.name, state.segmentInfo.name, graphBuildThreshold);
                 return;
             }
 
-            // Pass the path for the nms library to save the file
-            String tempIndexPath = indexPath + TEMP_SUFFIX;
-            String[] algoParams = getKNNIndexParams(field.attributes());
-            AccessController.doPrivileged(
-                    new PrivilegedAction<Void>() {
-                        public Void run() {
-                            KNNIndex.saveIndex(pair.docs, pair.vectors, tempIndexPath, algoParams);
-                            return null;
-                        }
-                    }
-            );
+            String hnswFileName = KNNGraphEngines.graphFileName(state.segmentInfo.name, graphEngine, field.name);
+            String indexPath = Paths.get(((FSDirectory) (FilterDirectory.unwrap(state.directory))).getDirectory().toString(),
+                    hnswFileName).toString();
 
+            // Pass the path for the graph engine to save the file
+            String tempIndexPath = indexPath + TEMP_SUFFIX;
             String hsnwTempFileName = hnswFileName + TEMP_SUFFIX;
 
-            /**
-             * Adds Footer to the serialized graph
-             * 1. Copies the serialized graph to new file.
-             * 2. Adds Footer to the new file.
-             *
-             * We had to create new file here because adding footer directly to the
-             * existing file will miss calculating checksum for the serialized graph
-             * bytes and result in index corruption issues.
-             */
-            try (IndexInput is = state.directory.openInput(hsnwTempFileName, state.context);
-                 IndexOutput os = state.directory.createOutput(hnswFileName, state.context)) {
-                os.copyBytes(is, is.length());
-                CodecUtil.writeFooter(os);
+            boolean success = false;
+            try {
+                BinaryDocValuesSupplier vectors = () -> valuesProducer.getBinary(field);
+                int size = mergeState == null
+                                   ? graphEngine.build(vectors, spaceType, field.attributes(), tempIndexPath)
+                                   : graphEngine.merge(vectors, spaceType, field.attributes(),
+                                           getMergedGraphs(mergeState, field, graphEngine), tempIndexPath);
+                if (size == 0) {
+                    logger.info("Skipping hnsw index creation as there are no vectors or docs in the documents");
+                    success = true;
+                    return;
+                }
+
+                /**
+                 * Adds Footer to the serialized graph
+                 * 1. Appends the footer to the file written by the graph engine, with the checksum
+                 *    computed over the graph bytes as they are read back.
+                 * 2. Renames the file through the segment's directory, so that it is tracked as
+                 *    one of the segment files.
+                 *
+                 * The graph is written to disk only once, rather than copied into a second file.
+                 */
+                writeFooter(Paths.get(tempIndexPath));
+                state.directory.rename(hsnwTempFileName, hnswFileName);
+                success = true;
             } finally {
-                IOUtils.deleteFilesIgnoringExceptions(state.directory, hsnwTempFileName);
+                if (!success) {
+                    IOUtils.deleteFilesIgnoringExceptions(state.directory, hsnwTempFileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a footer in the format of {@link CodecUtil#writeFooter} to the file, so that it can be
+     * verified with {@link CodecUtil#checksumEntireFile} like any other segment file.
+     *
+     * @param path file to append the footer to
+     * @throws IOException if the file cannot be read or written
+     */
+    static void writeFooter(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            CRC32 checksum = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+
+            // The checksum covers the footer magic and the algorithm id (0 for zlib-crc32), but not itself
+            ByteBuffer footer = ByteBuffer.allocate(CodecUtil.footerLength()).order(ByteOrder.BIG_ENDIAN);
+            footer.putInt(CodecUtil.FOOTER_MAGIC);
+            footer.putInt(0);
+            checksum.update(footer.array(), 0, footer.position());
+            footer.putLong(checksum.getValue());
+            footer.flip();
+
+            long position = channel.size();
+            while (footer.hasRemaining()) {
+                position += channel.write(footer, position);
             }
         }
     }
@@ -137,7 +202,7 @@ class KNNDocValuesConsumer extends DocValuesConsumer implements Closeable {
             for (FieldInfo fieldInfo : mergeState.mergeFieldInfos) {
                 DocValuesType type = fieldInfo.getDocValuesType();
                 if (type == DocValuesType.BINARY) {
-                    addKNNBinaryField(fieldInfo, new KNNDocValuesReader(mergeState));
+                    addKNNBinaryField(fieldInfo, new KNNDocValuesReader(mergeState), mergeState);
                 }
             }
         } catch (Exception e) {
@@ -145,6 +210,24 @@ class KNNDocValuesConsumer extends DocValuesConsumer implements Closeable {
         }
     }
 
+    /**
+     * Lists the graphs of the field in the segments being merged that the engine can read
+     */
+    private static List<KNNMergedGraph> getMergedGraphs(MergeState mergeState, FieldInfo field,
+                                                        KNNGraphEngine graphEngine) {
+        List<KNNMergedGraph> mergedGraphs = new ArrayList<>();
+        for (int i = 0; i < mergeState.docValuesProducers.length; i++) {
+            if (!(mergeState.docValuesProducers[i] instanceof KNNDocValuesProducer)) {
+                continue;
+            }
+            String graphPath = ((KNNDocValuesProducer) mergeState.docValuesProducers[i]).getGraphPath(field.name);
+            if (graphPath != null && KNNGraphEngines.getGraphEngine(graphPath) == graphEngine) {
+                mergedGraphs.add(new KNNMergedGraph(graphPath, mergeState.maxDocs[i], mergeState.docMaps[i]));
+            }
+        }
+        return mergedGraphs;
+    }
+
     @Override
     public void addSortedSetField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
         delegatee.addSortedSetField(field, valuesProducer);
@@ -170,34 +253,7 @@ class KNNDocValuesConsumer extends DocValuesConsumer implements Closeable {
         delegatee.close();
     }
 
-    private boolean isNmsLibLatest() {
-        return AccessController.doPrivileged(
-                new PrivilegedAction<Boolean>() {
-                    public Boolean run() {
-                        if (!NmsLibVersion.LATEST.indexLibraryVersion().equals(KNNIndex.VERSION.indexLibraryVersion())) {
-                            String errorMessage = String.format("KNN codec nms library version mis match. Latest version: %s" +
-                                                                        "Current version: %s",
-                                    NmsLibVersion.LATEST.indexLibraryVersion(), KNNIndex.VERSION);
-                            logger.error(errorMessage);
-                            return false;
-                        }
-                        return true;
-                    }
-                }
-        );
-    }
-
-    private String[] getKNNIndexParams(Map<String, String> fieldAttributes) {
-        List<String> algoParams = new ArrayList<>();
-        if (fieldAttributes.containsKey(KNNConstants.HNSW_ALGO_M)) {
-            algoParams.add(KNNConstants.HNSW_ALGO_M + "=" + fieldAttributes.get(KNNConstants.HNSW_ALGO_M));
-        }
-        if (fieldAttributes.containsKey(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION)) {
-            algoParams.add(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION + "=" + fieldAttributes.get(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION));
-        }
-        
-        // Cluster level setting so no need to specify for every index creation
-        algoParams.add(KNNConstants.HNSW_ALGO_INDEX_THREAD_QTY + "=" + KNNSettings.state().getSettingValue(KNNSettings.KNN_ALGO_PARAM_INDEX_THREAD_QTY));
-        return algoParams.toArray(new String[0]);
+    private int getGraphBuildThreshold(FieldInfo field) {
+        return KNNUtil.getIntAttribute(field.attributes(), KNNConstants.GRAPH_BUILD_THRESHOLD, 0);
     }
 }
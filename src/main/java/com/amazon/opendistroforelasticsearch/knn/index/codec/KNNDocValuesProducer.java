@@ -0,0 +1,243 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexCache;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNVectorFieldMapper;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngines;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ties the graphs of a segment to the lifetime of its readers. The doc values of a segment are opened by every
+ * reader of the segment, such as the reader of the engine once a flushed or merged segment becomes searchable, and
+ * closed once that reader no longer uses the segment, so:
+ * - on open, the graphs can be loaded in the background before the first query needs them
+ * - once the last reader of the segment closes, the graphs are invalidated right away rather than when the file
+ *   listener notices their deletion
+ *
+ * It also opens the quantized vectors stored in the segment itself for the fields with a reduced precision encoding
+ * without a graph, which are exposed through the doc values of the fields.
+ */
+class KNNDocValuesProducer extends DocValuesProducer {
+
+    private final DocValuesProducer delegate;
+    private final Map<String, String> graphPaths;
+    private final Map<String, KNNSegmentIndex> segmentIndices;
+    private final boolean mergeInstance;
+
+    KNNDocValuesProducer(DocValuesProducer delegate, SegmentReadState state) throws IOException {
+        this.delegate = delegate;
+        boolean success = false;
+        try {
+            this.segmentIndices = openSegmentIndices(state);
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(delegate);
+            }
+        }
+        this.graphPaths = graphPaths(state);
+        this.mergeInstance = false;
+        for (String graphPath : graphPaths.values()) {
+            KNNIndexCache.getInstance().openSegment(graphPath);
+        }
+        if (!graphPaths.isEmpty() && KNNSettings.state().getSettingValue(KNNSettings.KNN_CACHE_PRELOAD_NEW_SEGMENTS)) {
+            for (Map.Entry<String, String> graph : graphPaths.entrySet()) {
+                SpaceType spaceType = SpaceType.getSpace(
+                        state.fieldInfos.fieldInfo(graph.getKey()).getAttribute(KNNConstants.SPACE_TYPE));
+                KNNIndexCache.getInstance().loadAsync(graph.getValue(), spaceType);
+            }
+        }
+    }
+
+    /**
+     * Merge instance, which exposes the graphs of the segment to the merge but leaves their lifetime to the
+     * instance it is created from
+     */
+    private KNNDocValuesProducer(DocValuesProducer delegate, Map<String, String> graphPaths) {
+        this.delegate = delegate;
+        this.graphPaths = graphPaths;
+        this.segmentIndices = Collections.emptyMap();
+        this.mergeInstance = true;
+    }
+
+    /**
+     * Lists the graph files of the knn fields of the segment by field name. Only the doc values of the segment
+     * itself are considered, not those of doc values updates, which are opened and closed independently.
+     */
+    private static Map<String, String> graphPaths(SegmentReadState state) {
+        Directory directory = FilterDirectory.unwrap(state.segmentInfo.dir);
+        if (!state.segmentSuffix.isEmpty() || !(directory instanceof FSDirectory)) {
+            return Collections.emptyMap();
+        }
+        Path directoryPath = ((FSDirectory) directory).getDirectory();
+        String hnswFileExtension = state.segmentInfo.getUseCompoundFile()
+                                           ? KNNCodec.HNSW_COMPOUND_EXTENSION : KNNCodec.HNSW_EXTENSION;
+        Map<String, String> paths = new LinkedHashMap<>();
+        for (FieldInfo field : state.fieldInfos) {
+            if (!field.attributes().containsKey(KNNVectorFieldMapper.KNN_FIELD)) {
+                continue;
+            }
+            for (String fileName : state.segmentInfo.files()) {
+                if (KNNGraphEngines.isGraphFile(fileName, state.segmentInfo.name, field.name, hnswFileExtension)) {
+                    paths.put(field.name, directoryPath.resolve(fileName).toString());
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Opens the quantized vectors of the knn fields with a reduced precision encoding. They are only stored in the
+     * segments too small for a graph, and not for the fields without vectors in the segment.
+     */
+    private static Map<String, KNNSegmentIndex> openSegmentIndices(SegmentReadState state) throws IOException {
+        if (!state.segmentSuffix.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, KNNSegmentIndex> indices = new HashMap<>();
+        boolean success = false;
+        try {
+            for (FieldInfo field : state.fieldInfos) {
+                if (!field.attributes().containsKey(KNNVectorFieldMapper.KNN_FIELD)) {
+                    continue;
+                }
+                try {
+                    if (VectorEncoding.getEncoding(field.getAttribute(KNNConstants.ENCODING)) != VectorEncoding.FP32) {
+                        indices.put(field.name, KNNQuantizedVectors.open(state.directory, state.segmentInfo, field.name,
+                                state.context));
+                    }
+                } catch (NoSuchFileException | FileNotFoundException e) {
+                    // No doc of the segment has a vector for the field
+                }
+            }
+            success = true;
+            return indices;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(indices.values());
+            }
+        }
+    }
+
+    @Override
+    public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+        return delegate.getNumeric(field);
+    }
+
+    @Override
+    public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+        BinaryDocValues values = delegate.getBinary(field);
+        KNNSegmentIndex segmentIndex = segmentIndices.get(field.name);
+        return segmentIndex == null ? values : new KNNSegmentIndexBinaryDocValues(values, segmentIndex);
+    }
+
+    @Override
+    public SortedDocValues getSorted(FieldInfo field) throws IOException {
+        return delegate.getSorted(field);
+    }
+
+    @Override
+    public SortedNumericDocValues getSortedNumeric(FieldInfo field) throws IOException {
+        return delegate.getSortedNumeric(field);
+    }
+
+    @Override
+    public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+        return delegate.getSortedSet(field);
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        delegate.checkIntegrity();
+        for (KNNSegmentIndex segmentIndex : segmentIndices.values()) {
+            segmentIndex.checkIntegrity();
+        }
+    }
+
+    /**
+     * @param field name of a knn field
+     * @return path of the graph of the field in the segment, or null if the segment has none
+     */
+    String getGraphPath(String field) {
+        return graphPaths.get(field);
+    }
+
+    @Override
+    public DocValuesProducer getMergeInstance() throws IOException {
+        return new KNNDocValuesProducer(delegate.getMergeInstance(), graphPaths);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return delegate.ramBytesUsed();
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return delegate.getChildResources();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mergeInstance) {
+            return;
+        }
+        try {
+            List<Closeable> closeables = new ArrayList<>(segmentIndices.values());
+            closeables.add(delegate);
+            IOUtils.close(closeables);
+        } finally {
+            for (String graphPath : graphPaths.values()) {
+                KNNIndexCache.getInstance().closeSegment(graphPath);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + delegate + ")";
+    }
+}
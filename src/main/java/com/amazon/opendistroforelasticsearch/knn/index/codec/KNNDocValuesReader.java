@@ -40,16 +40,18 @@ class KNNDocValuesReader extends EmptyDocValuesProducer {
     public BinaryDocValues getBinary(FieldInfo field) {
         try {
             List<BinaryDocValuesSub> subs = new ArrayList<>(this.mergeState.docValuesProducers.length);
+            long cost = 0;
             for (int i = 0; i < this.mergeState.docValuesProducers.length; i++) {
                 DocValuesProducer docValuesProducer = mergeState.docValuesProducers[i];
                 if (docValuesProducer != null) {
                     BinaryDocValues values = docValuesProducer.getBinary(field);
                     if (values != null) {
+                        cost += values.cost();
                         subs.add(new BinaryDocValuesSub(mergeState.docMaps[i], values));
                     }
                 }
             }
-            return new KNNBinaryDocValues(DocIDMerger.of(subs, mergeState.needsIndexSort));
+            return new KNNBinaryDocValues(DocIDMerger.of(subs, mergeState.needsIndexSort), cost);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,261 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.BinaryDocValuesSupplier;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Quantized copy of the vectors of a knn field in a segment.
+ *
+ * The file holds an index header, the quantizer, the number of vectors, and then one record per doc with a vector,
+ * in increasing doc id order: the doc id as an int followed by the quantized vector. It ends with a codec footer,
+ * so unlike the graphs it is stored in the compound file of the segment like any other segment file.
+ */
+public final class KNNQuantizedVectors implements KNNSegmentIndex {
+
+    public static final String EXTENSION = ".knnq";
+
+    private static final String CODEC_NAME = "KNNQuantizedVectors";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    private final IndexInput data;
+    private final KNNVectorQuantizer quantizer;
+    private final int size;
+    private final long recordsOffset;
+    private final int recordLength;
+
+    private KNNQuantizedVectors(IndexInput data, KNNVectorQuantizer quantizer, int size, long recordsOffset) {
+        this.data = data;
+        this.quantizer = quantizer;
+        this.size = size;
+        this.recordsOffset = recordsOffset;
+        this.recordLength = Integer.BYTES + quantizer.bytesPerVector();
+    }
+
+    /**
+     * @param segmentName name of the segment
+     * @param fieldName name of the knn field
+     * @return name of the file holding the quantized vectors of the field in the segment
+     */
+    public static String fileName(String segmentName, String fieldName) {
+        return String.format("%s_%s%s", segmentName, fieldName, EXTENSION);
+    }
+
+    /**
+     * Quantizes the vectors of the field and writes them to the segment. int8 parameters are trained on the
+     * vectors in a first pass over the doc values.
+     *
+     * @param state state of the segment being written
+     * @param field knn field
+     * @param values supplies the full precision vectors
+     * @param encoding encoding to quantize the vectors to
+     * @return false if the field had no vectors, in which case no file is written
+     * @throws IOException if the doc values cannot be read or the file cannot be written
+     */
+    static boolean write(SegmentWriteState state, FieldInfo field, BinaryDocValuesSupplier values,
+                         VectorEncoding encoding) throws IOException {
+        float[] min = null;
+        float[] max = null;
+        float[] vector = null;
+        int size = 0;
+        BinaryDocValues docValues = values.get();
+        for (int doc = docValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docValues.nextDoc()) {
+            if (vector == null) {
+                int dimension = KNNVectorSerializer.dimension(docValues.binaryValue());
+                vector = new float[dimension];
+                min = new float[dimension];
+                max = new float[dimension];
+                Arrays.fill(min, Float.POSITIVE_INFINITY);
+                Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            }
+            readVector(docValues, vector);
+            for (int i = 0; i < vector.length; i++) {
+                min[i] = Math.min(min[i], vector[i]);
+                max[i] = Math.max(max[i], vector[i]);
+            }
+            size++;
+        }
+        if (size == 0) {
+            return false;
+        }
+
+        KNNVectorQuantizer quantizer = KNNVectorQuantizer.create(encoding, min, max);
+        byte[] bytes = new byte[quantizer.bytesPerVector()];
+        String fileName = fileName(state.segmentInfo.name, field.name);
+        boolean success = false;
+        IndexOutput out = state.directory.createOutput(fileName, state.context);
+        try {
+            CodecUtil.writeIndexHeader(out, CODEC_NAME, VERSION_CURRENT, state.segmentInfo.getId(), "");
+            quantizer.write(out);
+            out.writeVInt(size);
+            docValues = values.get();
+            for (int doc = docValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docValues.nextDoc()) {
+                readVector(docValues, vector);
+                quantizer.encode(vector, bytes);
+                out.writeInt(doc);
+                out.writeBytes(bytes, bytes.length);
+            }
+            CodecUtil.writeFooter(out);
+            success = true;
+        } finally {
+            if (success) {
+                IOUtils.close(out);
+            } else {
+                IOUtils.closeWhileHandlingException(out);
+                IOUtils.deleteFilesIgnoringExceptions(state.directory, fileName);
+            }
+        }
+        return true;
+    }
+
+    private static void readVector(BinaryDocValues docValues, float[] vector) throws IOException {
+        int dimension = KNNVectorSerializer.deserialize(docValues.binaryValue(), vector);
+        if (dimension != vector.length) {
+            throw new IllegalStateException(String.format("Vector dimension mismatch. Expected: %d, Given: %d",
+                    vector.length, dimension));
+        }
+    }
+
+    /**
+     * Opens the quantized vectors of a field in a segment
+     *
+     * @param directory directory of the segment, or its compound file
+     * @param segmentInfo segment to open the vectors of
+     * @param fieldName name of the knn field
+     * @param context context to open the file with
+     * @return quantized vectors. They have to be released with {@link #close()}
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    static KNNQuantizedVectors open(Directory directory, SegmentInfo segmentInfo, String fieldName,
+                                    IOContext context) throws IOException {
+        IndexInput data = directory.openInput(fileName(segmentInfo.name, fieldName), context);
+        boolean success = false;
+        try {
+            CodecUtil.checkIndexHeader(data, CODEC_NAME, VERSION_START, VERSION_CURRENT, segmentInfo.getId(), "");
+            KNNVectorQuantizer quantizer = KNNVectorQuantizer.read(data);
+            int size = data.readVInt();
+            long recordsOffset = data.getFilePointer();
+            // Catches truncated files early, the full checksum is verified by checkIntegrity
+            CodecUtil.retrieveChecksum(data);
+            KNNQuantizedVectors vectors = new KNNQuantizedVectors(data, quantizer, size, recordsOffset);
+            success = true;
+            return vectors;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(data);
+            }
+        }
+    }
+
+    /**
+     * @return number of docs with a vector
+     */
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return quantizer.getDimension();
+    }
+
+    public VectorEncoding encoding() {
+        return quantizer.getEncoding();
+    }
+
+    /**
+     * @return iterator over the docs with a vector, which has to be used from a single thread
+     */
+    public VectorIterator iterator() {
+        return new VectorIterator(data.clone());
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        CodecUtil.checksumEntireFile(data);
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * Iterates over the docs with a vector, decoding their vectors on demand
+     */
+    public final class VectorIterator extends DocIdSetIterator {
+        private final IndexInput input;
+        private final byte[] bytes;
+        private int ord = -1;
+        private int doc = -1;
+
+        private VectorIterator(IndexInput input) {
+            this.input = input;
+            this.bytes = new byte[quantizer.bytesPerVector()];
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            if (++ord >= size) {
+                return doc = NO_MORE_DOCS;
+            }
+            input.seek(recordsOffset + (long) ord * recordLength);
+            return doc = input.readInt();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return slowAdvance(target);
+        }
+
+        @Override
+        public long cost() {
+            return size;
+        }
+
+        /**
+         * Decodes the vector of the current doc
+         *
+         * @param vector destination of at least {@link #dimension()} components
+         * @throws IOException if the vector cannot be read
+         */
+        public void vector(float[] vector) throws IOException {
+            input.seek(recordsOffset + (long) ord * recordLength + Integer.BYTES);
+            input.readBytes(bytes, 0, bytes.length);
+            quantizer.decode(bytes, vector);
+        }
+    }
+}
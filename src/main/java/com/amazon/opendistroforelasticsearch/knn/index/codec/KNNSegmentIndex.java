@@ -0,0 +1,33 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Structure a knn field is searched through that is stored in the segment like any other segment file, as opposed
+ * to the graphs which are loaded into the cache. It is opened and closed with the doc values of the segment.
+ */
+public interface KNNSegmentIndex extends Closeable {
+
+    /**
+     * Verifies the checksum of the underlying file
+     *
+     * @throws IOException if the file is corrupt or cannot be read
+     */
+    void checkIntegrity() throws IOException;
+}
@@ -0,0 +1,74 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Full precision vectors of a knn field, which also give access to the structure the field is searched through in
+ * the segment. Searches find it through the doc values of the reader, so they do not depend on how the reader of
+ * the segment is wrapped.
+ */
+public final class KNNSegmentIndexBinaryDocValues extends BinaryDocValues {
+
+    private final BinaryDocValues delegate;
+    private final KNNSegmentIndex segmentIndex;
+
+    KNNSegmentIndexBinaryDocValues(BinaryDocValues delegate, KNNSegmentIndex segmentIndex) {
+        this.delegate = delegate;
+        this.segmentIndex = segmentIndex;
+    }
+
+    /**
+     * @return structure the field is searched through in the segment
+     */
+    public KNNSegmentIndex getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    @Override
+    public BytesRef binaryValue() throws IOException {
+        return delegate.binaryValue();
+    }
+
+    @Override
+    public boolean advanceExact(int target) throws IOException {
+        return delegate.advanceExact(target);
+    }
+
+    @Override
+    public int docID() {
+        return delegate.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        return delegate.nextDoc();
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        return delegate.advance(target);
+    }
+
+    @Override
+    public long cost() {
+        return delegate.cost();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+
+import java.io.IOException;
+
+/**
+ * Converts vectors between full precision and one of the quantized {@link VectorEncoding}s. Components are stored
+ * little-endian.
+ *
+ * int8 quantization is trained per segment: each component is mapped linearly from the range of values it takes
+ * in the segment onto [0, 255], so the error on a component is at most half of its range divided by 255.
+ */
+public final class KNNVectorQuantizer {
+
+    private final VectorEncoding encoding;
+    private final int dimension;
+    private final float[] min;
+    private final float[] step;
+
+    private KNNVectorQuantizer(VectorEncoding encoding, int dimension, float[] min, float[] step) {
+        this.encoding = encoding;
+        this.dimension = dimension;
+        this.min = min;
+        this.step = step;
+    }
+
+    /**
+     * Creates a quantizer for the given encoding
+     *
+     * @param encoding fp16 or int8
+     * @param min minimum of each component over the vectors to quantize. Only used by int8.
+     * @param max maximum of each component over the vectors to quantize. Only used by int8.
+     * @return quantizer
+     */
+    public static KNNVectorQuantizer create(VectorEncoding encoding, float[] min, float[] max) {
+        switch (encoding) {
+            case FP16:
+                return new KNNVectorQuantizer(encoding, min.length, null, null);
+            case INT8:
+                float[] step = new float[min.length];
+                for (int i = 0; i < min.length; i++) {
+                    step[i] = (max[i] - min[i]) / 255;
+                }
+                return new KNNVectorQuantizer(encoding, min.length, min.clone(), step);
+            default:
+                throw new IllegalArgumentException("Vectors cannot be quantized to " + encoding.getValue());
+        }
+    }
+
+    public VectorEncoding getEncoding() {
+        return encoding;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * @return number of bytes of a quantized vector
+     */
+    public int bytesPerVector() {
+        return dimension * encoding.getBytesPerComponent();
+    }
+
+    /**
+     * Quantizes a vector
+     *
+     * @param vector full precision vector
+     * @param bytes destination of at least {@link #bytesPerVector()} bytes
+     */
+    public void encode(float[] vector, byte[] bytes) {
+        if (encoding == VectorEncoding.FP16) {
+            for (int i = 0; i < dimension; i++) {
+                short half = toHalf(vector[i]);
+                bytes[2 * i] = (byte) half;
+                bytes[2 * i + 1] = (byte) (half >>> 8);
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                int quantized = step[i] == 0 ? 0 : Math.round((vector[i] - min[i]) / step[i]);
+                bytes[i] = (byte) Math.max(0, Math.min(255, quantized));
+            }
+        }
+    }
+
+    /**
+     * Restores a quantized vector to full precision, up to the quantization error
+     *
+     * @param bytes quantized vector
+     * @param vector destination of at least {@link #getDimension()} components
+     */
+    public void decode(byte[] bytes, float[] vector) {
+        if (encoding == VectorEncoding.FP16) {
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = fromHalf((short) ((bytes[2 * i] & 0xFF) | (bytes[2 * i + 1] << 8)));
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = min[i] + (bytes[i] & 0xFF) * step[i];
+            }
+        }
+    }
+
+    /**
+     * Writes the encoding and its trained parameters
+     *
+     * @param out output to write to
+     * @throws IOException if the output cannot be written
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeString(encoding.getValue());
+        out.writeVInt(dimension);
+        if (encoding == VectorEncoding.INT8) {
+            for (int i = 0; i < dimension; i++) {
+                out.writeInt(Float.floatToIntBits(min[i]));
+                out.writeInt(Float.floatToIntBits(step[i]));
+            }
+        }
+    }
+
+    /**
+     * Reads a quantizer written with {@link #write(DataOutput)}
+     *
+     * @param in input to read from
+     * @return quantizer
+     * @throws IOException if the input cannot be read
+     */
+    public static KNNVectorQuantizer read(DataInput in) throws IOException {
+        VectorEncoding encoding = VectorEncoding.getEncoding(in.readString());
+        int dimension = in.readVInt();
+        if (encoding != VectorEncoding.INT8) {
+            return new KNNVectorQuantizer(encoding, dimension, null, null);
+        }
+        float[] min = new float[dimension];
+        float[] step = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            min[i] = Float.intBitsToFloat(in.readInt());
+            step[i] = Float.intBitsToFloat(in.readInt());
+        }
+        return new KNNVectorQuantizer(encoding, dimension, min, step);
+    }
+
+    /**
+     * Rounds a float to the nearest half precision float, ties to even
+     *
+     * @param value float to convert
+     * @return bits of the half precision float
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int floatExponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (floatExponent == 0xFF) {
+            // Infinities stay infinite and NaNs stay NaNs
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int exponent = floatExponent - 127 + 15;
+        if (exponent >= 0x1F) {
+            return (short) (sign | 0x7C00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            // Subnormal half, with the implicit leading bit of the float made explicit
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        // A carry out of the mantissa correctly rounds up to the next exponent, or to infinity
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            half++;
+        }
+        return (short) half;
+    }
+
+    /**
+     * Widens a half precision float to a float
+     *
+     * @param half bits of the half precision float
+     * @return float of the same value
+     */
+    static float fromHalf(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // Zero or subnormal, a multiple of 2^-24
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
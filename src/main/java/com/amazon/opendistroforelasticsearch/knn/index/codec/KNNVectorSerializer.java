@@ -0,0 +1,174 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Encodes/Decodes the knn vector doc values.
+ *
+ * Vectors are written as a format marker byte followed by raw little-endian floats. The dimension is
+ * implied by the value length and is stored once per field as a field attribute.
+ *
+ * Segments written by earlier versions hold vectors serialized through ObjectOutputStream. Such a value
+ * always starts with the java serialization stream magic, which never starts with the marker, so the two
+ * formats are told apart by the first byte of the value.
+ */
+public final class KNNVectorSerializer {
+
+    /**
+     * ObjectOutputStream.STREAM_MAGIC written at the start of every legacy value
+     */
+    private static final int LEGACY_STREAM_MAGIC = 0xACED;
+
+    /**
+     * First byte of a value in the raw little-endian format. Another layout would get another marker.
+     */
+    static final byte RAW_FORMAT_MARKER = 1;
+
+    /**
+     * Length of the header preceding the floats in the raw format
+     */
+    private static final int RAW_HEADER_LENGTH = 1;
+
+    private KNNVectorSerializer() {}
+
+    /**
+     * Encodes the vector in the raw little-endian format
+     *
+     * @param vector vector to encode
+     * @return encoded bytes of length 1 + vector.length * 4
+     */
+    public static byte[] serialize(float[] vector) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(RAW_HEADER_LENGTH + vector.length * Float.BYTES)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.put(RAW_FORMAT_MARKER);
+        byteBuffer.asFloatBuffer().put(vector);
+        return byteBuffer.array();
+    }
+
+    /**
+     * Returns the dimension of the encoded vector
+     *
+     * @param bytesRef encoded vector
+     * @return dimension of the vector
+     */
+    public static int dimension(BytesRef bytesRef) {
+        if (isLegacy(bytesRef)) {
+            return deserialize(bytesRef).length;
+        }
+        return (bytesRef.length - RAW_HEADER_LENGTH) / Float.BYTES;
+    }
+
+    /**
+     * Decodes the vector into a new array
+     *
+     * @param bytesRef encoded vector
+     * @return decoded vector
+     */
+    public static float[] deserialize(BytesRef bytesRef) {
+        if (isLegacy(bytesRef)) {
+            return deserializeLegacy(bytesRef);
+        }
+        float[] vector = new float[(bytesRef.length - RAW_HEADER_LENGTH) / Float.BYTES];
+        asFloatBuffer(bytesRef).get(vector);
+        return vector;
+    }
+
+    /**
+     * Decodes the vector into the given array without allocating. The array should be at least as
+     * long as the dimension of the encoded vector.
+     *
+     * @param bytesRef encoded vector
+     * @param vector destination array
+     * @return dimension of the decoded vector
+     */
+    public static int deserialize(BytesRef bytesRef, float[] vector) {
+        return deserialize(bytesRef, vector, 0);
+    }
+
+    /**
+     * Decodes the vector into the given array starting at offset, without allocating.
+     *
+     * @param bytesRef encoded vector
+     * @param vector destination array
+     * @param offset position in the destination array to write the first component to
+     * @return dimension of the decoded vector
+     */
+    public static int deserialize(BytesRef bytesRef, float[] vector, int offset) {
+        if (isLegacy(bytesRef)) {
+            float[] legacyVector = deserializeLegacy(bytesRef);
+            System.arraycopy(legacyVector, 0, vector, offset, legacyVector.length);
+            return legacyVector.length;
+        }
+        int dimension = (bytesRef.length - RAW_HEADER_LENGTH) / Float.BYTES;
+        asFloatBuffer(bytesRef).get(vector, offset, dimension);
+        return dimension;
+    }
+
+    /**
+     * Returns a little-endian view over the encoded vector without copying it. Only applicable to the
+     * raw format.
+     *
+     * @param bytesRef encoded vector
+     * @return float view over the vector bytes
+     */
+    public static FloatBuffer asFloatBuffer(BytesRef bytesRef) {
+        if (isLegacy(bytesRef)) {
+            throw new IllegalStateException("Cannot create a float view over a java serialized vector");
+        }
+        return ByteBuffer.wrap(bytesRef.bytes, bytesRef.offset + RAW_HEADER_LENGTH, bytesRef.length - RAW_HEADER_LENGTH)
+                       .order(ByteOrder.LITTLE_ENDIAN)
+                       .asFloatBuffer();
+    }
+
+    /**
+     * Determines whether the value was written with java serialization by older versions of the plugin
+     *
+     * @param bytesRef encoded vector
+     * @return true if the value is in the legacy format
+     */
+    public static boolean isLegacy(BytesRef bytesRef) {
+        if (bytesRef.length > 0 && bytesRef.bytes[bytesRef.offset] == RAW_FORMAT_MARKER) {
+            return false;
+        }
+        if (bytesRef.length < 2) {
+            throw new IllegalStateException("Unrecognized knn vector encoding of length " + bytesRef.length);
+        }
+        int magic = ((bytesRef.bytes[bytesRef.offset] & 0xFF) << 8) | (bytesRef.bytes[bytesRef.offset + 1] & 0xFF);
+        if (magic != LEGACY_STREAM_MAGIC) {
+            throw new IllegalStateException("Unrecognized knn vector encoding with marker "
+                                                    + bytesRef.bytes[bytesRef.offset]);
+        }
+        return true;
+    }
+
+    private static float[] deserializeLegacy(BytesRef bytesRef) {
+        try (ByteArrayInputStream byteStream = new ByteArrayInputStream(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+             ObjectInputStream objectStream = new ObjectInputStream(byteStream)) {
+            return (float[]) objectStream.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
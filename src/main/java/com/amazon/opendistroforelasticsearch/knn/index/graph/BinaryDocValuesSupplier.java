@@ -0,0 +1,28 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import org.apache.lucene.index.BinaryDocValues;
+
+import java.io.IOException;
+
+/**
+ * Supplies a new iterator over the same doc values on every call, for writers that read the vectors more than once
+ */
+@FunctionalInterface
+public interface BinaryDocValuesSupplier {
+    BinaryDocValues get() throws IOException;
+}
@@ -0,0 +1,110 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A graph loaded into memory by a {@link KNNGraphEngine}, as held by the graph cache.
+ *
+ * The graph is reference counted: the loader holds the initial reference and every query takes one for as long as
+ * it searches the graph, so that the memory is only freed once the graph is out of the cache and no query uses it.
+ */
+public abstract class KNNGraph {
+
+    /**
+     * References to the graph: one held by the cache while the graph is in it, and one per query in flight
+     */
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private volatile Runnable freeAction = this::free;
+
+    /**
+     * Searches the graph for the k nearest neighbours of the query vector among the docs set in the filter.
+     * Docs that are not set are never added to the results, so they do not take up any of the k slots.
+     *
+     * @param query query vector
+     * @param k number of neighbours to return
+     * @param fieldAttributes attributes of the field, holding the query time parameters of the engine
+     * @param filter words of a bitset over doc ids, as in FixedBitSet#getBits(), or null to accept all docs
+     * @param ids buffer of at least k elements to write the doc ids to
+     * @param distances buffer of at least k elements to write the distances to, in the scale of
+     *                  {@link com.amazon.opendistroforelasticsearch.knn.index.SpaceType#distance(float[], float[])}
+     * @return number of results written to the buffers, in no particular order
+     */
+    public abstract int search(float[] query, int k, Map<String, String> fieldAttributes, long[] filter, int[] ids,
+                               float[] distances);
+
+    /**
+     * @return memory held by the loaded graph in KB, the unit the cache weight is tracked in
+     */
+    public abstract long getMemorySize();
+
+    /**
+     * Converts a size in bytes to KB, the unit of {@link #getMemorySize()}, rounding up. Every engine converts
+     * through it so that the weights of graphs of the same size agree.
+     *
+     * @param bytes size in bytes
+     * @return size in KB
+     */
+    public static long bytesToKB(long bytes) {
+        return (bytes + 1023) / 1024;
+    }
+
+    /**
+     * Frees the memory held by the graph. Only called once, after the last reference is released.
+     */
+    public abstract void free();
+
+    /**
+     * Takes a reference to the graph so that its memory is not freed while it is being queried
+     *
+     * @return true if the reference was taken, false if the last reference was already released
+     */
+    public boolean acquire() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference taken with {@link #acquire()}, or the initial one held by the owner of the graph.
+     * Releasing the last reference runs the free action, which frees the memory.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            freeAction.run();
+        } else if (count < 0) {
+            throw new IllegalStateException("Graph released more times than it was acquired");
+        }
+    }
+
+    /**
+     * Sets how the memory is freed once the last reference is released. Defaults to {@link #free()}.
+     *
+     * @param freeAction action freeing the graph
+     */
+    public void setFreeAction(Runnable freeAction) {
+        this.freeAction = freeAction;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds and loads the per segment graphs of knn fields. Engines are discovered with {@link java.util.ServiceLoader}
+ * and looked up through {@link KNNGraphEngines}.
+ *
+ * The name and version of the engine that built a graph are part of its file name, so that segments are always
+ * read by the engine that wrote them. Several versions of an engine can be registered side by side: new segments
+ * are written with the latest one while older segments are still loaded with the version they were built with.
+ */
+public interface KNNGraphEngine {
+
+    /**
+     * @return name of the engine in the mapping and in graph file names. Only lower case letters, digits and
+     *         underscores, starting with a letter.
+     */
+    String getName();
+
+    /**
+     * @return version of the graph format written by the engine
+     */
+    int getVersion();
+
+    /**
+     * @param spaceType space of a field
+     * @return whether the engine can build graphs in the space
+     */
+    boolean supports(SpaceType spaceType);
+
+    /**
+     * @param encoding encoding of a field
+     * @return whether the graphs of the engine can hold the vectors of a field in the encoding. By default they
+     *         only hold full precision vectors.
+     */
+    default boolean supports(VectorEncoding encoding) {
+        return encoding == VectorEncoding.FP32;
+    }
+
+    /**
+     * @return whether the distances returned by the graphs are approximate, as for compressed vectors, in which case
+     *         searches re-score the nearest docs against the full precision vectors. By default graphs hold the
+     *         vectors themselves.
+     */
+    default boolean approximatesDistances() {
+        return false;
+    }
+
+    /**
+     * Estimates how many of the docs nearest to the query a search visits before the filter is applied. Searches
+     * score filtered docs exactly instead when fewer than k of them are expected among those. By default the graph
+     * is searched as an hnsw graph, which visits the efSearch nearest docs.
+     *
+     * @param fieldAttributes attributes of the field, holding the query time parameters of the engine
+     * @param k number of neighbours searched for
+     * @param maxDoc number of docs in the segment
+     * @return number of docs visited
+     */
+    default long getSearchBreadth(Map<String, String> fieldAttributes, int k, int maxDoc) {
+        return Math.max(k, KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.HNSW_ALGO_EF_SEARCH, k));
+    }
+
+    /**
+     * Builds the graph of the vectors and writes it to the given path. The graph cache later loads the file with a
+     * codec footer appended to it.
+     *
+     * @param values vectors of the segment, which can be read more than once
+     * @param spaceType space of the field
+     * @param fieldAttributes attributes of the field, holding the construction parameters of the engine
+     * @param path path to write the graph to
+     * @return number of vectors in the graph. Nothing is written when there are none.
+     * @throws IOException if the vectors cannot be read or the graph cannot be written
+     */
+    int build(BinaryDocValuesSupplier values, SpaceType spaceType, Map<String, String> fieldAttributes, String path)
+            throws IOException;
+
+    /**
+     * Builds the graph of a merged segment. By default the graph is built from scratch as with {@link #build};
+     * engines that can start from the graphs of the merged segments override it.
+     *
+     * @param values vectors of the merged segment, which can be read more than once
+     * @param spaceType space of the field
+     * @param fieldAttributes attributes of the field, holding the construction parameters of the engine
+     * @param mergedGraphs graphs of the field in the segments being merged that were built by this engine version
+     * @param path path to write the graph to
+     * @return number of vectors in the graph. Nothing is written when there are none.
+     * @throws IOException if the vectors or the merged graphs cannot be read or the graph cannot be written
+     */
+    default int merge(BinaryDocValuesSupplier values, SpaceType spaceType, Map<String, String> fieldAttributes,
+                      List<KNNMergedGraph> mergedGraphs, String path) throws IOException {
+        return build(values, spaceType, fieldAttributes, path);
+    }
+
+    /**
+     * Loads a graph written by {@link #build} for querying
+     *
+     * @param path path of the graph file
+     * @param spaceType space the graph was built in
+     * @return loaded graph, holding the reference of the caller
+     * @throws IOException if the graph cannot be read
+     */
+    KNNGraph load(String path, SpaceType spaceType) throws IOException;
+
+    /**
+     * Estimates the memory a graph takes once loaded, before loading it
+     *
+     * @param path path of the graph file
+     * @return estimated size in KB, 0 if there is no such file
+     */
+    default long estimateMemorySize(String path) {
+        File file = new File(path);
+        if (!file.exists() || !file.isFile()) {
+            return 0;
+        }
+        return KNNGraph.bytesToKB(file.length());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNCodec;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of the {@link KNNGraphEngine}s on the classpath, and naming of their graph files.
+ *
+ * Graph files are named {@code <segment>_<engine>-<version>_<field>.hnsw}. Graphs written before engines were
+ * pluggable are named {@code <segment>_<version>_<field>.hnsw} and were all built by nmslib.
+ *
+ * The engine of a knn field is named in its mapping, and resolved here rather than against a fixed list, so that
+ * any registered engine can be mapped.
+ */
+public final class KNNGraphEngines {
+
+    /**
+     * Engine of the graphs whose file name only holds a version
+     */
+    static final String LEGACY_ENGINE = "nmslib";
+
+    /**
+     * Engine of the fields whose mapping does not name one
+     */
+    public static final String DEFAULT_ENGINE = LEGACY_ENGINE;
+
+    /**
+     * Engine names start with a letter, so that they cannot be mistaken for the version of a legacy file name, and
+     * never contain the dash separating them from the version
+     */
+    private static final String ENGINE_NAME = "[a-z][a-z0-9_]*";
+
+    /**
+     * Token between the segment and the field in a graph file name: the engine and version, or only a version
+     */
+    private static final Pattern ENGINE_TOKEN = Pattern.compile("(" + ENGINE_NAME + "-)?[0-9]+");
+
+    /**
+     * Graph file name, capturing the engine, if any, and the version. Segment names never contain an underscore
+     * past the leading one.
+     */
+    private static final Pattern GRAPH_FILE = Pattern.compile("_[^_]*_(?:(" + ENGINE_NAME + ")-)?([0-9]+)_.+");
+
+    private static final Map<String, KNNGraphEngine> ENGINES;
+    private static final Map<String, KNNGraphEngine> LATEST_ENGINES;
+
+    static {
+        Map<String, KNNGraphEngine> engines = new HashMap<>();
+        Map<String, KNNGraphEngine> latestEngines = new HashMap<>();
+        for (KNNGraphEngine engine : ServiceLoader.load(KNNGraphEngine.class, KNNGraphEngine.class.getClassLoader())) {
+            if (!engine.getName().matches(ENGINE_NAME)) {
+                throw new IllegalStateException("Invalid graph engine name [" + engine.getName() + "]");
+            }
+            KNNGraphEngine existing = engines.putIfAbsent(key(engine.getName(), engine.getVersion()), engine);
+            if (existing != null) {
+                throw new IllegalStateException("Graph engine " + key(engine.getName(), engine.getVersion())
+                                                        + " is registered twice");
+            }
+            latestEngines.merge(engine.getName(), engine,
+                    (latest, candidate) -> candidate.getVersion() > latest.getVersion() ? candidate : latest);
+        }
+        ENGINES = Collections.unmodifiableMap(engines);
+        LATEST_ENGINES = Collections.unmodifiableMap(latestEngines);
+    }
+
+    private KNNGraphEngines() {}
+
+    /**
+     * Parses the engine of a mapping
+     *
+     * @param name name of the engine, or null for the default engine
+     * @return latest registered version of the engine
+     * @throws IllegalArgumentException if no engine is registered under the name
+     */
+    public static KNNGraphEngine parse(String name) {
+        KNNGraphEngine engine = LATEST_ENGINES.get(name == null ? DEFAULT_ENGINE : name.toLowerCase(Locale.ROOT));
+        if (engine == null) {
+            throw new IllegalArgumentException("Unsupported engine [" + name + "], expected one of " + getNames());
+        }
+        return engine;
+    }
+
+    /**
+     * @return names of the registered engines, in alphabetical order
+     */
+    public static Set<String> getNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(LATEST_ENGINES.keySet()));
+    }
+
+    /**
+     * Returns the engine new graphs are written with
+     *
+     * @param name name of the engine, as in the attributes of a field, or null for the default engine
+     * @return latest registered version of the engine
+     */
+    public static KNNGraphEngine getLatest(String name) {
+        KNNGraphEngine engine = LATEST_ENGINES.get(name == null ? DEFAULT_ENGINE : name);
+        if (engine == null) {
+            throw new IllegalStateException("No graph engine registered under the name [" + name + "]");
+        }
+        return engine;
+    }
+
+    /**
+     * @param name name of the engine
+     * @param version version of the graph format
+     * @return engine reading graphs of the version
+     */
+    public static KNNGraphEngine getEngine(String name, int version) {
+        KNNGraphEngine engine = ENGINES.get(key(name, version));
+        if (engine == null) {
+            throw new IllegalStateException("No graph engine registered for " + key(name, version));
+        }
+        return engine;
+    }
+
+    /**
+     * Returns the engine that built a graph, from the name of its file
+     *
+     * @param graphPath path or name of a graph file
+     * @return engine to load the graph with
+     */
+    public static KNNGraphEngine getGraphEngine(String graphPath) {
+        String fileName = Paths.get(graphPath).getFileName().toString();
+        Matcher matcher = GRAPH_FILE.matcher(fileName);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid graph file name [" + fileName + "]");
+        }
+        String name = matcher.group(1) == null ? LEGACY_ENGINE : matcher.group(1);
+        try {
+            return getEngine(name, Integer.parseInt(matcher.group(2)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid graph file name [" + fileName + "]", e);
+        }
+    }
+
+    /**
+     * @param segmentName name of the segment
+     * @param engine engine building the graph
+     * @param field name of the knn field
+     * @return name of the graph file of the field in the segment
+     */
+    public static String graphFileName(String segmentName, KNNGraphEngine engine, String field) {
+        return String.format(Locale.ROOT, "%s_%s_%s%s", segmentName, key(engine.getName(), engine.getVersion()), field,
+                KNNCodec.HNSW_EXTENSION);
+    }
+
+    /**
+     * Tells whether a file of a segment is the graph of a field, whatever the engine that built it. Field names can
+     * contain underscores, so the whole name is matched rather than its end: the graph of field b is not the graph
+     * of field a_b.
+     *
+     * @param fileName name of a file of the segment
+     * @param segmentName name of the segment
+     * @param field name of the knn field
+     * @param extension extension of the graph files of the segment, {@link KNNCodec#HNSW_EXTENSION} or
+     *                  {@link KNNCodec#HNSW_COMPOUND_EXTENSION}
+     * @return true if the file is the graph of the field in the segment
+     */
+    public static boolean isGraphFile(String fileName, String segmentName, String field, String extension) {
+        String prefix = segmentName + "_";
+        String suffix = "_" + field + extension;
+        if (fileName.length() <= prefix.length() + suffix.length() || !fileName.startsWith(prefix)
+                    || !fileName.endsWith(suffix)) {
+            return false;
+        }
+        return ENGINE_TOKEN.matcher(fileName.substring(prefix.length(), fileName.length() - suffix.length())).matches();
+    }
+
+    private static String key(String name, int version) {
+        return name + "-" + version;
+    }
+}
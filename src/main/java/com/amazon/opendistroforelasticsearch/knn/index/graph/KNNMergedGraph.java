@@ -0,0 +1,57 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import org.apache.lucene.index.MergeState;
+
+/**
+ * The graph of a knn field in one of the segments being merged, which an engine can reuse to build the graph of
+ * the merged segment rather than inserting all the vectors again
+ */
+public final class KNNMergedGraph {
+
+    private final String path;
+    private final int maxDoc;
+    private final MergeState.DocMap docMap;
+
+    public KNNMergedGraph(String path, int maxDoc, MergeState.DocMap docMap) {
+        this.path = path;
+        this.maxDoc = maxDoc;
+        this.docMap = docMap;
+    }
+
+    /**
+     * @return path of the graph file
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of docs in the segment of the graph, deleted ones included
+     */
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    /**
+     * @return mapping of the doc ids of the segment of the graph to those of the merged segment, -1 for the docs
+     * dropped by the merge
+     */
+    public MergeState.DocMap getDocMap() {
+        return docMap;
+    }
+}
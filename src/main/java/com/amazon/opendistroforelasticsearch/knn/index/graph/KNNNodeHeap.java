@@ -0,0 +1,120 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Binary heap of graph nodes keyed on their distance to a query, over primitive arrays that are reused across
+ * searches. The top is the nearest node of a min heap and the farthest node of a max heap.
+ */
+public final class KNNNodeHeap {
+
+    private final boolean maxHeap;
+    private int[] nodes;
+    private float[] distances;
+    private int size = 0;
+
+    public KNNNodeHeap(int capacity, boolean maxHeap) {
+        this.maxHeap = maxHeap;
+        this.nodes = new int[Math.max(1, capacity)];
+        this.distances = new float[nodes.length];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int topNode() {
+        return nodes[0];
+    }
+
+    public float topDistance() {
+        return distances[0];
+    }
+
+    public int node(int index) {
+        return nodes[index];
+    }
+
+    public float distance(int index) {
+        return distances[index];
+    }
+
+    public void push(int node, float distance) {
+        if (size == nodes.length) {
+            nodes = ArrayUtil.grow(nodes, size + 1);
+            distances = ArrayUtil.grow(distances, size + 1);
+        }
+        nodes[size] = node;
+        distances[size] = distance;
+        int index = size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!above(index, parent)) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    /**
+     * Removes the top of the heap
+     *
+     * @return node that was at the top
+     */
+    public int pop() {
+        int top = nodes[0];
+        size--;
+        nodes[0] = nodes[size];
+        distances[0] = distances[size];
+        int index = 0;
+        while (true) {
+            int first = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && above(left, first)) {
+                first = left;
+            }
+            if (right < size && above(right, first)) {
+                first = right;
+            }
+            if (first == index) {
+                return top;
+            }
+            swap(index, first);
+            index = first;
+        }
+    }
+
+    private boolean above(int i, int j) {
+        return maxHeap ? distances[i] > distances[j] : distances[i] < distances[j];
+    }
+
+    private void swap(int i, int j) {
+        int node = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = node;
+        float distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+    }
+}
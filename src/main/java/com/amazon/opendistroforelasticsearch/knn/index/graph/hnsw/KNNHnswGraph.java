@@ -0,0 +1,314 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorQuantizer;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNNodeHeap;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An hnsw graph written by {@link KNNHnswGraphBuilder}, searched in place through a memory mapping of its file.
+ *
+ * The vectors and the base layer links are never copied onto the java heap, only the node ids of the upper layers
+ * are. Searches are allocation free: the heaps, the visited set and the buffer vectors are read into are kept per
+ * thread and reused. The mapping is released when the graph is freed.
+ *
+ * Graphs of fields with a reduced precision encoding hold quantized vectors, which are decoded to compute the
+ * distances, so the nearest docs found have to be re-scored against the full precision vectors.
+ */
+final class KNNHnswGraph extends KNNGraph {
+
+    static final String CODEC_NAME = "KNNHnswGraph";
+    static final int VERSION_START = 0;
+    /**
+     * Adds the quantizer of the vectors after the entry point, for graphs of quantized vectors only
+     */
+    static final int VERSION_QUANTIZED = 1;
+    /**
+     * Adds the number of routing nodes after the entry point, for full precision graphs with routing nodes only.
+     * Routing nodes hold the vectors of docs dropped by a merge, with a doc id of -1, and are never returned.
+     */
+    static final int VERSION_ROUTING_NODES = 2;
+    static final int VERSION_CURRENT = VERSION_ROUTING_NODES;
+
+    private static final ThreadLocal<SearchState> SEARCH_STATE = ThreadLocal.withInitial(SearchState::new);
+
+    private final Directory directory;
+    private final IndexInput input;
+    private final RandomAccessInput data;
+    private final SpaceType spaceType;
+    /**
+     * Quantizer of the vectors, or null if they are full precision
+     */
+    private final KNNVectorQuantizer quantizer;
+    private final int dimension;
+    private final int size;
+    private final int maxLevel;
+    private final int entryPoint;
+    private final int routingNodes;
+    private final long docsOffset;
+    private final long vectorsOffset;
+    private final int vectorLength;
+    private final long baseLayerOffset;
+    private final long baseLayerStride;
+    private final long upperLayerStride;
+    /**
+     * Per upper layer, the nodes on it in ascending order and the offset of their links
+     */
+    private final int[][] layerNodes;
+    private final long[] layerOffsets;
+    private final long memorySize;
+
+    private KNNHnswGraph(Directory directory, IndexInput input, SpaceType spaceType) throws IOException {
+        this.directory = directory;
+        this.input = input;
+        this.spaceType = spaceType;
+        int version = CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+        dimension = input.readInt();
+        size = input.readInt();
+        int m = input.readInt();
+        maxLevel = input.readInt();
+        entryPoint = input.readInt();
+        quantizer = version == VERSION_QUANTIZED ? KNNVectorQuantizer.read(input) : null;
+        routingNodes = version == VERSION_ROUTING_NODES ? input.readInt() : 0;
+        docsOffset = input.getFilePointer();
+        vectorsOffset = docsOffset + (long) size * Integer.BYTES;
+        vectorLength = quantizer == null ? dimension * Float.BYTES : quantizer.bytesPerVector();
+        baseLayerOffset = vectorsOffset + (long) size * vectorLength;
+        baseLayerStride = (long) (1 + 2 * m) * Integer.BYTES;
+        upperLayerStride = (long) (1 + m) * Integer.BYTES;
+
+        layerNodes = new int[maxLevel + 1][];
+        layerOffsets = new long[maxLevel + 1];
+        input.seek(baseLayerOffset + size * baseLayerStride);
+        for (int level = 1; level <= maxLevel; level++) {
+            int[] nodes = new int[input.readInt()];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = input.readInt();
+            }
+            layerNodes[level] = nodes;
+            layerOffsets[level] = input.getFilePointer();
+            input.seek(layerOffsets[level] + nodes.length * upperLayerStride);
+        }
+        data = input.randomAccessSlice(0, input.length());
+
+        // The mapped file, which the operating system pages in and out, plus the upper layer nodes on the heap
+        long upperLayerBytes = 0;
+        for (int level = 1; level <= maxLevel; level++) {
+            upperLayerBytes += (long) layerNodes[level].length * Integer.BYTES;
+        }
+        memorySize = bytesToKB(input.length() + upperLayerBytes);
+    }
+
+    /**
+     * Maps the graph file into memory
+     *
+     * @param path path of the graph file
+     * @param spaceType space the graph was built in
+     * @return graph holding the reference of the caller
+     * @throws IOException if the file cannot be mapped or is not an hnsw graph
+     */
+    static KNNHnswGraph open(String path, SpaceType spaceType) throws IOException {
+        Path file = Paths.get(path);
+        Directory directory = new MMapDirectory(file.getParent());
+        IndexInput input = null;
+        boolean success = false;
+        try {
+            input = directory.openInput(file.getFileName().toString(), IOContext.READ);
+            KNNHnswGraph graph = new KNNHnswGraph(directory, input, spaceType);
+            success = true;
+            return graph;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(input, directory);
+            }
+        }
+    }
+
+    @Override
+    public int search(float[] query, int k, Map<String, String> fieldAttributes, long[] filter, int[] ids,
+                      float[] distances) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException(String.format("Query vector dimension mismatch. Expected: %d, Given: %d",
+                    dimension, query.length));
+        }
+        if (ids.length < k || distances.length < k) {
+            throw new IllegalArgumentException("Result buffers must hold at least k = " + k + " elements");
+        }
+        if (size == 0 || k <= 0) {
+            return 0;
+        }
+        int ef = Math.max(k, getEfSearch(fieldAttributes));
+        SearchState state = SEARCH_STATE.get();
+        state.prepare(size, dimension, vectorLength);
+        try {
+            int ep = entryPoint;
+            float epDistance = distance(query, ep, state);
+            for (int level = maxLevel; level > 0; level--) {
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    long offset = layerOffsets[level] + Arrays.binarySearch(layerNodes[level], ep) * upperLayerStride;
+                    int count = data.readInt(offset);
+                    for (int i = 1; i <= count; i++) {
+                        int neighbour = data.readInt(offset + (long) i * Integer.BYTES);
+                        float distance = distance(query, neighbour, state);
+                        if (distance < epDistance) {
+                            ep = neighbour;
+                            epDistance = distance;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            searchBaseLayer(query, ep, epDistance, ef, filter, state);
+
+            KNNNodeHeap results = state.results;
+            while (results.size() > k) {
+                results.pop();
+            }
+            for (int i = 0; i < results.size(); i++) {
+                ids[i] = data.readInt(docsOffset + (long) results.node(i) * Integer.BYTES);
+                distances[i] = results.distance(i);
+            }
+            return results.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            state.visited.clear();
+        }
+    }
+
+    /**
+     * Collects the ef nearest accepted nodes of the base layer into the results heap. Nodes rejected by the filter
+     * and routing nodes are still traversed, as the accepted nodes may only be reachable through them.
+     */
+    private void searchBaseLayer(float[] query, int ep, float epDistance, int ef, long[] filter,
+                                 SearchState state) throws IOException {
+        KNNNodeHeap candidates = state.candidates;
+        KNNNodeHeap results = state.results;
+        state.visited.visit(ep);
+        candidates.push(ep, epDistance);
+        if (isAccepted(ep, filter)) {
+            results.push(ep, epDistance);
+        }
+        while (candidates.size() > 0) {
+            if (results.size() >= ef && candidates.topDistance() > results.topDistance()) {
+                break;
+            }
+            long offset = baseLayerOffset + candidates.pop() * baseLayerStride;
+            int count = data.readInt(offset);
+            for (int i = 1; i <= count; i++) {
+                int neighbour = data.readInt(offset + (long) i * Integer.BYTES);
+                if (!state.visited.visit(neighbour)) {
+                    continue;
+                }
+                float distance = distance(query, neighbour, state);
+                if (results.size() < ef || distance < results.topDistance()) {
+                    candidates.push(neighbour, distance);
+                    if (isAccepted(neighbour, filter)) {
+                        results.push(neighbour, distance);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isAccepted(int node, long[] filter) throws IOException {
+        if (filter == null && routingNodes == 0) {
+            return true;
+        }
+        int doc = data.readInt(docsOffset + (long) node * Integer.BYTES);
+        return doc != -1 && KNNUtil.isAccepted(doc, filter);
+    }
+
+    private float distance(float[] query, int node, SearchState state) throws IOException {
+        long offset = vectorsOffset + (long) node * vectorLength;
+        float[] vector = state.vector;
+        if (quantizer != null) {
+            byte[] bytes = state.bytes;
+            for (int i = 0; i < vectorLength; i++) {
+                bytes[i] = data.readByte(offset + i);
+            }
+            quantizer.decode(bytes, vector);
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = Float.intBitsToFloat(data.readInt(offset + (long) i * Float.BYTES));
+            }
+        }
+        return spaceType.distance(query, vector);
+    }
+
+    private static int getEfSearch(Map<String, String> fieldAttributes) {
+        return KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.HNSW_ALGO_EF_SEARCH,
+                KNNSettings.INDEX_KNN_ALGO_PARAM_EF_SEARCH_SETTING.getDefault(Settings.EMPTY));
+    }
+
+    @Override
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    @Override
+    public void free() {
+        IOUtils.closeWhileHandlingException(input, directory);
+    }
+
+    /**
+     * Buffers of the searches of a thread
+     */
+    private static final class SearchState {
+        private final KNNNodeHeap candidates = new KNNNodeHeap(64, false);
+        private final KNNNodeHeap results = new KNNNodeHeap(64, true);
+        private final KNNVisitedNodes visited = new KNNVisitedNodes();
+        private float[] vector = new float[0];
+        private byte[] bytes = new byte[0];
+
+        private void prepare(int size, int dimension, int vectorLength) {
+            candidates.clear();
+            results.clear();
+            visited.ensureCapacity(size);
+            if (vector.length != dimension) {
+                vector = new float[dimension];
+            }
+            if (bytes.length < vectorLength) {
+                bytes = new byte[vectorLength];
+            }
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorQuantizer;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNNodeHeap;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Builds an hnsw graph one vector at a time, as described in "Efficient and robust approximate nearest neighbor
+ * search using Hierarchical Navigable Small World graphs" (Malkov and Yashunin), and writes it in the format read
+ * by {@link KNNHnswGraph}.
+ *
+ * Nodes are numbered in the order they are added. Each node keeps at most 2 * M neighbours on the base layer and
+ * M on the upper layers, chosen with the neighbour selection heuristic so that the links spread out in all
+ * directions. The vectors and links of the segment are held on the java heap until the graph is written.
+ *
+ * The links are always chosen from the full precision vectors. With a reduced precision encoding, the vectors are
+ * only quantized when the graph is written, with int8 trained on the vectors of the graph.
+ */
+final class KNNHnswGraphBuilder {
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The graph layout is a function of the vectors and their order only
+     */
+    private static final long SEED = 0x5EEDL;
+
+    /**
+     * Largest share of the nodes of a seed graph whose docs were dropped. Past it, the vectors and links the routing
+     * nodes hold outweigh the cost of inserting the vectors of the seed again.
+     */
+    private static final int MAX_ROUTING_NODES_DIVISOR = 4;
+
+    private final SpaceType spaceType;
+    private final VectorEncoding encoding;
+    private final int m;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(SEED);
+
+    private int dimension = -1;
+    private int size = 0;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    /**
+     * Number of nodes whose doc was dropped, which only route searches and hold a doc id of -1
+     */
+    private int routingNodes = 0;
+    private int[] docs = new int[16];
+    private float[][] vectors = new float[16][];
+    /**
+     * Links of each node per layer, with the number of neighbours first
+     */
+    private int[][][] neighbours = new int[16][][];
+
+    private final KNNNodeHeap candidates = new KNNNodeHeap(64, false);
+    private final KNNNodeHeap results = new KNNNodeHeap(64, true);
+    private final KNNVisitedNodes visited = new KNNVisitedNodes();
+    private int[] selectedNodes = new int[64];
+    private float[] selectedDistances = new float[64];
+    private final int[] linkNodes;
+    private final float[] linkDistances;
+
+    KNNHnswGraphBuilder(SpaceType spaceType, int m, int efConstruction) {
+        this(spaceType, m, efConstruction, VectorEncoding.FP32);
+    }
+
+    KNNHnswGraphBuilder(SpaceType spaceType, int m, int efConstruction, VectorEncoding encoding) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2, got " + m);
+        }
+        this.spaceType = spaceType;
+        this.encoding = encoding;
+        this.m = m;
+        this.efConstruction = Math.max(1, efConstruction);
+        this.levelMultiplier = 1 / Math.log(m);
+        this.linkNodes = new int[2 * m + 1];
+        this.linkDistances = new float[2 * m + 1];
+    }
+
+    /**
+     * @return number of vectors added so far, including those of the routing nodes of a seed
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return whether the graph is written with quantized vectors
+     */
+    boolean isQuantized() {
+        return encoding != VectorEncoding.FP32;
+    }
+
+    /**
+     * Inserts the vector of the given doc into the graph
+     *
+     * @param doc doc id of the vector
+     * @param vector vector, which is kept by the builder
+     */
+    void add(int doc, float[] vector) {
+        if (dimension == -1) {
+            dimension = vector.length;
+        } else if (vector.length != dimension) {
+            throw new IllegalStateException(String.format("Vector dimension mismatch. Expected: %d, Given: %d",
+                    dimension, vector.length));
+        }
+
+        int node = size++;
+        docs = ArrayUtil.grow(docs, size);
+        if (vectors.length < size) {
+            int capacity = ArrayUtil.oversize(size, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            float[][] newVectors = new float[capacity][];
+            System.arraycopy(vectors, 0, newVectors, 0, node);
+            vectors = newVectors;
+            int[][][] newNeighbours = new int[capacity][][];
+            System.arraycopy(neighbours, 0, newNeighbours, 0, node);
+            neighbours = newNeighbours;
+        }
+        docs[node] = doc;
+        vectors[node] = vector;
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        neighbours[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            neighbours[node][l] = new int[1 + maxConnections(l)];
+        }
+
+        if (entryPoint == -1) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int ep = entryPoint;
+        float epDistance = spaceType.distance(vector, vectors[ep]);
+        for (int l = maxLevel; l > level; l--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] links = neighbours[ep][l];
+                for (int i = 1; i <= links[0]; i++) {
+                    float distance = spaceType.distance(vector, vectors[links[i]]);
+                    if (distance < epDistance) {
+                        ep = links[i];
+                        epDistance = distance;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        visited.ensureCapacity(size);
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLayer(vector, ep, epDistance, l);
+            // Drain the max heap into ascending order of distance
+            int count = results.size();
+            selectedNodes = ArrayUtil.grow(selectedNodes, count);
+            selectedDistances = ArrayUtil.grow(selectedDistances, count);
+            for (int i = count - 1; i >= 0; i--) {
+                selectedDistances[i] = results.topDistance();
+                selectedNodes[i] = results.pop();
+            }
+            ep = selectedNodes[0];
+            epDistance = selectedDistances[0];
+
+            int selected = selectNeighbours(selectedNodes, selectedDistances, count, m);
+            int[] links = neighbours[node][l];
+            for (int i = 0; i < selected; i++) {
+                links[++links[0]] = selectedNodes[i];
+            }
+            for (int i = 0; i < selected; i++) {
+                link(selectedNodes[i], node, selectedDistances[i], l);
+            }
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Starts the graph from a graph written by {@link #write}, whose nodes and links are reused as they are. The
+     * vectors added afterwards are inserted into it. Only an empty builder can be seeded, with a graph built with
+     * the same M.
+     *
+     * The nodes of the dropped docs stay in the graph as routing nodes, as removing them would leave their
+     * neighbours with links to repair. Routing nodes are traversed by searches like the nodes a filter rejects, but
+     * never returned.
+     *
+     * @param path path of the graph file
+     * @param docMap maps the doc ids of the graph to those of the graph being built, -1 for the docs to drop
+     * @param seededDocs set to the doc ids of the graph being built that the seed holds
+     * @return true if the graph was seeded, false if the graph has a different M, quantized vectors or more than a
+     * quarter of routing nodes, in which case the builder is left empty
+     * @throws IOException if the graph cannot be read
+     */
+    boolean seed(String path, IntUnaryOperator docMap, BitSet seededDocs) throws IOException {
+        if (size != 0) {
+            throw new IllegalStateException("Cannot seed a graph that already has vectors");
+        }
+        Path file = Paths.get(path);
+        try (Directory directory = new MMapDirectory(file.getParent());
+             IndexInput input = directory.openInput(file.getFileName().toString(), IOContext.READONCE)) {
+            int version = CodecUtil.checkHeader(input, KNNHnswGraph.CODEC_NAME, KNNHnswGraph.VERSION_START,
+                    KNNHnswGraph.VERSION_CURRENT);
+            int seedDimension = input.readInt();
+            int seedSize = input.readInt();
+            int seedM = input.readInt();
+            int seedMaxLevel = input.readInt();
+            int seedEntryPoint = input.readInt();
+            if ((version != KNNHnswGraph.VERSION_START && version != KNNHnswGraph.VERSION_ROUTING_NODES)
+                        || seedM != m || seedSize == 0) {
+                return false;
+            }
+            if (version == KNNHnswGraph.VERSION_ROUTING_NODES) {
+                input.readInt();
+            }
+
+            // The docs are checked first, so that a graph with too many dropped docs is not read any further
+            int[] seedDocs = new int[ArrayUtil.oversize(seedSize, Integer.BYTES)];
+            int seedRoutingNodes = 0;
+            for (int node = 0; node < seedSize; node++) {
+                int doc = input.readInt();
+                seedDocs[node] = doc == -1 ? -1 : docMap.applyAsInt(doc);
+                if (seedDocs[node] == -1 && ++seedRoutingNodes > seedSize / MAX_ROUTING_NODES_DIVISOR) {
+                    return false;
+                }
+            }
+
+            int capacity = ArrayUtil.oversize(seedSize, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            float[][] seedVectors = new float[capacity][];
+            for (int node = 0; node < seedSize; node++) {
+                float[] vector = new float[seedDimension];
+                for (int i = 0; i < seedDimension; i++) {
+                    vector[i] = Float.intBitsToFloat(input.readInt());
+                }
+                seedVectors[node] = vector;
+            }
+
+            int[][][] seedNeighbours = new int[capacity][][];
+            for (int node = 0; node < seedSize; node++) {
+                seedNeighbours[node] = new int[][] {readLinks(input, 0)};
+            }
+            for (int level = 1; level <= seedMaxLevel; level++) {
+                int[] nodes = new int[input.readInt()];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = input.readInt();
+                }
+                // A node on a layer is on all the layers below it, so its links are appended in order of layer
+                for (int node : nodes) {
+                    seedNeighbours[node] = Arrays.copyOf(seedNeighbours[node], level + 1);
+                    seedNeighbours[node][level] = readLinks(input, level);
+                }
+            }
+
+            dimension = seedDimension;
+            size = seedSize;
+            maxLevel = seedMaxLevel;
+            entryPoint = seedEntryPoint;
+            routingNodes = seedRoutingNodes;
+            docs = seedDocs;
+            vectors = seedVectors;
+            neighbours = seedNeighbours;
+            for (int node = 0; node < seedSize; node++) {
+                if (seedDocs[node] != -1) {
+                    seededDocs.set(seedDocs[node]);
+                }
+            }
+            return true;
+        }
+    }
+
+    private int[] readLinks(IndexInput input, int level) throws IOException {
+        int[] links = new int[1 + maxConnections(level)];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = input.readInt();
+        }
+        return links;
+    }
+
+    /**
+     * Collects the efConstruction nodes of the layer nearest to the vector into the results heap
+     */
+    private void searchLayer(float[] vector, int ep, float epDistance, int level) {
+        candidates.clear();
+        results.clear();
+        visited.visit(ep);
+        candidates.push(ep, epDistance);
+        results.push(ep, epDistance);
+        while (candidates.size() > 0) {
+            if (results.size() >= efConstruction && candidates.topDistance() > results.topDistance()) {
+                break;
+            }
+            int[] links = neighbours[candidates.pop()][level];
+            for (int i = 1; i <= links[0]; i++) {
+                int neighbour = links[i];
+                if (!visited.visit(neighbour)) {
+                    continue;
+                }
+                float distance = spaceType.distance(vector, vectors[neighbour]);
+                if (results.size() < efConstruction || distance < results.topDistance()) {
+                    candidates.push(neighbour, distance);
+                    results.push(neighbour, distance);
+                    if (results.size() > efConstruction) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        visited.clear();
+    }
+
+    /**
+     * Adds a link from the node to its new neighbour, pruning the links of the node with the heuristic when it
+     * already has as many as its layer allows
+     */
+    private void link(int node, int neighbour, float distance, int level) {
+        int[] links = neighbours[node][level];
+        int maxConnections = links.length - 1;
+        if (links[0] < maxConnections) {
+            links[++links[0]] = neighbour;
+            return;
+        }
+
+        // Insertion sort of the current links and the new one by distance to the node
+        int count = 0;
+        for (int i = 0; i <= maxConnections; i++) {
+            int candidate = i < maxConnections ? links[i + 1] : neighbour;
+            float candidateDistance = i < maxConnections ? spaceType.distance(vectors[node], vectors[candidate]) : distance;
+            int position = count++;
+            while (position > 0 && linkDistances[position - 1] > candidateDistance) {
+                linkNodes[position] = linkNodes[position - 1];
+                linkDistances[position] = linkDistances[position - 1];
+                position--;
+            }
+            linkNodes[position] = candidate;
+            linkDistances[position] = candidateDistance;
+        }
+
+        int selected = selectNeighbours(linkNodes, linkDistances, count, maxConnections);
+        links[0] = selected;
+        System.arraycopy(linkNodes, 0, links, 1, selected);
+    }
+
+    /**
+     * Keeps a candidate only if it is nearer to the base node than to any candidate kept before it, so that the
+     * neighbours are not all clustered on one side of the node. The kept candidates are moved to the front.
+     *
+     * @param nodes candidates in ascending order of distance to the base node
+     * @param distances distances of the candidates to the base node
+     * @param count number of candidates
+     * @param max maximum number of candidates to keep
+     * @return number of candidates kept
+     */
+    private int selectNeighbours(int[] nodes, float[] distances, int count, int max) {
+        int selected = 0;
+        for (int i = 0; i < count && selected < max; i++) {
+            float[] vector = vectors[nodes[i]];
+            boolean keep = true;
+            for (int j = 0; j < selected; j++) {
+                if (spaceType.distance(vector, vectors[nodes[j]]) < distances[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                nodes[selected] = nodes[i];
+                distances[selected] = distances[i];
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    private int maxConnections(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    /**
+     * Writes the graph to the given path. All ints are big endian and every neighbour list has a fixed size, so
+     * that the lists can be read in place:
+     *
+     * header, dimension, node count, M, max layer, entry point node
+     * quantizer, only for a reduced precision encoding
+     * routing node count, only for a graph with routing nodes
+     * doc id of each node, -1 for a routing node
+     * vector of each node, as float bits or quantized
+     * base layer: per node, neighbour count then 2 * M neighbour slots
+     * per upper layer: node count, the nodes in ascending order, then per node neighbour count and M slots
+     *
+     * @param path path to write the graph to
+     * @throws IOException if the file cannot be written
+     */
+    void write(String path) throws IOException {
+        if (size == 0) {
+            throw new IllegalStateException("Cannot write a graph without vectors");
+        }
+        KNNVectorQuantizer quantizer = isQuantized() ? trainQuantizer() : null;
+        Path file = Paths.get(path);
+        try (IndexOutput out = new OutputStreamIndexOutput("KNNHnswGraph(path=\"" + path + "\")",
+                file.getFileName().toString(), Files.newOutputStream(file), WRITE_BUFFER_SIZE)) {
+            // Full precision graphs without routing nodes are still written in the first version, which older versions
+            // can read. Quantized graphs are never seeded, so they have no routing nodes.
+            int version = KNNHnswGraph.VERSION_START;
+            if (quantizer != null) {
+                version = KNNHnswGraph.VERSION_QUANTIZED;
+            } else if (routingNodes > 0) {
+                version = KNNHnswGraph.VERSION_ROUTING_NODES;
+            }
+            CodecUtil.writeHeader(out, KNNHnswGraph.CODEC_NAME, version);
+            out.writeInt(dimension);
+            out.writeInt(size);
+            out.writeInt(m);
+            out.writeInt(maxLevel);
+            out.writeInt(entryPoint);
+            if (quantizer != null) {
+                quantizer.write(out);
+            } else if (routingNodes > 0) {
+                out.writeInt(routingNodes);
+            }
+            for (int node = 0; node < size; node++) {
+                out.writeInt(docs[node]);
+            }
+            if (quantizer != null) {
+                byte[] bytes = new byte[quantizer.bytesPerVector()];
+                for (int node = 0; node < size; node++) {
+                    quantizer.encode(vectors[node], bytes);
+                    out.writeBytes(bytes, bytes.length);
+                }
+            } else {
+                for (int node = 0; node < size; node++) {
+                    for (float component : vectors[node]) {
+                        out.writeInt(Float.floatToIntBits(component));
+                    }
+                }
+            }
+            for (int node = 0; node < size; node++) {
+                for (int link : neighbours[node][0]) {
+                    out.writeInt(link);
+                }
+            }
+            for (int level = 1; level <= maxLevel; level++) {
+                int count = 0;
+                for (int node = 0; node < size; node++) {
+                    if (neighbours[node].length > level) {
+                        count++;
+                    }
+                }
+                out.writeInt(count);
+                for (int node = 0; node < size; node++) {
+                    if (neighbours[node].length > level) {
+                        out.writeInt(node);
+                    }
+                }
+                for (int node = 0; node < size; node++) {
+                    if (neighbours[node].length > level) {
+                        for (int link : neighbours[node][level]) {
+                            out.writeInt(link);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the quantizer of the encoding, trained on the range of each component over the vectors of the graph
+     */
+    private KNNVectorQuantizer trainQuantizer() {
+        float[] min = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        for (int node = 0; node < size; node++) {
+            float[] vector = vectors[node];
+            for (int i = 0; i < dimension; i++) {
+                min[i] = Math.min(min[i], vector[i]);
+                max[i] = Math.max(max[i], vector[i]);
+            }
+        }
+        return KNNVectorQuantizer.create(encoding, min, max);
+    }
+}
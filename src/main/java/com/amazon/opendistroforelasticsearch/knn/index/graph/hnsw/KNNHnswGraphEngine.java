@@ -0,0 +1,138 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.BinaryDocValuesSupplier;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNMergedGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Graph engine building and searching hnsw graphs in java, for deployments where the native library cannot be
+ * used or where crossing JNI costs more than the search itself, as for small k.
+ *
+ * Graphs can be built in every space. Unlike nmslib, the graph is built on a single thread. The graph of a merged
+ * segment starts from the largest graph among the merged segments, so that only the vectors of the other segments
+ * are inserted, rather than all of them.
+ *
+ * Graphs of fields with a reduced precision encoding hold the quantized vectors. Their links are built from the
+ * full precision vectors, and the graph of a merged segment is built from scratch, as the quantization error would
+ * add up if the decoded vectors of a graph were quantized again.
+ */
+public class KNNHnswGraphEngine implements KNNGraphEngine {
+
+    public static final String NAME = "javahnsw";
+
+    /**
+     * Version of the graph format in the file names. {@link KNNHnswGraph} reads every format version written under
+     * it, so it is only bumped for a format it cannot read.
+     */
+    private static final int VERSION = 1;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(SpaceType spaceType) {
+        return true;
+    }
+
+    @Override
+    public boolean supports(VectorEncoding encoding) {
+        return true;
+    }
+
+    @Override
+    public int build(BinaryDocValuesSupplier values, SpaceType spaceType, Map<String, String> fieldAttributes,
+                     String path) throws IOException {
+        return addAndWrite(newBuilder(spaceType, fieldAttributes), values.get(), new BitSet(), path);
+    }
+
+    /**
+     * Seeds the graph with the largest of the merged graphs, keeping the nodes of its deleted docs to route searches,
+     * then inserts the vectors of the other segments. A graph with too many deleted docs is rebuilt instead.
+     */
+    @Override
+    public int merge(BinaryDocValuesSupplier values, SpaceType spaceType, Map<String, String> fieldAttributes,
+                     List<KNNMergedGraph> mergedGraphs, String path) throws IOException {
+        KNNHnswGraphBuilder builder = newBuilder(spaceType, fieldAttributes);
+        if (builder.isQuantized()) {
+            return addAndWrite(builder, values.get(), new BitSet(), path);
+        }
+        BitSet seededDocs = new BitSet();
+        List<KNNMergedGraph> seeds = new ArrayList<>(mergedGraphs);
+        seeds.sort(Comparator.comparingInt(KNNMergedGraph::getMaxDoc).reversed());
+        for (KNNMergedGraph seed : seeds) {
+            if (builder.seed(seed.getPath(), seed.getDocMap()::get, seededDocs)) {
+                break;
+            }
+        }
+        return addAndWrite(builder, values.get(), seededDocs, path);
+    }
+
+    private static KNNHnswGraphBuilder newBuilder(SpaceType spaceType, Map<String, String> fieldAttributes) {
+        int m = KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.HNSW_ALGO_M,
+                KNNSettings.INDEX_KNN_ALGO_PARAM_M_SETTING.getDefault(Settings.EMPTY));
+        int efConstruction = KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.HNSW_ALGO_EF_CONSTRUCTION,
+                KNNSettings.INDEX_KNN_ALGO_PARAM_EF_CONSTRUCTION_SETTING.getDefault(Settings.EMPTY));
+        VectorEncoding encoding = VectorEncoding.getEncoding(fieldAttributes.get(KNNConstants.ENCODING));
+        return new KNNHnswGraphBuilder(spaceType, m, efConstruction, encoding);
+    }
+
+    /**
+     * Inserts the vectors of the docs that are not in the graph yet and writes the graph
+     */
+    private static int addAndWrite(KNNHnswGraphBuilder builder, BinaryDocValues values, BitSet seededDocs,
+                                   String path) throws IOException {
+        for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+            if (!seededDocs.get(doc)) {
+                builder.add(doc, KNNVectorSerializer.deserialize(values.binaryValue()));
+            }
+        }
+        if (builder.size() > 0) {
+            builder.write(path);
+        }
+        return builder.size();
+    }
+
+    @Override
+    public KNNGraph load(String path, SpaceType spaceType) throws IOException {
+        return KNNHnswGraph.open(path, spaceType);
+    }
+}
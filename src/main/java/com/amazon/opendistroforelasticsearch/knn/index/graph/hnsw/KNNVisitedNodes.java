@@ -0,0 +1,59 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Set of the nodes visited by a graph search, reused across searches. Only the bits that were set get cleared,
+ * so resetting it costs as much as the search rather than as much as the graph.
+ */
+final class KNNVisitedNodes {
+
+    private FixedBitSet bits = new FixedBitSet(64);
+    private int[] nodes = new int[64];
+    private int count = 0;
+
+    /**
+     * @param size number of nodes in the graph about to be searched
+     */
+    void ensureCapacity(int size) {
+        bits = FixedBitSet.ensureCapacity(bits, size);
+    }
+
+    /**
+     * Marks the node as visited
+     *
+     * @param node node of the graph
+     * @return true if the node was not visited before
+     */
+    boolean visit(int node) {
+        if (bits.getAndSet(node)) {
+            return false;
+        }
+        nodes = ArrayUtil.grow(nodes, count + 1);
+        nodes[count++] = node;
+        return true;
+    }
+
+    void clear() {
+        for (int i = 0; i < count; i++) {
+            bits.clear(nodes[i]);
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.ivfpq;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.BinaryDocValuesSupplier;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNNodeHeap;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Inverted file with product quantization (IVF-PQ) over the vectors of a knn field in a segment, written by
+ * {@link #write} and searched in place through a memory mapping of its file.
+ *
+ * The vectors are partitioned into lists around coarse centroids trained with k-means. Within its list, a vector
+ * is stored as the product quantization code of its residual to the centroid: the residual is split into m
+ * sub-vectors, each replaced by the one byte index of its nearest codeword in a codebook of at most 256 codewords
+ * per sub-vector. A vector thus takes m bytes plus its doc id, whatever its dimension.
+ *
+ * The file holds a codec header, the dimension, m, the number of lists and of vectors, the centroids, the
+ * codebooks, the size of each list and then the lists one after the other, each as records of the doc id followed
+ * by the code in increasing doc id order. The centroids and codebooks are decoded onto the heap once loaded, rather
+ * than on every query, while the lists are only read through the mapping.
+ *
+ * A search scans the lists of the nprobe centroids nearest to the query, with the distance to each code computed
+ * from tables of the distances between the query and every codeword, built once per list. The distances are those
+ * to the quantized vectors, so the nearest docs found have to be re-scored against the full precision vectors.
+ */
+final class KNNIVFPQGraph extends KNNGraph {
+
+    static final String CODEC_NAME = "KNNIVFPQGraph";
+    static final int VERSION_START = 0;
+    static final int VERSION_CURRENT = VERSION_START;
+
+    /**
+     * Codes are single bytes, so each sub-vector has at most 256 codewords
+     */
+    static final int MAX_CODEWORDS = 256;
+
+    /**
+     * Upper bound of the java heap held by the vectors sampled to train the centroids and codebooks
+     */
+    static final int TRAINING_BUFFER_SIZE_IN_BYTES = 32 * 1024 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Directory directory;
+    private final IndexInput input;
+    private final RandomAccessInput data;
+    private final SpaceType spaceType;
+    private final int dimension;
+    private final int subspaces;
+    private final int size;
+    private final float[][] centroids;
+    /**
+     * Codewords of each sub-vector one after the other, shared by all the searches of the graph
+     */
+    private final float[][] codebooks;
+    private final int[] listStarts;
+    private final long recordsOffset;
+    private final int recordLength;
+    private final long memorySize;
+
+    private KNNIVFPQGraph(Directory directory, IndexInput input, SpaceType spaceType) throws IOException {
+        this.directory = directory;
+        this.input = input;
+        this.spaceType = spaceType;
+        CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+        dimension = input.readVInt();
+        subspaces = input.readVInt();
+        int lists = input.readVInt();
+        size = input.readVInt();
+        centroids = new float[lists][dimension];
+        for (float[] centroid : centroids) {
+            readFloats(input, centroid);
+        }
+        codebooks = new float[subspaces][];
+        for (int j = 0; j < subspaces; j++) {
+            int codebookSize = input.readVInt();
+            int subspaceDimension = subspaceStart(dimension, subspaces, j + 1) - subspaceStart(dimension, subspaces, j);
+            codebooks[j] = new float[codebookSize * subspaceDimension];
+            readFloats(input, codebooks[j]);
+        }
+        listStarts = new int[lists + 1];
+        for (int list = 0; list < lists; list++) {
+            listStarts[list + 1] = listStarts[list] + input.readInt();
+        }
+        if (listStarts[lists] != size) {
+            throw new IllegalStateException(String.format("Lists hold %d vectors instead of %d in %s",
+                    listStarts[lists], size, input));
+        }
+        recordsOffset = input.getFilePointer();
+        recordLength = Integer.BYTES + subspaces;
+        data = input.randomAccessSlice(0, input.length());
+
+        // The mapped file, which the operating system pages in and out, plus the centroids and codebooks on the heap
+        long heapBytes = (long) lists * dimension * Float.BYTES + (long) listStarts.length * Integer.BYTES;
+        for (float[] codebook : codebooks) {
+            heapBytes += (long) codebook.length * Float.BYTES;
+        }
+        memorySize = bytesToKB(input.length() + heapBytes);
+    }
+
+    /**
+     * @param dimension dimension of the vectors
+     * @param subspaces number of sub-vectors the vectors are split into
+     * @param subspace index of a sub-vector
+     * @return first component of the sub-vector. The sub-vector ends where the next one starts.
+     */
+    static int subspaceStart(int dimension, int subspaces, int subspace) {
+        return (int) ((long) subspace * dimension / subspaces);
+    }
+
+    /**
+     * Trains the centroids and codebooks on a sample of the vectors, then encodes all the vectors and writes them to
+     * the given path
+     *
+     * @param values supplies the full precision vectors, which are read twice
+     * @param lists number of coarse centroids, or 0 for the square root of the number of vectors
+     * @param subspaces number of sub-vectors, which is the number of bytes of a code. Capped to the dimension.
+     * @param path path to write the graph to
+     * @return number of vectors written. Nothing is written when there are none.
+     * @throws IOException if the doc values cannot be read or the file cannot be written
+     */
+    static int write(BinaryDocValuesSupplier values, int lists, int subspaces, String path) throws IOException {
+        Path file = Paths.get(path);
+        // Seeded by the file name, which names the segment and the field, so that a segment is always trained the same way
+        Random random = new Random(file.getFileName().toString().hashCode());
+
+        // Reservoir sample of the vectors, bounded in size
+        float[][] sample = null;
+        float[] vector = null;
+        int size = 0;
+        BinaryDocValues docValues = values.get();
+        for (int doc = docValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docValues.nextDoc()) {
+            if (vector == null) {
+                vector = new float[KNNVectorSerializer.dimension(docValues.binaryValue())];
+                int sampleCapacity = TRAINING_BUFFER_SIZE_IN_BYTES / (Float.BYTES * Math.max(1, vector.length));
+                sample = new float[Math.max(1, sampleCapacity)][];
+            }
+            readVector(docValues, vector);
+            int slot = size < sample.length ? size : random.nextInt(size + 1);
+            if (slot < sample.length) {
+                sample[slot] = vector.clone();
+            }
+            size++;
+        }
+        if (size == 0) {
+            return 0;
+        }
+
+        int dimension = vector.length;
+        int sampleSize = Math.min(size, sample.length);
+        subspaces = Math.max(1, Math.min(subspaces, dimension));
+        if (lists <= 0) {
+            lists = (int) Math.sqrt(size);
+        }
+        float[][] centroids = KNNKMeans.train(sample, sampleSize, 0, dimension, Math.max(1, lists), random);
+        lists = centroids.length;
+
+        // Codebooks are trained on the residuals of the sample to their centroids
+        for (int i = 0; i < sampleSize; i++) {
+            float[] centroid = centroids[KNNKMeans.nearest(centroids, sample[i], 0)];
+            for (int d = 0; d < dimension; d++) {
+                sample[i][d] -= centroid[d];
+            }
+        }
+        float[][][] codebooks = new float[subspaces][][];
+        for (int j = 0; j < subspaces; j++) {
+            codebooks[j] = KNNKMeans.train(sample, sampleSize, subspaceStart(dimension, subspaces, j),
+                    subspaceStart(dimension, subspaces, j + 1), MAX_CODEWORDS, random);
+        }
+        sample = null;
+
+        // Encodes the vectors, then orders them by list with a counting sort that keeps the doc order within lists
+        int[] docs = new int[size];
+        int[] assignments = new int[size];
+        byte[] codes = new byte[Math.multiplyExact(size, subspaces)];
+        int[] listSizes = new int[lists];
+        int count = 0;
+        docValues = values.get();
+        for (int doc = docValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docValues.nextDoc()) {
+            if (count == size) {
+                throw new IllegalStateException("More vectors than counted for graph " + path);
+            }
+            readVector(docValues, vector);
+            int list = KNNKMeans.nearest(centroids, vector, 0);
+            for (int d = 0; d < dimension; d++) {
+                vector[d] -= centroids[list][d];
+            }
+            for (int j = 0; j < subspaces; j++) {
+                codes[count * subspaces + j] = (byte) KNNKMeans.nearest(codebooks[j], vector,
+                        subspaceStart(dimension, subspaces, j));
+            }
+            docs[count] = doc;
+            assignments[count] = list;
+            listSizes[list]++;
+            count++;
+        }
+        int[] next = new int[lists];
+        for (int list = 1; list < lists; list++) {
+            next[list] = next[list - 1] + listSizes[list - 1];
+        }
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[next[assignments[i]]++] = i;
+        }
+
+        try (IndexOutput out = new OutputStreamIndexOutput("KNNIVFPQGraph(path=\"" + path + "\")",
+                file.getFileName().toString(), Files.newOutputStream(file), WRITE_BUFFER_SIZE)) {
+            CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+            out.writeVInt(dimension);
+            out.writeVInt(subspaces);
+            out.writeVInt(lists);
+            out.writeVInt(count);
+            for (float[] centroid : centroids) {
+                writeFloats(out, centroid);
+            }
+            for (float[][] codebook : codebooks) {
+                out.writeVInt(codebook.length);
+                for (float[] codeword : codebook) {
+                    writeFloats(out, codeword);
+                }
+            }
+            for (int listSize : listSizes) {
+                out.writeInt(listSize);
+            }
+            for (int i : order) {
+                out.writeInt(docs[i]);
+                out.writeBytes(codes, i * subspaces, subspaces);
+            }
+        }
+        return count;
+    }
+
+    private static void readVector(BinaryDocValues docValues, float[] vector) throws IOException {
+        int dimension = KNNVectorSerializer.deserialize(docValues.binaryValue(), vector);
+        if (dimension != vector.length) {
+            throw new IllegalStateException(String.format("Vector dimension mismatch. Expected: %d, Given: %d",
+                    vector.length, dimension));
+        }
+    }
+
+    private static void writeFloats(IndexOutput out, float[] values) throws IOException {
+        for (float value : values) {
+            out.writeInt(Float.floatToIntBits(value));
+        }
+    }
+
+    private static void readFloats(IndexInput in, float[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Float.intBitsToFloat(in.readInt());
+        }
+    }
+
+    /**
+     * Maps the graph file into memory
+     *
+     * @param path path of the graph file
+     * @param spaceType space the graph was built in
+     * @return graph holding the reference of the caller
+     * @throws IOException if the file cannot be mapped or is not an ivf_pq graph
+     */
+    static KNNIVFPQGraph open(String path, SpaceType spaceType) throws IOException {
+        Path file = Paths.get(path);
+        Directory directory = new MMapDirectory(file.getParent());
+        IndexInput input = null;
+        boolean success = false;
+        try {
+            input = directory.openInput(file.getFileName().toString(), IOContext.READ);
+            KNNIVFPQGraph graph = new KNNIVFPQGraph(directory, input, spaceType);
+            success = true;
+            return graph;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(input, directory);
+            }
+        }
+    }
+
+    /**
+     * @return number of lists
+     */
+    int lists() {
+        return centroids.length;
+    }
+
+    /**
+     * @param list index of a list
+     * @return number of vectors in the list
+     */
+    int listSize(int list) {
+        return listStarts[list + 1] - listStarts[list];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int subspaces() {
+        return subspaces;
+    }
+
+    @Override
+    public int search(float[] query, int k, Map<String, String> fieldAttributes, long[] filter, int[] ids,
+                      float[] distances) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException(String.format("Query vector dimension mismatch. Expected: %d, Given: %d",
+                    dimension, query.length));
+        }
+        if (ids.length < k || distances.length < k) {
+            throw new IllegalArgumentException("Result buffers must hold at least k = " + k + " elements");
+        }
+        if (size == 0 || k <= 0) {
+            return 0;
+        }
+
+        // Max heap of the nearest centroids
+        int probes = Math.max(1, Math.min(getProbes(fieldAttributes), lists()));
+        KNNNodeHeap probedLists = new KNNNodeHeap(probes + 1, true);
+        for (int list = 0; list < lists(); list++) {
+            if (listSize(list) == 0) {
+                continue;
+            }
+            probedLists.push(list, spaceType.distance(query, centroids[list]));
+            if (probedLists.size() > probes) {
+                probedLists.pop();
+            }
+        }
+
+        float[][] querySubvectors = new float[subspaces][];
+        float[][] codewords = new float[subspaces][];
+        for (int j = 0; j < subspaces; j++) {
+            int from = subspaceStart(dimension, subspaces, j);
+            int to = subspaceStart(dimension, subspaces, j + 1);
+            querySubvectors[j] = new float[to - from];
+            System.arraycopy(query, from, querySubvectors[j], 0, to - from);
+            codewords[j] = new float[to - from];
+        }
+
+        float[] table = new float[subspaces * MAX_CODEWORDS];
+        KNNNodeHeap results = new KNNNodeHeap(k + 1, true);
+        try {
+            for (int p = 0; p < probedLists.size(); p++) {
+                int list = probedLists.node(p);
+                buildTable(centroids[list], querySubvectors, codewords, table);
+                long offset = recordsOffset + (long) listStarts[list] * recordLength;
+                for (int i = listStarts[list]; i < listStarts[list + 1]; i++, offset += recordLength) {
+                    int doc = data.readInt(offset);
+                    if (!KNNUtil.isAccepted(doc, filter)) {
+                        continue;
+                    }
+                    float distance = 0;
+                    for (int j = 0; j < subspaces; j++) {
+                        distance += table[j * MAX_CODEWORDS + (data.readByte(offset + Integer.BYTES + j) & 0xFF)];
+                    }
+                    if (results.size() < k || distance < results.topDistance()) {
+                        results.push(doc, distance);
+                        if (results.size() > k) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < results.size(); i++) {
+            ids[i] = results.node(i);
+            distances[i] = results.distance(i);
+        }
+        return results.size();
+    }
+
+    /**
+     * Fills the table with the distance between each query sub-vector and each codeword of its sub-vector added to
+     * the centroid of the list, the codes of the list being quantized residuals to that centroid. The distance to a
+     * code is then the sum of the distances of its sub-vectors, which only holds for the spaces whose distance is a
+     * sum over the components.
+     */
+    private void buildTable(float[] centroid, float[][] querySubvectors, float[][] codewords, float[] table) {
+        int offset = 0;
+        for (int j = 0; j < subspaces; j++) {
+            float[] codeword = codewords[j];
+            int subspaceDimension = codeword.length;
+            int codebookSize = codebooks[j].length / subspaceDimension;
+            for (int c = 0; c < codebookSize; c++) {
+                for (int d = 0; d < subspaceDimension; d++) {
+                    codeword[d] = centroid[offset + d] + codebooks[j][c * subspaceDimension + d];
+                }
+                table[j * MAX_CODEWORDS + c] = spaceType.distance(querySubvectors[j], codeword);
+            }
+            offset += subspaceDimension;
+        }
+    }
+
+    static int getProbes(Map<String, String> fieldAttributes) {
+        return KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.IVF_NPROBE,
+                KNNSettings.INDEX_KNN_ALGO_PARAM_IVF_NPROBE_SETTING.getDefault(Settings.EMPTY));
+    }
+
+    @Override
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    @Override
+    public void free() {
+        IOUtils.closeWhileHandlingException(input, directory);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.ivfpq;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.BinaryDocValuesSupplier;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNUtil;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Graph engine partitioning the vectors of each segment around coarse centroids and storing them as product
+ * quantization codes of a few bytes, trading recall and latency for memory. The index is trained and written in
+ * java, see {@link KNNIVFPQGraph}.
+ *
+ * Distances to the codes are approximate, so searches re-score the nearest docs against the full precision vectors.
+ */
+public class KNNIVFPQGraphEngine implements KNNGraphEngine {
+
+    public static final String NAME = "ivf_pq";
+
+    private static final int VERSION = 1;
+
+    /**
+     * Distances to a product quantized vector are sums of per sub-vector distances looked up in tables, which only
+     * holds for the distances that are sums over the components
+     */
+    private static final Set<SpaceType> DECOMPOSABLE_SPACES = EnumSet.of(SpaceType.L2, SpaceType.L1,
+            SpaceType.INNER_PRODUCT);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(SpaceType spaceType) {
+        return DECOMPOSABLE_SPACES.contains(spaceType);
+    }
+
+    @Override
+    public boolean approximatesDistances() {
+        return true;
+    }
+
+    /**
+     * A search visits every doc of the nprobe lists it scans, which hold about nprobe / nlist of the docs
+     */
+    @Override
+    public long getSearchBreadth(Map<String, String> fieldAttributes, int k, int maxDoc) {
+        int lists = KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.IVF_NLIST, 0);
+        if (lists <= 0) {
+            lists = (int) Math.sqrt(maxDoc);
+        }
+        lists = Math.max(1, lists);
+        int probes = Math.min(KNNIVFPQGraph.getProbes(fieldAttributes), lists);
+        return Math.max(k, (long) maxDoc * probes / lists);
+    }
+
+    @Override
+    public int build(BinaryDocValuesSupplier values, SpaceType spaceType, Map<String, String> fieldAttributes,
+                     String path) throws IOException {
+        int lists = KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.IVF_NLIST, 0);
+        int subspaces = KNNUtil.getIntAttribute(fieldAttributes, KNNConstants.PQ_M,
+                KNNSettings.INDEX_KNN_ALGO_PARAM_PQ_M_SETTING.getDefault(Settings.EMPTY));
+        return KNNIVFPQGraph.write(values, lists, subspaces, path);
+    }
+
+    @Override
+    public KNNGraph load(String path, SpaceType spaceType) throws IOException {
+        return KNNIVFPQGraph.open(path, spaceType);
+    }
+}
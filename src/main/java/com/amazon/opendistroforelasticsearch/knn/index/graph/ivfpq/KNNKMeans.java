@@ -0,0 +1,123 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.ivfpq;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means over a range of the components of a sample of vectors, which trains both the coarse centroids
+ * of the ivf_pq engine over whole vectors and its product quantization codebooks over sub-vectors.
+ */
+final class KNNKMeans {
+
+    static final int MAX_ITERATIONS = 10;
+
+    private KNNKMeans() {}
+
+    /**
+     * Clusters the sub-vectors [from, to) of the first count vectors
+     *
+     * @param vectors sample to train on
+     * @param count number of vectors of the sample
+     * @param from first component of the sub-vectors, inclusive
+     * @param to last component of the sub-vectors, exclusive
+     * @param k number of clusters. Capped to the number of vectors.
+     * @param random source of the initial centroids, which are distinct vectors of the sample
+     * @return centroids of dimension to - from
+     */
+    static float[][] train(float[][] vectors, int count, int from, int to, int k, Random random) {
+        int dimension = to - from;
+        k = Math.min(k, count);
+        float[][] centroids = new float[k][];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(count - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+            centroids[i] = new float[dimension];
+            System.arraycopy(vectors[order[i]], from, centroids[i], 0, dimension);
+        }
+
+        int[] assignments = new int[count];
+        float[][] sums = new float[k][dimension];
+        int[] sizes = new int[k];
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean changed = iteration == 0;
+            for (int i = 0; i < count; i++) {
+                int nearest = nearest(centroids, vectors[i], from);
+                if (nearest != assignments[i]) {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            for (int c = 0; c < k; c++) {
+                Arrays.fill(sums[c], 0);
+                sizes[c] = 0;
+            }
+            for (int i = 0; i < count; i++) {
+                float[] sum = sums[assignments[i]];
+                for (int d = 0; d < dimension; d++) {
+                    sum[d] += vectors[i][from + d];
+                }
+                sizes[assignments[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                if (sizes[c] == 0) {
+                    // Reseeds empty clusters so that every centroid ends up used
+                    System.arraycopy(vectors[random.nextInt(count)], from, centroids[c], 0, dimension);
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    centroids[c][d] = sums[c][d] / sizes[c];
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * @param centroids centroids of the sub-vectors
+     * @param vector vector holding the sub-vector
+     * @param from first component of the sub-vector in the vector
+     * @return index of the centroid nearest to the sub-vector in squared l2 distance
+     */
+    static int nearest(float[][] centroids, float[] vector, int from) {
+        int nearest = 0;
+        float nearestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            float[] centroid = centroids[c];
+            float distance = 0;
+            for (int d = 0; d < centroid.length; d++) {
+                float diff = vector[from + d] - centroid[d];
+                distance += diff * diff;
+            }
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+}
@@ -20,4 +20,13 @@ public class KNNConstants {
     public static final String HNSW_ALGO_EF_CONSTRUCTION = "efConstruction";
     public static final String HNSW_ALGO_EF_SEARCH = "efSearch";
     public static final String HNSW_ALGO_INDEX_THREAD_QTY = "indexThreadQty";
+    public static final String DIMENSION = "dimension";
+    public static final String GRAPH_BUILD_THRESHOLD = "graphBuildThreshold";
+    public static final String SPACE_TYPE = "spaceType";
+    public static final String ENCODING = "encoding";
+    public static final String RESCORE_FACTOR = "rescoreFactor";
+    public static final String ENGINE = "engine";
+    public static final String IVF_NLIST = "ivfNlist";
+    public static final String IVF_NPROBE = "ivfNprobe";
+    public static final String PQ_M = "pqM";
 }
@@ -0,0 +1,142 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.util;
+
+/**
+ * Distance and score functions used when vectors are scored in java rather than by the native graphs.
+ *
+ * The loops keep independent accumulators over plain float arrays so that the JIT can unroll and
+ * vectorize them.
+ */
+public final class KNNScoringUtil {
+
+    private KNNScoringUtil() {}
+
+    /**
+     * Squared Euclidean distance between two vectors of the same dimension. Orders vectors the same way
+     * as the Euclidean distance, without the square root.
+     *
+     * @param queryVector first vector
+     * @param vector second vector
+     * @return squared l2 distance
+     */
+    public static float l2SquaredDistance(float[] queryVector, float[] vector) {
+        int dimension = queryVector.length;
+        int upperBound = dimension & ~3;
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i < upperBound; i += 4) {
+            float diff0 = queryVector[i] - vector[i];
+            float diff1 = queryVector[i + 1] - vector[i + 1];
+            float diff2 = queryVector[i + 2] - vector[i + 2];
+            float diff3 = queryVector[i + 3] - vector[i + 3];
+            sum0 += diff0 * diff0;
+            sum1 += diff1 * diff1;
+            sum2 += diff2 * diff2;
+            sum3 += diff3 * diff3;
+        }
+        for (; i < dimension; i++) {
+            float diff = queryVector[i] - vector[i];
+            sum0 += diff * diff;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Dot product of two vectors of the same dimension
+     *
+     * @param queryVector first vector
+     * @param vector second vector
+     * @return inner product
+     */
+    public static float innerProduct(float[] queryVector, float[] vector) {
+        int dimension = queryVector.length;
+        int upperBound = dimension & ~3;
+        float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i < upperBound; i += 4) {
+            sum0 += queryVector[i] * vector[i];
+            sum1 += queryVector[i + 1] * vector[i + 1];
+            sum2 += queryVector[i + 2] * vector[i + 2];
+            sum3 += queryVector[i + 3] * vector[i + 3];
+        }
+        for (; i < dimension; i++) {
+            sum0 += queryVector[i] * vector[i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Cosine of the angle between two vectors of the same dimension
+     *
+     * @param queryVector first vector
+     * @param vector second vector
+     * @return cosine similarity in [-1, 1], or 0 if either vector is all zeros
+     */
+    public static float cosineSimilarity(float[] queryVector, float[] vector) {
+        float dotProduct = 0, queryNorm = 0, norm = 0;
+        for (int i = 0; i < queryVector.length; i++) {
+            dotProduct += queryVector[i] * vector[i];
+            queryNorm += queryVector[i] * queryVector[i];
+            norm += vector[i] * vector[i];
+        }
+        float normProduct = queryNorm * norm;
+        if (normProduct == 0) {
+            return 0;
+        }
+        return (float) (dotProduct / Math.sqrt(normProduct));
+    }
+
+    /**
+     * Manhattan distance between two vectors of the same dimension
+     *
+     * @param queryVector first vector
+     * @param vector second vector
+     * @return l1 distance
+     */
+    public static float l1Distance(float[] queryVector, float[] vector) {
+        float sum = 0;
+        for (int i = 0; i < queryVector.length; i++) {
+            sum += Math.abs(queryVector[i] - vector[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Chebyshev distance between two vectors of the same dimension
+     *
+     * @param queryVector first vector
+     * @param vector second vector
+     * @return largest absolute difference between two components
+     */
+    public static float lInfDistance(float[] queryVector, float[] vector) {
+        float max = 0;
+        for (int i = 0; i < queryVector.length; i++) {
+            max = Math.max(max, Math.abs(queryVector[i] - vector[i]));
+        }
+        return max;
+    }
+
+    /**
+     * Translates a distance into a score, so that the nearest documents get the highest scores
+     *
+     * @param distance l2 distance
+     * @return score in (0, 1]
+     */
+    public static float l2Score(float distance) {
+        return 1 / (1 + distance);
+    }
+}
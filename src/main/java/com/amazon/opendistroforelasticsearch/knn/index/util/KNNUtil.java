@@ -0,0 +1,54 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.util;
+
+import java.util.Map;
+
+/**
+ * Helpers shared by the codec, the graph engines and the query for reading field attributes and filters.
+ */
+public final class KNNUtil {
+
+    private KNNUtil() {}
+
+    /**
+     * Reads an int attribute of a field
+     *
+     * @param fieldAttributes attributes of the field
+     * @param key attribute key
+     * @param defaultValue value if the attribute is not set
+     * @return value of the attribute or the default
+     */
+    public static int getIntAttribute(Map<String, String> fieldAttributes, String key, int defaultValue) {
+        String value = fieldAttributes.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Checks whether a doc is set in a filter
+     *
+     * @param doc doc id
+     * @param filter words of a bitset over doc ids, as in FixedBitSet#getBits(), or null to accept all docs
+     * @return true if the filter is null or holds the doc
+     */
+    public static boolean isAccepted(int doc, long[] filter) {
+        if (filter == null) {
+            return true;
+        }
+        int word = doc >> 6;
+        return word < filter.length && (filter[word] & (1L << doc)) != 0;
+    }
+}
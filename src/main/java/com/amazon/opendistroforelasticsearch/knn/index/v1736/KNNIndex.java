@@ -16,26 +16,35 @@
 package com.amazon.opendistroforelasticsearch.knn.index.v1736;
 
 import com.amazon.opendistroforelasticsearch.knn.index.KNNQueryResult;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
 import com.amazon.opendistroforelasticsearch.knn.index.util.NmsLibVersion;
 
-import java.io.File;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Arrays;
+import java.util.Map;
 
 /**
  * JNI layer to communicate with the nmslib
  * This class refers to the nms library build with version tag 1.7.3.6
  * See <a href="https://github.com/nmslib/nmslib/tree/v1.7.3.6">tag1.7.3.6</a>
+ *
+ * nmslib reads a graph by copying the whole file into buffers it allocates itself, so every load reads the file
+ * and the graph stays resident until it is freed. Graphs are only served from a mapping of their file by the
+ * javahnsw engine.
  */
-public class KNNIndex {
+public class KNNIndex extends KNNGraph {
     public static NmsLibVersion VERSION = NmsLibVersion.V1736;
     static {
         System.loadLibrary(NmsLibVersion.V1736.indexLibraryVersion());
     }
 
-    public AtomicBoolean isDeleted = new AtomicBoolean(false);
+    private static final String[] NO_QUERY_PARAMS = new String[0];
 
     private long index;
     private long indexSize;
+    private SpaceType spaceType = SpaceType.L2;
+    private volatile String[] appliedQueryParams;
 
     public long getIndex() {
         return index;
@@ -50,51 +59,186 @@ public class KNNIndex {
     }
 
     /**
-     * This function is useful in computing the weight for caching. File sizes are stored in KiloBytes to prevent an
-     * Integer Overflow. The Guava Cache weigh method returns an int. The max size of a Java int is 2,147,483,647. So,
-     * a 2GB file, would lead to an overflow. With KB, however, 2,147,483,647 KB = 1.99 TB. So, it would take a 2 TB
-     * file to produce an Integer Overflow.
+     * This function is useful in computing the weight for caching. Sizes are stored in KiloBytes, the unit the
+     * cache weight and the circuit breaker limit are tracked in.
+     *
+     * The size is estimated by the native layer from the layout of the loaded graph: the level 0 data and the
+     * link lists nmslib reads into its own buffers, plus the pointers, objects and visited list tags it allocates
+     * per element. It is not the size of the graph file, which only bounds the copied part.
      *
-     * @return size of the hnsw index on the disk in KB.
+     * @return native memory held by the loaded hnsw index in KB.
      */
-    public long getIndexSize() {
+    @Override
+    public long getMemorySize() {
         return this.indexSize;
     }
 
     /**
-     * determines the size of the hnsw index on disk
-     * @param indexPath absolute path of the index
+     * Builds a graph from the given vectors and serializes it to the given path
+     *
+     * @param ids doc ids of the vectors
+     * @param data vectors
+     * @param indexPath path to write the graph to
+     * @param algoParams graph construction parameters
+     * @param spaceType nmslib space to build the graph in, see {@link SpaceType#getNmsSpace()}
+     */
+    public static native void saveIndex(int[] ids, float[][] data, String indexPath, String[] algoParams, String spaceType);
+
+    /**
+     * Creates a native graph builder that vectors can be streamed into in batches
+     *
+     * @param algoParams graph construction parameters
+     * @param spaceType nmslib space to build the graph in, see {@link SpaceType#getNmsSpace()}
+     * @return pointer to the native builder. It has to be released with {@link #freeIndexBuilder(long)}
+     */
+    public static native long initIndexBuilder(String[] algoParams, String spaceType);
+
+    /**
+     * Copies a batch of vectors into the native builder
+     *
+     * @param builderPointer pointer returned by {@link #initIndexBuilder(String[], String)}
+     * @param ids doc ids of the vectors in the batch
+     * @param vectors vectors of the batch laid out one after the other
+     * @param count number of vectors in the batch
+     * @param dimension dimension of each vector
+     */
+    public static native void addToIndexBuilder(long builderPointer, int[] ids, float[] vectors, int count, int dimension);
+
+    /**
+     * Builds the graph from all the vectors added so far and serializes it to the given path
      *
+     * @param builderPointer pointer returned by {@link #initIndexBuilder(String[], String)}
+     * @param indexPath path to write the graph to
      */
-    public void computeFileSize(String indexPath) {
-        if (indexPath != null && !indexPath.isEmpty()) {
-            File file = new File(indexPath);
-            if (!file.exists() || !file.isFile()) {
-                setIndexSize(0);
-            } else {
-                setIndexSize(file.length()/1024 + 1); // convert to KB and round up
+    public static native void saveIndexBuilder(long builderPointer, String indexPath);
+
+    public static native void freeIndexBuilder(long builderPointer);
+
+    /**
+     * Queries the index for the k nearest neighbours of the query vector
+     *
+     * @param query query vector
+     * @param k number of neighbours to return
+     * @param algoParams query time parameters of the algorithm
+     * @return results ordered from the farthest to the nearest neighbour
+     */
+    public KNNQueryResult[] queryIndex(float[] query, int k, String[] algoParams) {
+        int[] ids = new int[k];
+        float[] distances = new float[k];
+        int resultSize = queryIndex(query, k, algoParams, ids, distances);
+        KNNQueryResult[] results = new KNNQueryResult[resultSize];
+        for (int i = 0; i < resultSize; i++) {
+            results[i] = new KNNQueryResult(ids[i], distances[i]);
+        }
+        return results;
+    }
+
+    /**
+     * Queries the index for the k nearest neighbours of the query vector and writes the doc ids and their
+     * distances into the given buffers. Query time parameters are only passed down to the native index
+     * when they differ from the ones already applied.
+     *
+     * @param query query vector
+     * @param k number of neighbours to return
+     * @param algoParams query time parameters of the algorithm
+     * @param ids buffer of at least k elements to write the doc ids to
+     * @param distances buffer of at least k elements to write the distances to
+     * @return number of results written to the buffers
+     */
+    public int queryIndex(float[] query, int k, String[] algoParams, int[] ids, float[] distances) {
+        return queryIndex(query, k, algoParams, null, ids, distances);
+    }
+
+    /**
+     * Queries the index for the k nearest neighbours of the query vector among the docs set in the filter.
+     * Docs that are not set are never added to the results, so they do not take up any of the k slots.
+     *
+     * @param query query vector
+     * @param k number of neighbours to return
+     * @param algoParams query time parameters of the algorithm
+     * @param filter words of a bitset over doc ids, as in FixedBitSet#getBits(), or null to accept all docs
+     * @param ids buffer of at least k elements to write the doc ids to
+     * @param distances buffer of at least k elements to write the distances to
+     * @return number of results written to the buffers
+     */
+    public int queryIndex(float[] query, int k, String[] algoParams, long[] filter, int[] ids, float[] distances) {
+        if (ids.length < k || distances.length < k) {
+            throw new IllegalArgumentException("Result buffers must hold at least k = " + k + " elements");
+        }
+        applyQueryParams(algoParams);
+        return searchIndex(index, query, k, filter, ids, distances);
+    }
+
+    /**
+     * Queries the index with the efSearch of the field. nmslib reports the l2 distance itself, which is squared
+     * into the scale of {@link SpaceType#distance(float[], float[])}.
+     */
+    @Override
+    public int search(float[] query, int k, Map<String, String> fieldAttributes, long[] filter, int[] ids,
+                      float[] distances) {
+        String efSearch = fieldAttributes.get(KNNConstants.HNSW_ALGO_EF_SEARCH);
+        String[] algoParams = efSearch == null ? NO_QUERY_PARAMS : new String[] {"efSearch=" + efSearch};
+        int resultSize = queryIndex(query, k, algoParams, filter, ids, distances);
+        if (spaceType == SpaceType.L2) {
+            for (int i = 0; i < resultSize; i++) {
+                distances[i] *= distances[i];
             }
         }
+        return resultSize;
     }
 
-    public static native void saveIndex(int[] ids, float[][] data, String indexPath, String[] algoParams);
+    private void applyQueryParams(String[] algoParams) {
+        if (!Arrays.equals(appliedQueryParams, algoParams)) {
+            synchronized (this) {
+                if (!Arrays.equals(appliedQueryParams, algoParams)) {
+                    setQueryParams(index, algoParams);
+                    appliedQueryParams = algoParams.clone();
+                }
+            }
+        }
+    }
 
-    public native KNNQueryResult[] queryIndex(float[] query, int k, String[] algoParams);
+    /**
+     * Loads a knn index built in the l2 space to memory for querying the neighbours
+     *
+     * @param indexPath path where the hnsw index is stored
+     * @return knn index that can be queried for k nearest neighbours
+     */
+    public static KNNIndex loadIndex(String indexPath) {
+        return loadIndex(indexPath, SpaceType.L2);
+    }
 
     /**
      * Loads the knn index to memory for querying the neighbours
      *
      * @param indexPath path where the hnsw index is stored
+     * @param spaceType space the index was built in
      * @return knn index that can be queried for k nearest neighbours
      */
-    public static KNNIndex loadIndex(String indexPath) {
+    public static KNNIndex loadIndex(String indexPath, SpaceType spaceType) {
         KNNIndex index = new KNNIndex();
-        index.init(indexPath);
-        index.computeFileSize(indexPath); // File size is treated as weight
+        index.setIndex(initIndex(indexPath, spaceType.getNmsSpace()));
+        index.setIndexSize(bytesToKB(getIndexMemory(index.getIndex())));
+        index.spaceType = spaceType;
         return index;
     }
 
-    public native void init(String indexPath);
+    /**
+     * Frees the native memory held by the index
+     */
+    @Override
+    public void free() {
+        freeIndex(index);
+    }
+
+    private static native long initIndex(String indexPath, String spaceType);
+
+    private static native long getIndexMemory(long indexPointer);
+
+    private static native void setQueryParams(long indexPointer, String[] algoParams);
+
+    private static native int searchIndex(long indexPointer, float[] query, int k, long[] filter, int[] ids,
+                                          float[] distances);
 
-    public native void gc();
+    private static native void freeIndex(long indexPointer);
 }
@@ -0,0 +1,142 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.v1736;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+/**
+ * Streams vectors into the native graph builder in fixed size batches, so that the java heap used
+ * while building a graph is bounded by the batch size rather than by the number of vectors in the segment.
+ */
+class KNNIndexBuilder implements Closeable {
+
+    /**
+     * Upper bound of the java heap held by a batch of vectors
+     */
+    static final int BATCH_SIZE_IN_BYTES = 4 * 1024 * 1024;
+
+    private final String[] algoParams;
+    private final SpaceType spaceType;
+
+    private long builderPointer = 0;
+    private int dimension = -1;
+    private int[] batchDocs;
+    private float[] batchVectors;
+    private int batchCount = 0;
+    private int totalCount = 0;
+
+    KNNIndexBuilder(String[] algoParams, SpaceType spaceType) {
+        this.algoParams = algoParams;
+        this.spaceType = spaceType;
+    }
+
+    /**
+     * Adds the vector of the given doc to the graph being built
+     *
+     * @param doc doc id of the vector
+     * @param vector encoded vector
+     */
+    void add(int doc, BytesRef vector) {
+        // Checked before decoding, as a longer vector would not fit in its slot of the batch
+        int vectorDimension = KNNVectorSerializer.dimension(vector);
+        if (batchVectors == null) {
+            dimension = vectorDimension;
+            int batchSize = Math.max(1, BATCH_SIZE_IN_BYTES / (Float.BYTES * Math.max(1, dimension)));
+            batchDocs = new int[batchSize];
+            batchVectors = new float[batchSize * dimension];
+        }
+
+        if (vectorDimension != dimension) {
+            throw new IllegalStateException(String.format("Vector dimension mismatch. Expected: %d, Given: %d",
+                    dimension, vectorDimension));
+        }
+
+        if (batchCount == batchDocs.length) {
+            flushBatch();
+        }
+
+        KNNVectorSerializer.deserialize(vector, batchVectors, batchCount * dimension);
+        batchDocs[batchCount++] = doc;
+        totalCount++;
+    }
+
+    /**
+     * @return number of vectors added so far
+     */
+    int size() {
+        return totalCount;
+    }
+
+    /**
+     * Builds the graph from all the added vectors and serializes it to the given path
+     *
+     * @param indexPath path to write the graph to
+     */
+    void save(String indexPath) {
+        flushBatch();
+        if (builderPointer == 0) {
+            throw new IllegalStateException("Cannot build a graph without vectors");
+        }
+        AccessController.doPrivileged(
+                new PrivilegedAction<Void>() {
+                    public Void run() {
+                        KNNIndex.saveIndexBuilder(builderPointer, indexPath);
+                        return null;
+                    }
+                }
+        );
+    }
+
+    private void flushBatch() {
+        if (batchCount == 0) {
+            return;
+        }
+        AccessController.doPrivileged(
+                new PrivilegedAction<Void>() {
+                    public Void run() {
+                        if (builderPointer == 0) {
+                            builderPointer = KNNIndex.initIndexBuilder(algoParams, spaceType.getNmsSpace());
+                        }
+                        KNNIndex.addToIndexBuilder(builderPointer, batchDocs, batchVectors, batchCount, dimension);
+                        return null;
+                    }
+                }
+        );
+        batchCount = 0;
+    }
+
+    @Override
+    public void close() {
+        if (builderPointer != 0) {
+            long pointer = builderPointer;
+            builderPointer = 0;
+            AccessController.doPrivileged(
+                    new PrivilegedAction<Void>() {
+                        public Void run() {
+                            KNNIndex.freeIndexBuilder(pointer);
+                            return null;
+                        }
+                    }
+            );
+        }
+    }
+}
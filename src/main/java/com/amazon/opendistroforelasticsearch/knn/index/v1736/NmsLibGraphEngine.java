@@ -0,0 +1,107 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.v1736;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.BinaryDocValuesSupplier;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import com.amazon.opendistroforelasticsearch.knn.index.util.NmsLibVersion;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Graph engine backed by the hnsw graphs of nmslib 1.7.3.6, through the JNI layer of {@link KNNIndex}.
+ *
+ * Nothing touches {@link KNNIndex} until a graph is built or loaded, so that the native library is only
+ * loaded once nmslib is actually used.
+ *
+ * Merged segments are not built incrementally: an nmslib graph cannot take new elements once it is serialized and
+ * its doc ids cannot be remapped, so the graph of a merged segment is rebuilt from all of its vectors.
+ */
+public class NmsLibGraphEngine implements KNNGraphEngine {
+
+    public static final String NAME = "nmslib";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getVersion() {
+        return Integer.parseInt(NmsLibVersion.V1736.buildVersion);
+    }
+
+    /**
+     * nmslib only serializes graphs in the optimized format, which exists for the l2 and cosinesimil spaces
+     */
+    @Override
+    public boolean supports(SpaceType spaceType) {
+        return spaceType.isGraphSupported();
+    }
+
+    /**
+     * Vectors are streamed into the native builder in batches instead of being materialized for the whole
+     * segment on the java heap
+     */
+    @Override
+    public int build(BinaryDocValuesSupplier vectors, SpaceType spaceType, Map<String, String> fieldAttributes,
+                     String path) throws IOException {
+        if (!NmsLibVersion.V1736.indexLibraryVersion().equals(KNNIndex.VERSION.indexLibraryVersion())) {
+            throw new IllegalStateException(String.format("Nms library version mismatch. Expected version: %s, " +
+                    "Current version: %s", NmsLibVersion.V1736.indexLibraryVersion(),
+                    KNNIndex.VERSION.indexLibraryVersion()));
+        }
+        try (KNNIndexBuilder indexBuilder = new KNNIndexBuilder(getIndexParams(fieldAttributes), spaceType)) {
+            BinaryDocValues values = vectors.get();
+            for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+                indexBuilder.add(doc, values.binaryValue());
+            }
+            if (indexBuilder.size() > 0) {
+                indexBuilder.save(path);
+            }
+            return indexBuilder.size();
+        }
+    }
+
+    @Override
+    public KNNGraph load(String path, SpaceType spaceType) {
+        return KNNIndex.loadIndex(path, spaceType);
+    }
+
+    private static String[] getIndexParams(Map<String, String> fieldAttributes) {
+        List<String> algoParams = new ArrayList<>();
+        if (fieldAttributes.containsKey(KNNConstants.HNSW_ALGO_M)) {
+            algoParams.add(KNNConstants.HNSW_ALGO_M + "=" + fieldAttributes.get(KNNConstants.HNSW_ALGO_M));
+        }
+        if (fieldAttributes.containsKey(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION)) {
+            algoParams.add(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION + "=" + fieldAttributes.get(KNNConstants.HNSW_ALGO_EF_CONSTRUCTION));
+        }
+
+        // Cluster level setting so no need to specify for every index creation
+        int indexThreadQty = KNNSettings.state().getSettingValue(KNNSettings.KNN_ALGO_PARAM_INDEX_THREAD_QTY);
+        algoParams.add(KNNConstants.HNSW_ALGO_INDEX_THREAD_QTY + "=" + indexThreadQty);
+        return algoParams.toArray(new String[0]);
+    }
+}
@@ -17,12 +17,16 @@ package com.amazon.opendistroforelasticsearch.knn.plugin;
 
 import com.amazon.opendistroforelasticsearch.knn.index.KNNCircuitBreaker;
 import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexCache;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexEventListener;
 import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexFileListener;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexWarmer;
 import com.amazon.opendistroforelasticsearch.knn.index.KNNQueryBuilder;
 import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
 import com.amazon.opendistroforelasticsearch.knn.index.KNNVectorFieldMapper;
 
 import com.amazon.opendistroforelasticsearch.knn.plugin.rest.RestKNNStatsHandler;
+import com.amazon.opendistroforelasticsearch.knn.plugin.rest.RestKNNWarmupHandler;
+import com.amazon.opendistroforelasticsearch.knn.plugin.script.KNNScoringScriptEngine;
 import com.amazon.opendistroforelasticsearch.knn.plugin.stats.KNNStat;
 import com.amazon.opendistroforelasticsearch.knn.plugin.stats.KNNStats;
 import com.amazon.opendistroforelasticsearch.knn.plugin.stats.StatNames;
@@ -31,6 +35,8 @@ import com.amazon.opendistroforelasticsearch.knn.plugin.stats.suppliers.KNNCircu
 import com.amazon.opendistroforelasticsearch.knn.plugin.stats.suppliers.KNNInnerCacheStatsSupplier;
 import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNStatsAction;
 import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNStatsTransportAction;
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupAction;
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupTransportAction;
 import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -46,17 +52,24 @@ import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
 import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.ScriptPlugin;
 import org.elasticsearch.plugins.SearchPlugin;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.watcher.ResourceWatcherService;
 
@@ -94,12 +107,23 @@ import static java.util.Collections.singletonList;
  *    }
  *   }
  *
+ * Example Exact Query
+ *
+ *   "knn": {
+ *    "my_vector": {
+ *      "vector": [3, 4],
+ *      "k": 3,
+ *      "method": "exact"
+ *    }
+ *   }
+ *
  */
-public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, ActionPlugin {
+public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, ActionPlugin, ScriptPlugin {
 
     public static final String KNN_BASE_URI = "/_opendistro/_knn";
 
     private KNNStats knnStats;
+    private ThreadPool threadPool;
 
     @Override
     public Map<String, Mapper.TypeParser> getMappers() {
@@ -111,14 +135,21 @@ public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, Act
         return singletonList(new QuerySpec<>(KNNQueryBuilder.NAME, KNNQueryBuilder::new, KNNQueryBuilder::fromXContent));
     }
 
+    @Override
+    public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
+        return new KNNScoringScriptEngine();
+    }
+
     @Override
     public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
                                                ResourceWatcherService resourceWatcherService, ScriptService scriptService,
                                                NamedXContentRegistry xContentRegistry, Environment environment,
                                                NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        this.threadPool = threadPool;
         KNNIndexFileListener knnIndexFileListener = new KNNIndexFileListener(resourceWatcherService);
         KNNSettings.state().initialize(client, clusterService);
         KNNIndexCache.setKnnIndexFileListener(knnIndexFileListener);
+        KNNIndexCache.getInstance().setThreadPool(threadPool);
         KNNCircuitBreaker.getInstance().initialize(threadPool, clusterService, client);
 
         Map<String, KNNStat<?>> stats = ImmutableMap.<String, KNNStat<?>>builder()
@@ -138,6 +169,18 @@ public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, Act
                         new KNNCacheSupplier<>(KNNIndexCache::getWeight)))
                 .put(StatNames.CACHE_CAPACITY_REACHED.getName(), new KNNStat<>(false,
                         new KNNCacheSupplier<>(KNNIndexCache::isCacheCapacityReached)))
+                .put(StatNames.PENDING_FREE_COUNT.getName(), new KNNStat<>(false,
+                        new KNNCacheSupplier<>(KNNIndexCache::getPendingFreeCount)))
+                .put(StatNames.PENDING_FREE_MEMORY.getName(), new KNNStat<>(false,
+                        new KNNCacheSupplier<>(KNNIndexCache::getPendingFreeWeight)))
+                .put(StatNames.FREE_COUNT.getName(), new KNNStat<>(false,
+                        new KNNCacheSupplier<>(KNNIndexCache::getFreeCount)))
+                .put(StatNames.TOTAL_FREE_TIME.getName(), new KNNStat<>(false,
+                        new KNNCacheSupplier<>(KNNIndexCache::getTotalFreeTime)))
+                .put(StatNames.ADMISSION_REJECTED_COUNT.getName(), new KNNStat<>(false,
+                        new KNNCacheSupplier<>(KNNIndexCache::getRejectionCount)))
+                .put(StatNames.INDICES_IN_CACHE.getName(), new KNNStat<>(false,
+                        new KNNCacheSupplier<>(KNNIndexCache::getIndicesStats)))
                 .put(StatNames.CIRCUIT_BREAKER_TRIGGERED.getName(), new KNNStat<>(true,
                         new KNNCircuitBreakerSupplier())).build();
 
@@ -146,6 +189,41 @@ public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, Act
         return ImmutableList.of(knnIndexFileListener, knnStats);
     }
 
+    /**
+     * Evicted graphs are freed on a bounded pool so that a burst of evictions releases native memory in parallel
+     */
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        int processors = EsExecutors.numberOfProcessors(settings);
+        int gcSize = Math.max(1, Math.min(4, processors / 2));
+        int warmupSize = Math.max(1, Math.min(8, processors / 2));
+        return Arrays.asList(
+                new FixedExecutorBuilder(settings, KNNIndexCache.GC_THREAD_POOL, gcSize, 1000,
+                        "thread_pool." + KNNIndexCache.GC_THREAD_POOL),
+                new FixedExecutorBuilder(settings, KNNIndexWarmer.WARMUP_THREAD_POOL, warmupSize, -1,
+                        "thread_pool." + KNNIndexWarmer.WARMUP_THREAD_POOL));
+    }
+
+    /**
+     * Ties the graphs of the shards of the index to their lifecycle with a {@link KNNIndexEventListener}, and keeps
+     * the cache partition of the index in line with its cache quota and priority.
+     */
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        String indexUuid = indexModule.getIndex().getUUID();
+        String indexName = indexModule.getIndex().getName();
+        KNNIndexCache knnIndexCache = KNNIndexCache.getInstance();
+        knnIndexCache.updatePartition(indexUuid, indexName,
+                KNNSettings.INDEX_KNN_CACHE_QUOTA_SETTING.get(indexModule.getSettings()).getKb(),
+                KNNSettings.INDEX_KNN_CACHE_PRIORITY_SETTING.get(indexModule.getSettings()));
+        indexModule.addSettingsUpdateConsumer(KNNSettings.INDEX_KNN_CACHE_QUOTA_SETTING,
+                quota -> knnIndexCache.updatePartitionQuota(indexUuid, quota.getKb()));
+        indexModule.addSettingsUpdateConsumer(KNNSettings.INDEX_KNN_CACHE_PRIORITY_SETTING,
+                priority -> knnIndexCache.updatePartitionPriority(indexUuid, priority));
+
+        indexModule.addIndexEventListener(new KNNIndexEventListener(threadPool, knnIndexCache));
+    }
+
     @Override
     public List<Setting<?>> getSettings() {
         return KNNSettings.state().getSettings();
@@ -160,8 +238,9 @@ public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, Act
                                              Supplier<DiscoveryNodes> nodesInCluster) {
 
         RestKNNStatsHandler restKNNStatsHandler = new RestKNNStatsHandler(settings, restController, knnStats);
+        RestKNNWarmupHandler restKNNWarmupHandler = new RestKNNWarmupHandler(settings, restController);
 
-        return Arrays.asList(restKNNStatsHandler);
+        return Arrays.asList(restKNNStatsHandler, restKNNWarmupHandler);
     }
 
     /**
@@ -170,7 +249,8 @@ public class KNNPlugin extends Plugin implements MapperPlugin, SearchPlugin, Act
     @Override
     public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
         return Arrays.asList(
-                new ActionHandler<>(KNNStatsAction.INSTANCE, KNNStatsTransportAction.class)
+                new ActionHandler<>(KNNStatsAction.INSTANCE, KNNStatsTransportAction.class),
+                new ActionHandler<>(KNNWarmupAction.INSTANCE, KNNWarmupTransportAction.class)
         );
     }
 }
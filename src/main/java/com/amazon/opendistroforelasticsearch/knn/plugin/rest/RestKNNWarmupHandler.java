@@ -0,0 +1,62 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.rest;
+
+import com.amazon.opendistroforelasticsearch.knn.plugin.KNNPlugin;
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupAction;
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupRequest;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+/**
+ * Resthandler for warmup api endpoint. Loads the graphs of the given indices into the cache of the nodes holding
+ * their shards, so that they do not have to be loaded by the first queries.
+ */
+public class RestKNNWarmupHandler extends BaseRestHandler {
+
+    private static final String NAME = "knn_warmup_action";
+
+    /**
+     * Constructor
+     *
+     * @param settings Settings
+     * @param controller Rest Controller
+     */
+    public RestKNNWarmupHandler(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.GET, KNNPlugin.KNN_BASE_URI + "/warmup/{index}", this);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        KNNWarmupRequest knnWarmupRequest = new KNNWarmupRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        knnWarmupRequest.indicesOptions(IndicesOptions.fromRequest(request, knnWarmupRequest.indicesOptions()));
+
+        return channel -> client.execute(KNNWarmupAction.INSTANCE, knnWarmupRequest, new RestToXContentListener<>(channel));
+    }
+}
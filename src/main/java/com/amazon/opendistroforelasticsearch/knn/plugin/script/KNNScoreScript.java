@@ -0,0 +1,94 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.script;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.script.ScoreScript;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Scores a document by the distance between its knn vector and the query vector in the space_type of the field,
+ * read straight from the doc values of the field, so that scores match those of the knn query. Documents without a
+ * vector get a score of 0.
+ */
+public class KNNScoreScript extends ScoreScript {
+
+    private final BinaryDocValues values;
+    private final SpaceType spaceType;
+    private final float[] queryVector;
+    private final float[] vector;
+    private int currentDocId = -1;
+    private boolean hasValue = false;
+
+    public KNNScoreScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext,
+                          String field, float[] queryVector) {
+        super(params, lookup, leafContext);
+        this.queryVector = queryVector;
+        this.vector = new float[queryVector.length];
+        FieldInfo fieldInfo = leafContext.reader().getFieldInfos().fieldInfo(field);
+        this.spaceType = fieldInfo == null ? SpaceType.DEFAULT
+                                 : SpaceType.getSpace(fieldInfo.getAttribute(KNNConstants.SPACE_TYPE));
+        try {
+            this.values = DocValues.getBinary(leafContext.reader(), field);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void setDocument(int docId) {
+        super.setDocument(docId);
+        try {
+            // Docs are scored in increasing order, so the doc values only ever move forward
+            if (docId != currentDocId) {
+                currentDocId = docId;
+                hasValue = values.advanceExact(docId);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public double execute() {
+        if (!hasValue) {
+            return 0;
+        }
+        try {
+            BytesRef value = values.binaryValue();
+            int dimension = KNNVectorSerializer.dimension(value);
+            if (dimension != queryVector.length) {
+                throw new IllegalArgumentException(String.format("Query vector dimension mismatch. Expected: %d, Given: %d",
+                        dimension, queryVector.length));
+            }
+            KNNVectorSerializer.deserialize(value, vector);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return spaceType.score(spaceType.distance(queryVector, vector));
+    }
+}
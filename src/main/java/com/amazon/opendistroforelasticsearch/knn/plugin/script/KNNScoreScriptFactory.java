@@ -0,0 +1,71 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.script;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.script.ScoreScript;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates the script params once per search and creates a {@link KNNScoreScript} per segment.
+ */
+public class KNNScoreScriptFactory implements ScoreScript.LeafFactory {
+
+    public static final String FIELD_PARAM = "field";
+    public static final String QUERY_VALUE_PARAM = "query_value";
+
+    private final Map<String, Object> params;
+    private final SearchLookup lookup;
+    private final String field;
+    private final float[] queryVector;
+
+    public KNNScoreScriptFactory(Map<String, Object> params, SearchLookup lookup) {
+        this.params = params;
+        this.lookup = lookup;
+
+        Object field = params.get(FIELD_PARAM);
+        if (!(field instanceof String)) {
+            throw new IllegalArgumentException("Missing parameter [" + FIELD_PARAM + "]");
+        }
+        this.field = (String) field;
+
+        Object queryValue = params.get(QUERY_VALUE_PARAM);
+        if (!(queryValue instanceof List) || ((List<?>) queryValue).isEmpty()) {
+            throw new IllegalArgumentException("Missing parameter [" + QUERY_VALUE_PARAM + "]");
+        }
+        List<?> values = (List<?>) queryValue;
+        this.queryVector = new float[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            if (!(values.get(i) instanceof Number)) {
+                throw new IllegalArgumentException("Parameter [" + QUERY_VALUE_PARAM + "] must be an array of numbers");
+            }
+            queryVector[i] = ((Number) values.get(i)).floatValue();
+        }
+    }
+
+    @Override
+    public boolean needs_score() {
+        return false;
+    }
+
+    @Override
+    public ScoreScript newInstance(LeafReaderContext ctx) {
+        return new KNNScoreScript(params, lookup, ctx, field, queryVector);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.script;
+
+import org.elasticsearch.script.ScoreScript;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+
+import java.util.Map;
+
+/**
+ * Script engine that scores documents by the exact distance between their knn vector and a query vector.
+ *
+ * Example
+ *
+ *   "script_score": {
+ *     "query": { "match_all": {} },
+ *     "script": {
+ *       "lang": "knn",
+ *       "source": "knn_score",
+ *       "params": {
+ *         "field": "my_vector",
+ *         "query_value": [3, 4]
+ *       }
+ *     }
+ *   }
+ */
+public class KNNScoringScriptEngine implements ScriptEngine {
+
+    public static final String NAME = "knn";
+    public static final String SCRIPT_SOURCE = "knn_score";
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+
+    @Override
+    public <FactoryType> FactoryType compile(String name, String code, ScriptContext<FactoryType> context,
+                                             Map<String, String> params) {
+        if (!ScoreScript.CONTEXT.equals(context)) {
+            throw new IllegalArgumentException(getType() + " scripts cannot be used for context [" + context.name + "]");
+        }
+        if (!SCRIPT_SOURCE.equals(code)) {
+            throw new IllegalArgumentException("Unknown script name [" + code + "] for lang [" + NAME + "]");
+        }
+        ScoreScript.Factory factory = KNNScoreScriptFactory::new;
+        return context.factoryClazz.cast(factory);
+    }
+
+    @Override
+    public void close() {
+    }
+}
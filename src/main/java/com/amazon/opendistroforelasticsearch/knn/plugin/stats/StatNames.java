@@ -30,6 +30,12 @@ public enum StatNames {
     EVICTION_COUNT("eviction_count"),
     GRAPH_MEMORY_USAGE("graph_memory_usage"),
     CACHE_CAPACITY_REACHED("cache_capacity_reached"),
+    PENDING_FREE_COUNT("pending_free_count"),
+    PENDING_FREE_MEMORY("pending_free_memory"),
+    FREE_COUNT("free_count"),
+    TOTAL_FREE_TIME("total_free_time"),
+    ADMISSION_REJECTED_COUNT("admission_rejected_count"),
+    INDICES_IN_CACHE("indices_in_cache"),
     CIRCUIT_BREAKER_TRIGGERED("circuit_breaker_triggered");
 
     private String name;
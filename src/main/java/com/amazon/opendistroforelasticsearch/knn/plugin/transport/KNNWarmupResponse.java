@@ -0,0 +1,81 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.transport;
+
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * KNNWarmupResponse reports how many shards were warmed up and how many graphs they loaded into the cache
+ */
+public class KNNWarmupResponse extends BroadcastResponse {
+
+    private static final String GRAPH_COUNT_KEY = "graph_count";
+
+    private long graphCount;
+
+    /**
+     * Constructor
+     */
+    public KNNWarmupResponse() {}
+
+    /**
+     * Constructor
+     *
+     * @param totalShards number of shards the request was sent to
+     * @param successfulShards number of shards warmed up
+     * @param failedShards number of shards that failed to warm up
+     * @param shardFailures failures of the failed shards
+     * @param graphCount number of graphs now in the cache for the warmed up shards
+     */
+    public KNNWarmupResponse(int totalShards, int successfulShards, int failedShards,
+                             List<DefaultShardOperationFailedException> shardFailures, long graphCount) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.graphCount = graphCount;
+    }
+
+    /**
+     * Get the number of graphs loaded
+     *
+     * @return number of graphs now in the cache for the warmed up shards
+     */
+    public long getGraphCount() {
+        return graphCount;
+    }
+
+    @Override
+    protected void addCustomXContentFields(XContentBuilder builder, Params params) throws IOException {
+        builder.field(GRAPH_COUNT_KEY, graphCount);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        graphCount = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVLong(graphCount);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.transport;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+
+import java.io.IOException;
+
+/**
+ * KNNWarmupShardResult holds the number of graphs a shard loaded into the cache
+ */
+public class KNNWarmupShardResult implements Streamable {
+
+    private int graphCount;
+
+    /**
+     * Constructor
+     */
+    public KNNWarmupShardResult() {}
+
+    /**
+     * Constructor
+     *
+     * @param graphCount number of graphs of the shard now in the cache
+     */
+    public KNNWarmupShardResult(int graphCount) {
+        this.graphCount = graphCount;
+    }
+
+    /**
+     * Creates a new KNNWarmupShardResult object and reads it from an input stream
+     *
+     * @param in StreamInput to read from
+     * @return KNNWarmupShardResult object corresponding to the input stream
+     * @throws IOException throws an IO exception if the StreamInput cannot be read from
+     */
+    public static KNNWarmupShardResult readResult(StreamInput in) throws IOException {
+        KNNWarmupShardResult result = new KNNWarmupShardResult();
+        result.readFrom(in);
+        return result;
+    }
+
+    /**
+     * Get the number of graphs loaded
+     *
+     * @return number of graphs of the shard now in the cache
+     */
+    public int getGraphCount() {
+        return graphCount;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        graphCount = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(graphCount);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.plugin.transport;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexWarmer;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.node.TransportBroadcastByNodeAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.routing.ShardsIterator;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * KNNWarmupTransportAction loads the graphs of the local shards of the requested indices into the cache on
+ * every data node. The graphs are loaded in parallel on the knn_warmup thread pool.
+ */
+public class KNNWarmupTransportAction extends TransportBroadcastByNodeAction<KNNWarmupRequest, KNNWarmupResponse,
+        KNNWarmupShardResult> {
+
+    private final IndicesService indicesService;
+    private final ThreadPool threadPool;
+
+    /**
+     * Constructor
+     *
+     * @param clusterService ClusterService
+     * @param transportService TransportService
+     * @param indicesService IndicesService
+     * @param threadPool ThreadPool to load the graphs on
+     * @param actionFilters Action Filters
+     * @param indexNameExpressionResolver resolver of the requested indices
+     */
+    @Inject
+    public KNNWarmupTransportAction(
+            ClusterService clusterService,
+            TransportService transportService,
+            IndicesService indicesService,
+            ThreadPool threadPool,
+            ActionFilters actionFilters,
+            IndexNameExpressionResolver indexNameExpressionResolver
+            ) {
+        // Shards wait for their graphs to be loaded on the knn_warmup pool, so they cannot run on it themselves
+        super(KNNWarmupAction.NAME, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                KNNWarmupRequest::new, ThreadPool.Names.GENERIC);
+        this.indicesService = indicesService;
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    protected KNNWarmupShardResult readShardResult(StreamInput in) throws IOException {
+        return KNNWarmupShardResult.readResult(in);
+    }
+
+    @Override
+    protected KNNWarmupResponse newResponse(KNNWarmupRequest request, int totalShards, int successfulShards,
+                                            int failedShards, List<KNNWarmupShardResult> results,
+                                            List<DefaultShardOperationFailedException> shardFailures,
+                                            ClusterState clusterState) {
+        long graphCount = 0;
+        for (KNNWarmupShardResult result : results) {
+            graphCount += result.getGraphCount();
+        }
+        return new KNNWarmupResponse(totalShards, successfulShards, failedShards, shardFailures, graphCount);
+    }
+
+    @Override
+    protected KNNWarmupRequest readRequestFrom(StreamInput in) throws IOException {
+        KNNWarmupRequest request = new KNNWarmupRequest();
+        request.readFrom(in);
+        return request;
+    }
+
+    @Override
+    protected KNNWarmupShardResult shardOperation(KNNWarmupRequest request, ShardRouting shardRouting) throws IOException {
+        IndexShard indexShard = indicesService.indexServiceSafe(shardRouting.shardId().getIndex())
+                                              .getShard(shardRouting.shardId().id());
+        return new KNNWarmupShardResult(KNNIndexWarmer.warmup(indexShard,
+                threadPool.executor(KNNIndexWarmer.WARMUP_THREAD_POOL)));
+    }
+
+    @Override
+    protected ShardsIterator shards(ClusterState state, KNNWarmupRequest request, String[] concreteIndices) {
+        return state.routingTable().allShards(concreteIndices);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, KNNWarmupRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, KNNWarmupRequest request,
+                                                      String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.METADATA_READ, concreteIndices);
+    }
+}
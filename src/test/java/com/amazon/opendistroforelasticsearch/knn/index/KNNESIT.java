@@ -202,6 +202,24 @@ public class KNNESIT extends BaseKNNIntegTestIT {
         assertThat(ex.getMessage(), containsString("Dimension value cannot be updated. Previous value: 4, Current value: 5"));
     }
 
+    public void testVectorMappingValidationUnsupportedSpaceType() throws Exception {
+        Settings settings = Settings.builder()
+                                    .put(super.indexSettings())
+                                    .put("index.codec", "KNNCodec")
+                                    .build();
+
+        String index = "testindex";
+        createIndex(index, settings);
+        PutMappingRequest request = new PutMappingRequest(index).type("_doc");
+
+        request.source("my_vector", "type=knn_vector,dimension=4,space_type=innerproduct");
+        Exception ex = expectThrows(MapperParsingException.class, () -> ElasticsearchAssertions.assertAcked(client().admin().indices().putMapping(request).actionGet()));
+        assertThat(ex.getMessage(), containsString("Engine nmslib does not support space type innerproduct for vector: my_vector"));
+
+        request.source("my_vector", "type=knn_vector,dimension=4,space_type=innerproduct,engine=javahnsw");
+        ElasticsearchAssertions.assertAcked(client().admin().indices().putMapping(request).actionGet());
+    }
+
     /**
      * multiple fields different dimensions
      */
@@ -0,0 +1,96 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.test.ESTestCase;
+
+public class KNNExactSearcherTests extends ESTestCase {
+
+    public void testSearchFilteredCandidates() throws Exception {
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                for (int i = 0; i < 10; i++) {
+                    Document document = new Document();
+                    document.add(new BinaryDocValuesField("vector",
+                            new BytesRef(KNNVectorSerializer.serialize(new float[] {i, i}))));
+                    writer.addDocument(document);
+                }
+                writer.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                LeafReader leafReader = reader.leaves().get(0).reader();
+                FixedBitSet candidates = new FixedBitSet(leafReader.maxDoc());
+                candidates.set(1);
+                candidates.set(4);
+                candidates.set(6);
+                candidates.set(9);
+
+                int[] docs = new int[2];
+                float[] scores = new float[2];
+                int size = KNNExactSearcher.search(leafReader, "vector", SpaceType.L2, new float[] {5.0f, 5.0f},
+                        new BitSetIterator(candidates, 4), null, 2, docs, scores);
+                assertEquals(2, size);
+
+                KNNScorer.sortByDoc(docs, scores, size);
+                assertArrayEquals(new int[] {4, 6}, docs);
+                float expectedScore = (float) (1 / (1 + Math.sqrt(2)));
+                assertEquals(expectedScore, scores[0], 1e-6f);
+                assertEquals(expectedScore, scores[1], 1e-6f);
+            }
+        }
+    }
+
+    public void testSearchInnerProduct() throws Exception {
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                for (int i = 0; i < 10; i++) {
+                    Document document = new Document();
+                    document.add(new BinaryDocValuesField("vector",
+                            new BytesRef(KNNVectorSerializer.serialize(new float[] {i, -i}))));
+                    writer.addDocument(document);
+                }
+                writer.forceMerge(1);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                LeafReader leafReader = reader.leaves().get(0).reader();
+                int[] docs = new int[2];
+                float[] scores = new float[2];
+                int size = KNNExactSearcher.search(leafReader, "vector", SpaceType.INNER_PRODUCT, new float[] {1.0f, 0.0f},
+                        null, null, 2, docs, scores);
+                assertEquals(2, size);
+
+                // The largest dot products win, regardless of the distance to the query
+                KNNScorer.sortByDoc(docs, scores, size);
+                assertArrayEquals(new int[] {8, 9}, docs);
+                assertEquals(1 + 8.0f, scores[0], 1e-6f);
+                assertEquals(1 + 9.0f, scores[1], 1e-6f);
+            }
+        }
+    }
+}
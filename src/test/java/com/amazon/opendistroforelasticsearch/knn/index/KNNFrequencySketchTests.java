@@ -0,0 +1,68 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import org.elasticsearch.test.ESTestCase;
+
+public class KNNFrequencySketchTests extends ESTestCase {
+
+    public void testFirstAccessOnlyInDoorkeeper() {
+        KNNFrequencySketch sketch = new KNNFrequencySketch(64);
+        assertEquals(0, sketch.frequency("graph"));
+        sketch.increment("graph");
+        assertEquals(1, sketch.frequency("graph"));
+        sketch.increment("graph");
+        sketch.increment("graph");
+        assertEquals(3, sketch.frequency("graph"));
+    }
+
+    public void testFrequentKeyOutranksOneOff() {
+        KNNFrequencySketch sketch = new KNNFrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("cold");
+        assertTrue(sketch.frequency("hot") > sketch.frequency("cold"));
+    }
+
+    public void testSaturatesAndAges() {
+        KNNFrequencySketch sketch = new KNNFrequencySketch(64);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot");
+        }
+        assertEquals(16, sketch.frequency("hot"));
+
+        // Enough accesses to other keys to reach the sample size and halve the counters
+        for (int i = 0; i < 640; i++) {
+            sketch.increment("key" + i);
+        }
+        assertTrue(sketch.frequency("hot") <= 8);
+        assertTrue(sketch.frequency("hot") > 0);
+    }
+
+    public void testKeepsFrequenciesWhenGrowing() {
+        KNNFrequencySketch sketch = new KNNFrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("cold");
+
+        sketch.ensureCapacity(1024);
+        assertEquals(10, sketch.frequency("hot"));
+        assertEquals(1, sketch.frequency("cold"));
+        assertEquals(0, sketch.frequency("unseen"));
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNGraph;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNTestGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNTestGraphEngine.TestGraph;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class KNNIndexCacheTests extends ESTestCase {
+
+    private Path indexDirectory;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        KNNTestSettings.initialize();
+        indexDirectory = createTempDir().resolve("index-uuid").resolve("0").resolve("index");
+        Files.createDirectories(indexDirectory);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        KNNTestGraphEngine.reset();
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_MEMORY_CIRCUIT_BREAKER_LIMIT, null);
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_ENABLED, null);
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES, null);
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY, null);
+        super.tearDown();
+    }
+
+    public void testHitOnceLoaded() throws IOException {
+        KNNIndexCache cache = newCache(100);
+        String key = writeGraph("vector", 10);
+
+        TestGraph first = get(cache, key);
+        TestGraph second = get(cache, key);
+
+        assertSame(first, second);
+        assertEquals(1, KNNTestGraphEngine.getLoadCount());
+        assertEquals(1, cache.getStats().missCount());
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(10L, (long) cache.getWeight());
+    }
+
+    public void testPreloadRecordsNoAccess() throws IOException {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY,
+                KNNSettings.ADMISSION_POLICY_TINYLFU);
+        KNNIndexCache cache = newCache(100);
+        String key = writeGraph("vector", 10);
+
+        assertTrue(cache.preload(key, SpaceType.L2));
+        assertTrue(cache.preload(key, SpaceType.L2));
+
+        assertEquals(1, KNNTestGraphEngine.getLoadCount());
+        assertEquals(0, cache.getStats().missCount());
+        assertEquals(0, cache.getStats().hitCount());
+        assertEquals(1, cache.getStats().loadSuccessCount());
+        assertEquals(10L, (long) cache.getWeight());
+        assertFalse(get(cache, key).isFreed());
+        assertEquals(1, cache.getStats().hitCount());
+    }
+
+    public void testPreloadReportsGraphServedOutsideCache() throws IOException {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY,
+                KNNSettings.ADMISSION_POLICY_TINYLFU);
+        KNNTestGraphEngine.setLoadMillis(20);
+        KNNIndexCache cache = newCache(25);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        String c = writeGraph("c", 10);
+        TestGraph graphA = get(cache, a);
+        TestGraph graphB = get(cache, b);
+
+        // A graph no query accessed is not worth the graphs queries did, so it is not kept
+        assertFalse(cache.preload(c, SpaceType.L2));
+        assertEquals(1L, (long) cache.getRejectionCount());
+        assertFalse(graphA.isFreed());
+        assertFalse(graphB.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+        assertEquals(0L, (long) cache.getPendingFreeWeight());
+        assertEquals(2, cache.getStats().missCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        KNNIndexCache cache = newCache(25);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        String c = writeGraph("c", 10);
+
+        TestGraph graphA = get(cache, a);
+        TestGraph graphB = get(cache, b);
+        get(cache, a);
+        TestGraph graphC = get(cache, c);
+
+        assertFalse(graphA.isFreed());
+        assertTrue(graphB.isFreed());
+        assertFalse(graphC.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+        assertEquals(1, cache.getStats().evictionCount());
+        assertEquals(1L, (long) cache.getFreeCount());
+        assertEquals(0L, (long) cache.getPendingFreeWeight());
+    }
+
+    public void testWaitsForEvictedGraphToBeReleased() throws Exception {
+        KNNIndexCache cache = newCache(15);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+
+        // A query in flight holds a, which the load of b evicts and waits to be freed
+        TestGraph held = (TestGraph) cache.getIndex(a, SpaceType.L2);
+        AtomicReference<KNNGraph> loaded = new AtomicReference<>();
+        Thread query = new Thread(() -> loaded.set(cache.getIndex(b, SpaceType.L2)));
+        query.start();
+        assertBusy(() -> assertEquals(10L, (long) cache.getPendingFreeWeight()));
+        assertFalse(held.isFreed());
+        assertNull(loaded.get());
+
+        held.release();
+        query.join();
+        assertTrue(held.isFreed());
+        TestGraph graphB = (TestGraph) loaded.get();
+        assertNotNull(graphB);
+        graphB.release();
+        assertFalse(graphB.isFreed());
+        assertEquals(10L, (long) cache.getWeight());
+        assertEquals(0L, (long) cache.getPendingFreeWeight());
+        assertEquals(2, KNNTestGraphEngine.getLoadCount());
+    }
+
+    public void testServesRejectedGraphOutsideCache() throws IOException {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY,
+                KNNSettings.ADMISSION_POLICY_TINYLFU);
+        KNNTestGraphEngine.setLoadMillis(20);
+        KNNIndexCache cache = newCache(25);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        String c = writeGraph("c", 10);
+
+        TestGraph graphA = get(cache, a);
+        TestGraph graphB = get(cache, b);
+        for (int i = 0; i < 15; i++) {
+            get(cache, a);
+            get(cache, b);
+        }
+
+        // A one-off graph is not worth the graphs in regular use, so it is freed once the query releases it
+        TestGraph graphC = get(cache, c);
+        assertEquals(1L, (long) cache.getRejectionCount());
+        assertTrue(graphC.isFreed());
+        assertFalse(graphA.isFreed());
+        assertFalse(graphB.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+        assertEquals(0L, (long) cache.getPendingFreeWeight());
+        assertEquals(0, cache.getStats().evictionCount());
+
+        // The graphs in regular use are still hits, and the one-off graph is loaded again
+        assertSame(graphA, get(cache, a));
+        assertSame(graphB, get(cache, b));
+        assertNotSame(graphC, get(cache, c));
+        assertEquals(4, KNNTestGraphEngine.getLoadCount());
+        assertEquals(2L, (long) cache.getRejectionCount());
+        assertEquals(20L, (long) cache.getWeight());
+    }
+
+    public void testFailsWhileRejectedGraphIsHeldPastTheWait() throws IOException {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY,
+                KNNSettings.ADMISSION_POLICY_TINYLFU);
+        KNNTestGraphEngine.setLoadMillis(20);
+        KNNIndexCache cache = newCache(15);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        String c = writeGraph("c", 10);
+
+        TestGraph graphA = get(cache, a);
+        for (int i = 0; i < 15; i++) {
+            get(cache, a);
+        }
+
+        // The memory of a graph served outside of the cache is in use until the query holding it releases it, which
+        // the next load only waits for a bounded time
+        TestGraph held = (TestGraph) cache.getIndex(b, SpaceType.L2);
+        assertEquals(10L, (long) cache.getPendingFreeWeight());
+        expectThrows(CircuitBreakingException.class, () -> cache.getIndex(c, SpaceType.L2));
+        assertFalse(graphA.isFreed());
+
+        held.release();
+        assertTrue(held.isFreed());
+        assertEquals(0L, (long) cache.getPendingFreeWeight());
+        assertTrue(get(cache, c).isFreed());
+        assertFalse(graphA.isFreed());
+        assertEquals(10L, (long) cache.getWeight());
+    }
+
+    public void testKeepsRejectedGraphOnProbation() throws Exception {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY,
+                KNNSettings.ADMISSION_POLICY_TINYLFU);
+        KNNTestGraphEngine.setLoadMillis(20);
+        KNNIndexCache cache = newCache(25);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        String c = writeGraph("c", 10);
+
+        TestGraph graphA = get(cache, a);
+        get(cache, b);
+        for (int i = 0; i < 15; i++) {
+            get(cache, a);
+            get(cache, b);
+        }
+
+        // A one-off graph that finds room once loaded stays on probation
+        CountDownLatch loadStarted = KNNTestGraphEngine.holdLoads();
+        AtomicReference<KNNGraph> loaded = new AtomicReference<>();
+        Thread query = new Thread(() -> loaded.set(cache.getIndex(c, SpaceType.L2)));
+        query.start();
+        loadStarted.await();
+        cache.invalidate(b);
+        KNNTestGraphEngine.releaseLoads();
+        query.join();
+        TestGraph graphC = (TestGraph) loaded.get();
+        graphC.release();
+        assertEquals(1L, (long) cache.getRejectionCount());
+        assertFalse(graphC.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+
+        // Further queries share it rather than reloading it
+        assertSame(graphC, get(cache, c));
+        assertEquals(3, KNNTestGraphEngine.getLoadCount());
+
+        // It is evicted before the graphs in regular use, even though it was used last
+        TestGraph reloadedB = get(cache, b);
+        assertTrue(graphC.isFreed());
+        assertFalse(graphA.isFreed());
+        assertFalse(reloadedB.isFreed());
+        assertEquals(1L, (long) cache.getRejectionCount());
+        assertEquals(20L, (long) cache.getWeight());
+    }
+
+    public void testEvictsOverQuotaOnlyOwnGraphs() throws IOException {
+        KNNIndexCache cache = newCache(100);
+        cache.updatePartition("index-uuid", "index", 25, 0);
+        Path otherIndexDirectory = createIndexDirectory("other-uuid");
+
+        TestGraph otherGraph = get(cache, writeGraph(otherIndexDirectory, "vector", 10));
+        TestGraph graphA = get(cache, writeGraph("a", 10));
+        TestGraph graphB = get(cache, writeGraph("b", 10));
+        TestGraph graphC = get(cache, writeGraph("c", 10));
+
+        // The graph of the other index is the least recently used, but only the index over its quota gives way
+        assertFalse(otherGraph.isFreed());
+        assertTrue(graphA.isFreed());
+        assertFalse(graphB.isFreed());
+        assertFalse(graphC.isFreed());
+        assertEquals(30L, (long) cache.getWeight());
+        assertEquals(1, cache.getStats().evictionCount());
+    }
+
+    public void testEvictsLowerPriorityFirst() throws IOException {
+        KNNIndexCache cache = newCache(25);
+        cache.updatePartitionPriority("index-uuid", 1);
+        Path otherIndexDirectory = createIndexDirectory("other-uuid");
+
+        TestGraph graphA = get(cache, writeGraph("a", 10));
+        TestGraph otherGraph = get(cache, writeGraph(otherIndexDirectory, "vector", 10));
+        TestGraph graphB = get(cache, writeGraph("b", 10));
+
+        // The graph of the higher priority index is the least recently used, but outlives the lower priority one
+        assertFalse(graphA.isFreed());
+        assertTrue(otherGraph.isFreed());
+        assertFalse(graphB.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+    }
+
+    public void testLoweringQuotaEvictsDownToIt() throws Exception {
+        KNNIndexCache cache = newCache(100);
+        Path otherIndexDirectory = createIndexDirectory("other-uuid");
+        TestGraph otherGraph = get(cache, writeGraph(otherIndexDirectory, "vector", 10));
+        TestGraph graphA = get(cache, writeGraph("a", 10));
+        TestGraph graphB = get(cache, writeGraph("b", 10));
+        TestGraph graphC = get(cache, writeGraph("c", 10));
+
+        cache.updatePartitionQuota("index-uuid", 15);
+        assertBusy(() -> assertEquals(20L, (long) cache.getWeight()));
+        assertTrue(graphA.isFreed());
+        assertTrue(graphB.isFreed());
+        assertFalse(graphC.isFreed());
+        assertFalse(otherGraph.isFreed());
+        assertEquals(2, cache.getStats().evictionCount());
+    }
+
+    public void testEvictsExpiredGraphs() throws Exception {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_ENABLED, true);
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES,
+                TimeValue.timeValueMillis(1));
+        KNNIndexCache cache = newCache(100);
+        TestGraph graph = get(cache, writeGraph("vector", 10));
+
+        assertBusy(() -> {
+            cache.cleanUp();
+            assertTrue(graph.isFreed());
+        });
+        assertEquals(0L, (long) cache.getWeight());
+        assertEquals(1, cache.getStats().evictionCount());
+    }
+
+    public void testSettingsUpdateKeepsGraphs() throws Exception {
+        KNNIndexCache cache = newCache(25);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        TestGraph graphA = get(cache, a);
+        TestGraph graphB = get(cache, b);
+
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_MEMORY_CIRCUIT_BREAKER_LIMIT,
+                new ByteSizeValue(100, ByteSizeUnit.KB));
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ADMISSION_POLICY,
+                KNNSettings.ADMISSION_POLICY_TINYLFU);
+        cache.updateSettings();
+
+        // The graphs are still hits, and the raised limit makes room for another one without evicting them
+        assertSame(graphA, get(cache, a));
+        assertSame(graphB, get(cache, b));
+        TestGraph graphC = get(cache, writeGraph("c", 10));
+        assertFalse(graphA.isFreed());
+        assertFalse(graphB.isFreed());
+        assertFalse(graphC.isFreed());
+        assertEquals(30L, (long) cache.getWeight());
+        assertEquals(3, KNNTestGraphEngine.getLoadCount());
+    }
+
+    public void testLoweringLimitEvictsOnlyWhatIsNeeded() throws Exception {
+        KNNIndexCache cache = newCache(100);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        String c = writeGraph("c", 10);
+        TestGraph graphA = get(cache, a);
+        TestGraph graphB = get(cache, b);
+        TestGraph graphC = get(cache, c);
+
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_MEMORY_CIRCUIT_BREAKER_LIMIT,
+                new ByteSizeValue(25, ByteSizeUnit.KB));
+        cache.updateSettings();
+        assertBusy(() -> assertTrue(graphA.isFreed()));
+
+        assertEquals(20L, (long) cache.getWeight());
+        assertEquals(1, cache.getStats().evictionCount());
+        assertSame(graphB, get(cache, b));
+        assertSame(graphC, get(cache, c));
+        assertEquals(3, KNNTestGraphEngine.getLoadCount());
+    }
+
+    public void testChangingExpiryDropsNoGraph() throws Exception {
+        KNNIndexCache cache = newCache(100);
+        String a = writeGraph("a", 10);
+        String b = writeGraph("b", 10);
+        TestGraph graphA = get(cache, a);
+        TestGraph graphB = get(cache, b);
+
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_ENABLED, true);
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_ITEM_EXPIRY_TIME_MINUTES,
+                TimeValue.timeValueMinutes(60));
+        cache.updateSettings();
+
+        assertSame(graphA, get(cache, a));
+        assertSame(graphB, get(cache, b));
+        assertFalse(graphA.isFreed());
+        assertFalse(graphB.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+        assertEquals(0, cache.getStats().evictionCount());
+    }
+
+    public void testConcurrentLoadsOfSameGraph() throws Exception {
+        KNNIndexCache cache = newCache(100);
+        String key = writeGraph("vector", 10);
+        CountDownLatch loadStarted = KNNTestGraphEngine.holdLoads();
+
+        int threadCount = randomIntBetween(2, 8);
+        KNNGraph[] graphs = new KNNGraph[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            int thread = i;
+            threads[i] = new Thread(() -> graphs[thread] = cache.getIndex(key, SpaceType.L2));
+            threads[i].start();
+        }
+        loadStarted.await();
+        // Queries waiting for the load in progress count as misses
+        assertBusy(() -> assertEquals(threadCount, cache.getStats().missCount()));
+        KNNTestGraphEngine.releaseLoads();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, KNNTestGraphEngine.getLoadCount());
+        assertEquals(0, cache.getStats().hitCount());
+        assertEquals(1, cache.getStats().loadSuccessCount());
+        for (KNNGraph graph : graphs) {
+            assertSame(graphs[0], graph);
+            graph.release();
+        }
+        assertEquals(10L, (long) cache.getWeight());
+
+        cache.invalidate(key);
+        assertTrue(((TestGraph) graphs[0]).isFreed());
+    }
+
+    public void testInvalidateWhileLoading() throws Exception {
+        KNNIndexCache cache = newCache(100);
+        String key = writeGraph("vector", 10);
+        CountDownLatch loadStarted = KNNTestGraphEngine.holdLoads();
+
+        AtomicReference<KNNGraph> loaded = new AtomicReference<>();
+        Thread query = new Thread(() -> loaded.set(cache.getIndex(key, SpaceType.L2)));
+        query.start();
+        loadStarted.await();
+        cache.invalidate(key);
+        KNNTestGraphEngine.releaseLoads();
+        query.join();
+
+        // The query still gets the graph, which is freed as soon as it releases it
+        TestGraph graph = (TestGraph) loaded.get();
+        assertNotNull(graph);
+        assertFalse(graph.isFreed());
+        assertEquals(0L, (long) cache.getWeight());
+        graph.release();
+        assertTrue(graph.isFreed());
+
+        get(cache, key);
+        assertEquals(2, KNNTestGraphEngine.getLoadCount());
+    }
+
+    public void testInvalidateAllUnderDirectory() throws IOException {
+        KNNIndexCache cache = newCache(100);
+        Path otherShardDirectory = indexDirectory.getParent().resolveSibling("1").resolve("index");
+        Files.createDirectories(otherShardDirectory);
+
+        TestGraph closedShardGraph = get(cache, writeGraph(indexDirectory, "vector", 10));
+        TestGraph openShardGraph = get(cache, writeGraph(otherShardDirectory, "vector", 20));
+        cache.invalidateAll(indexDirectory);
+
+        assertTrue(closedShardGraph.isFreed());
+        assertFalse(openShardGraph.isFreed());
+        assertEquals(20L, (long) cache.getWeight());
+    }
+
+    public void testReloadsReleasedGraph() throws IOException {
+        KNNIndexCache cache = newCache(100);
+        String key = writeGraph("vector", 10);
+
+        TestGraph first = get(cache, key);
+        cache.invalidate(key);
+        assertTrue(first.isFreed());
+        assertFalse(first.acquire());
+
+        TestGraph second = get(cache, key);
+        assertNotSame(first, second);
+        assertFalse(second.isFreed());
+        assertEquals(2, KNNTestGraphEngine.getLoadCount());
+        assertEquals(10L, (long) cache.getWeight());
+    }
+
+    private static KNNIndexCache newCache(long maximumWeightKb) {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_MEMORY_CIRCUIT_BREAKER_LIMIT,
+                new ByteSizeValue(maximumWeightKb, ByteSizeUnit.KB));
+        return new KNNIndexCache();
+    }
+
+    /**
+     * Creates the directory of the first shard of another index
+     */
+    private Path createIndexDirectory(String indexUuid) throws IOException {
+        Path directory = indexDirectory.getParent().getParent().resolveSibling(indexUuid).resolve("0").resolve("index");
+        Files.createDirectories(directory);
+        return directory;
+    }
+
+    private String writeGraph(String field, int weight) throws IOException {
+        return writeGraph(indexDirectory, field, weight);
+    }
+
+    /**
+     * Writes a graph of the test engine, weighing one KB per byte of its file
+     */
+    static String writeGraph(Path directory, String field, int weight) throws IOException {
+        Path path = directory.resolve("_0_" + KNNTestGraphEngine.NAME + "-1_" + field + ".hnsw");
+        Files.write(path, new byte[weight]);
+        return path.toString();
+    }
+
+    /**
+     * Gets a graph from the cache as a query would, releasing it right away
+     */
+    private static TestGraph get(KNNIndexCache cache, String key) {
+        KNNGraph graph = cache.getIndex(key, SpaceType.L2);
+        assertNotNull(graph);
+        graph.release();
+        return (TestGraph) graph;
+    }
+}
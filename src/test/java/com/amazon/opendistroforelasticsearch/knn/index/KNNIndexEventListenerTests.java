@@ -0,0 +1,59 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import com.amazon.opendistroforelasticsearch.knn.index.graph.KNNTestGraphEngine.TestGraph;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexShardTestCase;
+
+public class KNNIndexEventListenerTests extends IndexShardTestCase {
+
+    public void testInvalidatesGraphsOfClosedShard() throws Exception {
+        KNNIndexCache cache = new KNNIndexCache();
+        KNNIndexEventListener listener = new KNNIndexEventListener(threadPool, cache);
+        IndexShard shard = newStartedShard();
+        TestGraph graph;
+        try {
+            String graphPath = KNNIndexCacheTests.writeGraph(shard.shardPath().resolveIndex(), "vector", 10);
+            graph = (TestGraph) cache.getIndex(graphPath, SpaceType.L2);
+            graph.release();
+            assertEquals(10L, (long) cache.getWeight());
+        } finally {
+            closeShards(shard);
+        }
+
+        listener.afterIndexShardClosed(shard.shardId(), shard, shard.indexSettings().getSettings());
+        assertTrue(graph.isFreed());
+        assertEquals(0L, (long) cache.getWeight());
+    }
+
+    public void testIgnoresShardThatWasNotCreated() throws Exception {
+        KNNIndexCache cache = new KNNIndexCache();
+        KNNIndexEventListener listener = new KNNIndexEventListener(threadPool, cache);
+        IndexShard shard = newStartedShard();
+        try {
+            TestGraph graph = (TestGraph) cache.getIndex(
+                    KNNIndexCacheTests.writeGraph(shard.shardPath().resolveIndex(), "vector", 10), SpaceType.L2);
+            graph.release();
+
+            listener.afterIndexShardClosed(shard.shardId(), null, shard.indexSettings().getSettings());
+            assertFalse(graph.isFreed());
+            assertEquals(10L, (long) cache.getWeight());
+        } finally {
+            closeShards(shard);
+        }
+    }
+}
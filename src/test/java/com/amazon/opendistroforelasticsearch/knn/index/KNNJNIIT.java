@@ -29,6 +29,7 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class KNNJNIIT extends ESIntegTestCase {
@@ -52,7 +53,7 @@ public class KNNJNIIT extends ESIntegTestCase {
                 AccessController.doPrivileged(
                 new PrivilegedAction<Void>() {
                     public Void run() {
-                        KNNIndex.saveIndex(docs, vectors, indexPath, algoParams);
+                        KNNIndex.saveIndex(docs, vectors, indexPath, algoParams, SpaceType.L2.getNmsSpace());
                         return null;
                     }
                 }
@@ -80,7 +81,7 @@ public class KNNJNIIT extends ESIntegTestCase {
         AccessController.doPrivileged(
                 new PrivilegedAction<Void>() {
                     public Void run() {
-                        KNNIndex.saveIndex(docs, vectors, indexPath, algoParams);
+                        KNNIndex.saveIndex(docs, vectors, indexPath, algoParams, SpaceType.L2.getNmsSpace());
                         return null;
                     }
                 }
@@ -118,6 +119,52 @@ public class KNNJNIIT extends ESIntegTestCase {
         dir.close();
     }
 
+    public void testQueryCosineHnswIndex() throws Exception {
+        int[] docs = {0, 1, 2};
+
+        float[][] vectors = {
+                {1.0f, 0.0f},
+                {10.0f, 10.0f},
+                {0.0f, -1.0f}
+        };
+
+        Directory dir = newFSDirectory(createTempDir());
+        String indexPath = Paths.get(((FSDirectory) (FilterDirectory.unwrap(dir))).getDirectory().toString(),
+                "_dummy_cosine.hnsw").toString();
+
+        String[] algoParams = {};
+        AccessController.doPrivileged(
+                new PrivilegedAction<Void>() {
+                    public Void run() {
+                        KNNIndex.saveIndex(docs, vectors, indexPath, algoParams, SpaceType.COSINESIMIL.getNmsSpace());
+                        return null;
+                    }
+                }
+        );
+
+        float[] queryVector = {1.0f, 1.0f};
+        String[] algoQueryParams = {"efSearch=20"};
+        KNNQueryResult[] results = AccessController.doPrivileged(
+                new PrivilegedAction<KNNQueryResult[]>() {
+                    public KNNQueryResult[] run() {
+                        KNNIndex index = KNNIndex.loadIndex(indexPath, SpaceType.COSINESIMIL);
+                        return index.queryIndex(queryVector, 3, algoQueryParams);
+                    }
+                }
+        );
+
+        Map<Integer, Float> scores = Arrays.stream(results).collect(
+                Collectors.toMap(result -> result.getId(), result -> result.getScore()));
+        assertEquals(3, results.length);
+        /*
+         * Cosine distances are 1 - cos: doc1 points the same way as the query despite its length
+         */
+        assertEquals(0.0, scores.get(1), 0.01);
+        assertEquals(1 - Math.sqrt(0.5), scores.get(0), 0.01);
+        assertEquals(1 + Math.sqrt(0.5), scores.get(2), 0.01);
+        dir.close();
+    }
+
     public void testAssertExceptionFromJni() throws Exception {
 
         Directory dir = newFSDirectory(createTempDir());
@@ -160,7 +207,7 @@ public class KNNJNIIT extends ESIntegTestCase {
         AccessController.doPrivileged(
                 new PrivilegedAction<Void>() {
                     public Void run() {
-                        KNNIndex.saveIndex(docs, vectors, indexPath, algoIndexParams);
+                        KNNIndex.saveIndex(docs, vectors, indexPath, algoIndexParams, SpaceType.L2.getNmsSpace());
                         return null;
                     }
                 }
@@ -198,6 +245,43 @@ public class KNNJNIIT extends ESIntegTestCase {
         dir.close();
     }
 
+    public void testReleaseFreesAfterLastReference() throws Exception {
+        int[] docs = {0, 1};
+        float[][] vectors = {
+                {1.0f, 2.0f},
+                {3.0f, 4.0f}
+        };
+
+        Directory dir = newFSDirectory(createTempDir());
+        String indexPath = getIndexPath(dir);
+        String[] algoParams = {};
+        AtomicInteger frees = new AtomicInteger();
+        AccessController.doPrivileged(
+                new PrivilegedAction<Void>() {
+                    public Void run() {
+                        KNNIndex.saveIndex(docs, vectors, indexPath, algoParams, SpaceType.L2.getNmsSpace());
+                        KNNIndex index = KNNIndex.loadIndex(indexPath);
+                        index.setFreeAction(() -> {
+                            frees.incrementAndGet();
+                            index.free();
+                        });
+
+                        assertTrue(index.acquire());
+                        // Owner reference released while a query still holds the graph
+                        index.release();
+                        assertEquals(0, frees.get());
+                        assertEquals(2, index.queryIndex(new float[] {1.0f, 2.0f}, 2, new String[] {"efSearch=20"}).length);
+
+                        index.release();
+                        assertEquals(1, frees.get());
+                        assertFalse(index.acquire());
+                        return null;
+                    }
+                }
+        );
+        dir.close();
+    }
+
     private String getIndexPath(Directory dir ) {
         String segmentName = "_dummy1";
         return Paths.get(((FSDirectory) (FilterDirectory.unwrap(dir))).getDirectory().toString(),
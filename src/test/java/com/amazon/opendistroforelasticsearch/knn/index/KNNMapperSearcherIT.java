@@ -15,6 +15,9 @@
 
 package com.amazon.opendistroforelasticsearch.knn.index;
 
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupAction;
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupRequest;
+import com.amazon.opendistroforelasticsearch.knn.plugin.transport.KNNWarmupResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
@@ -298,4 +301,61 @@ public class KNNMapperSearcherIT extends ESIntegTestCase {
         searchResponse = doQueryKnn(queryVector, k);
         ElasticsearchAssertions.assertHitCount(searchResponse, 4);
     }
+
+    public void testKNNResultsWithExactMethod() throws Exception {
+        createKnnIndex("testindex");
+        addTestData();
+
+        float[] queryVector = {2.0f, 2.0f}; // vector to be queried
+        int k = 3; //nearest 3 neighbors
+        KNNQueryBuilder knnQueryBuilder = new KNNQueryBuilder("my_vector", queryVector, k).exact(true);
+
+        SearchResponse searchResponse = searchKNNIndex("testindex", k, knnQueryBuilder);
+        List<String> expectedDocids = Arrays.asList("2", "4", "3");
+
+        List<String> actualDocids = new ArrayList<>();
+        for(SearchHit hit : searchResponse.getHits()) {
+            actualDocids.add(hit.getId());
+        }
+
+        assertEquals(actualDocids.size(), k);
+        assertArrayEquals(actualDocids.toArray(), expectedDocids.toArray());
+    }
+
+    public void testKNNResultsBelowGraphBuildThreshold() throws Exception {
+        createIndex("testindex", Settings.builder()
+                                         .put(indexSettings())
+                                         .put(KNNSettings.KNN_GRAPH_BUILD_THRESHOLD, 100)
+                                         .build());
+        PutMappingRequest request = new PutMappingRequest("testindex").type("_doc");
+        request.source("my_vector", "type=knn_vector,dimension=2");
+        ElasticsearchAssertions.assertAcked(client().admin().indices().putMapping(request).actionGet());
+        addTestData();
+
+        /**
+         * No graphs are built for the segments, so the query is answered by scoring all the vectors
+         */
+        float[] queryVector = {2.0f, 2.0f}; // vector to be queried
+        int k = 3; //nearest 3 neighbors
+        SearchResponse searchResponse = doQueryKnn(queryVector, k);
+        List<String> expectedDocids = Arrays.asList("2", "4", "3");
+
+        List<String> actualDocids = new ArrayList<>();
+        for(SearchHit hit : searchResponse.getHits()) {
+            actualDocids.add(hit.getId());
+        }
+        assertArrayEquals(actualDocids.toArray(), expectedDocids.toArray());
+    }
+
+    public void testWarmup() throws Exception {
+        createKnnIndex("testindex");
+        addTestData();
+        forceMergeKnnIndex("testindex");
+
+        KNNWarmupResponse warmupResponse = client().execute(KNNWarmupAction.INSTANCE,
+                new KNNWarmupRequest("testindex")).actionGet();
+        assertEquals(1, warmupResponse.getSuccessfulShards());
+        assertEquals(0, warmupResponse.getFailedShards());
+        assertEquals(1, warmupResponse.getGraphCount());
+    }
 }
@@ -15,11 +15,22 @@
 
 package com.amazon.opendistroforelasticsearch.knn.index;
 
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.search.SearchModule;
 import org.elasticsearch.test.ESTestCase;
 
+import static java.util.Collections.emptyList;
+
 public class KNNQueryBuilderTests extends ESTestCase {
 
     public void testInvalidK() {
@@ -84,4 +95,45 @@ public class KNNQueryBuilderTests extends ESTestCase {
         assertEquals(knnQueryBuilder.fieldName(), query.getField());
         assertEquals(knnQueryBuilder.vector(), query.getQueryVector());
     }
-}
\ No newline at end of file
+
+    public void testFromXcontentWithFilter() throws Exception {
+        float[] queryVector = {1.0f, 2.0f, 3.0f, 4.0f};
+        QueryBuilder filter = new TermQueryBuilder("color", "red");
+        KNNQueryBuilder knnQueryBuilder = new KNNQueryBuilder("myvector", queryVector, 1, filter);
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.startObject(knnQueryBuilder.fieldName());
+        builder.field(KNNQueryBuilder.VECTOR_FIELD.getPreferredName(), knnQueryBuilder.vector());
+        builder.field(KNNQueryBuilder.K_FIELD.getPreferredName(), knnQueryBuilder.getK());
+        builder.field(KNNQueryBuilder.FILTER_FIELD.getPreferredName(), filter);
+        builder.endObject();
+        builder.endObject();
+        XContentParser contentParser = createParser(builder);
+        contentParser.nextToken();
+        KNNQueryBuilder actualBuilder = KNNQueryBuilder.fromXContent(contentParser);
+        assertEquals(filter, actualBuilder.filter());
+    }
+
+    public void testSerialization() throws Exception {
+        float[] queryVector = {1.0f, 2.0f, 3.0f, 4.0f};
+        QueryBuilder filter = new TermQueryBuilder("color", "red");
+        KNNQueryBuilder knnQueryBuilder = new KNNQueryBuilder("myvector", queryVector, 1, filter).exact(true);
+        assertEquals(knnQueryBuilder, copy(knnQueryBuilder));
+    }
+
+    private static KNNQueryBuilder copy(KNNQueryBuilder knnQueryBuilder) throws Exception {
+        NamedWriteableRegistry registry = new NamedWriteableRegistry(
+                new SearchModule(Settings.EMPTY, false, emptyList()).getNamedWriteables());
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            knnQueryBuilder.writeTo(out);
+            try (StreamInput in = new NamedWriteableAwareStreamInput(out.bytes().streamInput(), registry)) {
+                return new KNNQueryBuilder(in);
+            }
+        }
+    }
+
+    @Override
+    protected NamedXContentRegistry xContentRegistry() {
+        return new NamedXContentRegistry(new SearchModule(Settings.EMPTY, false, emptyList()).getNamedXContents());
+    }
+}
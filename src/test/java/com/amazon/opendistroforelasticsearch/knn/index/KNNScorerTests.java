@@ -0,0 +1,58 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.test.ESTestCase;
+
+public class KNNScorerTests extends ESTestCase {
+
+    public void testIterateSortedResults() throws Exception {
+        int[] docs = {7, 2, 11, 5, 0};
+        float[] scores = {0.7f, 0.2f, 0.11f, 0.5f, 1.0f};
+        KNNScorer.sortByDoc(docs, scores, 4);
+        assertArrayEquals(new int[] {2, 5, 7, 11, 0}, docs);
+
+        KNNScorer scorer = new KNNScorer(weight(), docs, scores, 4, 1.0f);
+        DocIdSetIterator iterator = scorer.iterator();
+        assertEquals(-1, iterator.docID());
+        assertEquals(4, iterator.cost());
+
+        assertEquals(2, iterator.nextDoc());
+        assertEquals(0.2f, scorer.score(), 0.0f);
+        assertEquals(7, iterator.advance(6));
+        assertEquals(0.7f, scorer.score(), 0.0f);
+        assertEquals(11, iterator.advance(11));
+        assertEquals(0.11f, scorer.score(), 0.0f);
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, iterator.nextDoc());
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, iterator.advance(20));
+    }
+
+    public void testAdvancePastLastDoc() throws Exception {
+        int[] docs = {1, 3};
+        float[] scores = {0.5f, 0.25f};
+        KNNScorer scorer = new KNNScorer(weight(), docs, scores, 2, 1.0f);
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.iterator().advance(4));
+        assertEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.docID());
+    }
+
+    private static Weight weight() throws Exception {
+        return new MatchAllDocsQuery().createWeight(null, ScoreMode.COMPLETE, 1.0f);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index;
+
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Settings for unit tests, which run without the plugin and have no cluster settings to update
+ */
+public final class KNNTestSettings {
+
+    private KNNTestSettings() {}
+
+    /**
+     * Initializes the settings with a cluster holding the k-NN node settings and a client ignoring the settings
+     * updates, such as the circuit breaker being triggered by the graph cache
+     */
+    public static void initialize() {
+        ClusterSettings clusterSettings = new ClusterSettings(Settings.EMPTY,
+                KNNSettings.state().getSettings().stream().filter(Setting::hasNodeScope).collect(Collectors.toSet()));
+        ClusterService clusterService = mock(ClusterService.class);
+        when(clusterService.getClusterSettings()).thenReturn(clusterSettings);
+
+        ClusterAdminClient clusterAdminClient = mock(ClusterAdminClient.class);
+        AdminClient adminClient = mock(AdminClient.class);
+        when(adminClient.cluster()).thenReturn(clusterAdminClient);
+        Client client = mock(Client.class);
+        when(client.admin()).thenReturn(adminClient);
+
+        KNNSettings.state().initialize(client, clusterService);
+    }
+
+    /**
+     * Overrides the value of a setting, as a settings update would. A null value restores the default.
+     *
+     * @param key setting key
+     * @param value new value of the setting
+     */
+    public static void setSettingValue(String key, Object value) {
+        KNNSettings.state().setSettingValue(key, value);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class KNNDocValuesConsumerTests extends ESTestCase {
+
+    public void testWriteFooterInPlace() throws Exception {
+        Path directoryPath = createTempDir();
+        byte[] graph = randomByteArrayOfLength(randomIntBetween(1, 3 * 1024 * 1024));
+        Files.write(directoryPath.resolve("_0_1736_vector.hnsw"), graph);
+
+        KNNDocValuesConsumer.writeFooter(directoryPath.resolve("_0_1736_vector.hnsw"));
+
+        try (Directory directory = FSDirectory.open(directoryPath);
+             IndexInput input = directory.openInput("_0_1736_vector.hnsw", IOContext.DEFAULT)) {
+            assertEquals(graph.length + CodecUtil.footerLength(), input.length());
+            CodecUtil.checksumEntireFile(input);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexCache;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNIndexWarmer;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNTestSettings;
+import com.amazon.opendistroforelasticsearch.knn.index.KNNVectorFieldMapper;
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorField;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw.KNNHnswGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class KNNDocValuesProducerTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        threadPool = new TestThreadPool(getTestName(),
+                new FixedExecutorBuilder(Settings.EMPTY, KNNIndexCache.GC_THREAD_POOL, 1, 1000,
+                        "thread_pool." + KNNIndexCache.GC_THREAD_POOL),
+                new FixedExecutorBuilder(Settings.EMPTY, KNNIndexWarmer.WARMUP_THREAD_POOL, 1, -1,
+                        "thread_pool." + KNNIndexWarmer.WARMUP_THREAD_POOL));
+        KNNIndexCache.getInstance().setThreadPool(threadPool);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_PRELOAD_NEW_SEGMENTS, null);
+        KNNIndexCache.getInstance().setThreadPool(null);
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        super.tearDown();
+    }
+
+    public void testPreloadsGraphsOnOpenAndInvalidatesThemOnClose() throws Exception {
+        // Graphs are stored in <index uuid>/<shard id>/index/, the cache reports them by index uuid
+        String indexUuid = randomAlphaOfLength(10);
+        Path indexPath = createTempDir().resolve(indexUuid).resolve("0").resolve("index");
+
+        try (Directory directory = FSDirectory.open(indexPath)) {
+            writeSegment(directory);
+
+            KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_PRELOAD_NEW_SEGMENTS, true);
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                assertEquals(1, reader.leaves().size());
+                assertBusy(() -> assertEquals(2L, graphCount(indexUuid)));
+            }
+            assertEquals(0L, graphCount(indexUuid));
+        }
+    }
+
+    public void testKeepsGraphsUntilLastReaderOfSegmentCloses() throws Exception {
+        String indexUuid = randomAlphaOfLength(10);
+        Path indexPath = createTempDir().resolve(indexUuid).resolve("0").resolve("index");
+
+        try (Directory directory = FSDirectory.open(indexPath)) {
+            writeSegment(directory);
+
+            KNNTestSettings.setSettingValue(KNNSettings.KNN_CACHE_PRELOAD_NEW_SEGMENTS, true);
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                assertBusy(() -> assertEquals(2L, graphCount(indexUuid)));
+
+                // Another reader of the same segment, as CheckIndex or a frozen index opens, closes first
+                DirectoryReader.open(directory).close();
+                assertEquals(2L, graphCount(indexUuid));
+            }
+            assertEquals(0L, graphCount(indexUuid));
+        }
+    }
+
+    /**
+     * Writes a single segment with the graphs of two knn fields
+     */
+    private static void writeSegment(Directory directory) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig().setCodec(new KNNCodec()).setUseCompoundFile(false);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            // The name of the second field ends with the name of the first one
+            FieldType fieldType = knnFieldType();
+            for (int i = 0; i < 10; i++) {
+                Document document = new Document();
+                document.add(new VectorField("vector", new float[] {i, i}, fieldType));
+                document.add(new VectorField("my_vector", new float[] {i, -i}, fieldType));
+                writer.addDocument(document);
+            }
+            writer.commit();
+        }
+    }
+
+    private static FieldType knnFieldType() {
+        FieldType fieldType = new FieldType();
+        fieldType.setDocValuesType(DocValuesType.BINARY);
+        fieldType.putAttribute(KNNVectorFieldMapper.KNN_FIELD, "true");
+        fieldType.putAttribute(KNNConstants.SPACE_TYPE, SpaceType.L2.getValue());
+        fieldType.putAttribute(KNNConstants.ENGINE, KNNHnswGraphEngine.NAME);
+        fieldType.freeze();
+        return fieldType;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long graphCount(String indexUuid) {
+        Map<String, Object> stats = (Map<String, Object>) KNNIndexCache.getInstance().getIndicesStats().get(indexUuid);
+        return stats == null ? 0 : (long) stats.get("graph_count");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.elasticsearch.test.ESTestCase;
+
+public class KNNVectorQuantizerTests extends ESTestCase {
+
+    public void testHalfPrecision() {
+        float[] values = {0f, -0f, 1f, -2.5f, 0.000061035156f, 65504f, Float.POSITIVE_INFINITY};
+        for (float value : values) {
+            assertEquals(value, KNNVectorQuantizer.fromHalf(KNNVectorQuantizer.toHalf(value)), 0f);
+        }
+        assertEquals(Float.POSITIVE_INFINITY, KNNVectorQuantizer.fromHalf(KNNVectorQuantizer.toHalf(1e6f)), 0f);
+        assertTrue(Float.isNaN(KNNVectorQuantizer.fromHalf(KNNVectorQuantizer.toHalf(Float.NaN))));
+        // Subnormal halves
+        assertEquals(5.9604645e-8f, KNNVectorQuantizer.fromHalf(KNNVectorQuantizer.toHalf(5.9604645e-8f)), 0f);
+        assertEquals(0f, KNNVectorQuantizer.fromHalf(KNNVectorQuantizer.toHalf(1e-9f)), 0f);
+    }
+
+    public void testFp16RoundTrip() {
+        float[] vector = randomVector(16);
+        KNNVectorQuantizer quantizer = KNNVectorQuantizer.create(VectorEncoding.FP16, new float[16], new float[16]);
+        assertEquals(32, quantizer.bytesPerVector());
+        float[] decoded = roundTrip(quantizer, vector);
+        for (int i = 0; i < vector.length; i++) {
+            assertEquals(vector[i], decoded[i], Math.abs(vector[i]) / 1024 + 1e-7f);
+        }
+    }
+
+    public void testInt8RoundTrip() {
+        float[] min = {-1f, 0f, 5f};
+        float[] max = {1f, 10f, 5f};
+        KNNVectorQuantizer quantizer = KNNVectorQuantizer.create(VectorEncoding.INT8, min, max);
+        assertEquals(3, quantizer.bytesPerVector());
+        float[][] vectors = {{-1f, 0f, 5f}, {1f, 10f, 5f}, {0.3f, 7.7f, 5f}};
+        for (float[] vector : vectors) {
+            float[] decoded = roundTrip(quantizer, vector);
+            for (int i = 0; i < vector.length; i++) {
+                assertEquals(vector[i], decoded[i], (max[i] - min[i]) / 255 / 2 + 1e-6f);
+            }
+        }
+
+        // Values outside of the trained range are clamped
+        float[] decoded = roundTrip(quantizer, new float[] {2f, -3f, 6f});
+        assertArrayEquals(new float[] {1f, 0f, 5f}, decoded, 1e-6f);
+    }
+
+    public void testSerialization() throws Exception {
+        KNNVectorQuantizer quantizer = KNNVectorQuantizer.create(VectorEncoding.INT8, new float[] {-2f, 1f},
+                new float[] {2f, 3f});
+        byte[] buffer = new byte[64];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+        quantizer.write(out);
+        KNNVectorQuantizer read = KNNVectorQuantizer.read(new ByteArrayDataInput(buffer, 0, out.getPosition()));
+
+        assertEquals(VectorEncoding.INT8, read.getEncoding());
+        assertEquals(2, read.getDimension());
+        float[] vector = {0.5f, 2.2f};
+        assertArrayEquals(roundTrip(quantizer, vector), roundTrip(read, vector), 0f);
+    }
+
+    public void testFp32NotQuantized() {
+        expectThrows(IllegalArgumentException.class,
+                () -> KNNVectorQuantizer.create(VectorEncoding.FP32, new float[1], new float[1]));
+    }
+
+    private static float[] roundTrip(KNNVectorQuantizer quantizer, float[] vector) {
+        byte[] bytes = new byte[quantizer.bytesPerVector()];
+        quantizer.encode(vector, bytes);
+        float[] decoded = new float[vector.length];
+        quantizer.decode(bytes, decoded);
+        return decoded;
+    }
+
+    private static float[] randomVector(int dimension) {
+        float[] vector = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+            vector[i] = randomFloat() * 200 - 100;
+        }
+        return vector;
+    }
+}
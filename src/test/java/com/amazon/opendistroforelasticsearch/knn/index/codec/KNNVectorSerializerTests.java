@@ -0,0 +1,86 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.codec;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.FloatBuffer;
+
+public class KNNVectorSerializerTests extends ESTestCase {
+
+    public void testRawRoundTrip() {
+        float[] vector = {1.0f, -2.5f, 3.25f, Float.MAX_VALUE};
+        byte[] bytes = KNNVectorSerializer.serialize(vector);
+        assertEquals(1 + vector.length * Float.BYTES, bytes.length);
+        assertEquals(KNNVectorSerializer.RAW_FORMAT_MARKER, bytes[0]);
+
+        BytesRef bytesRef = new BytesRef(bytes);
+        assertFalse(KNNVectorSerializer.isLegacy(bytesRef));
+        assertEquals(vector.length, KNNVectorSerializer.dimension(bytesRef));
+        assertArrayEquals(vector, KNNVectorSerializer.deserialize(bytesRef), 0.0f);
+
+        float[] reused = new float[vector.length];
+        assertEquals(vector.length, KNNVectorSerializer.deserialize(bytesRef, reused));
+        assertArrayEquals(vector, reused, 0.0f);
+
+        FloatBuffer floatBuffer = KNNVectorSerializer.asFloatBuffer(bytesRef);
+        for (int i = 0; i < vector.length; i++) {
+            assertEquals(vector[i], floatBuffer.get(i), 0.0f);
+        }
+    }
+
+    public void testRawWithOffset() {
+        float[] vector = {7.0f, 8.0f};
+        byte[] encoded = KNNVectorSerializer.serialize(vector);
+        byte[] padded = new byte[encoded.length + 3];
+        System.arraycopy(encoded, 0, padded, 3, encoded.length);
+
+        BytesRef bytesRef = new BytesRef(padded, 3, encoded.length);
+        assertArrayEquals(vector, KNNVectorSerializer.deserialize(bytesRef), 0.0f);
+    }
+
+    public void testLegacyFormat() throws Exception {
+        float[] vector = {1.0f, 2.0f, 3.0f};
+        byte[] legacy;
+        try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+             ObjectOutputStream objectStream = new ObjectOutputStream(byteStream)) {
+            objectStream.writeObject(vector);
+            objectStream.flush();
+            legacy = byteStream.toByteArray();
+        }
+
+        BytesRef bytesRef = new BytesRef(legacy);
+        assertTrue(KNNVectorSerializer.isLegacy(bytesRef));
+        assertEquals(vector.length, KNNVectorSerializer.dimension(bytesRef));
+        assertArrayEquals(vector, KNNVectorSerializer.deserialize(bytesRef), 0.0f);
+
+        float[] reused = new float[vector.length];
+        assertEquals(vector.length, KNNVectorSerializer.deserialize(bytesRef, reused));
+        assertArrayEquals(vector, reused, 0.0f);
+
+        expectThrows(IllegalStateException.class, () -> KNNVectorSerializer.asFloatBuffer(bytesRef));
+    }
+
+    public void testUnknownFormat() {
+        byte[] bytes = KNNVectorSerializer.serialize(new float[] {1.0f, 2.0f});
+        bytes[0] = 7;
+        expectThrows(IllegalStateException.class, () -> KNNVectorSerializer.deserialize(new BytesRef(bytes)));
+        expectThrows(IllegalStateException.class, () -> KNNVectorSerializer.isLegacy(new BytesRef()));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw.KNNHnswGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.graph.ivfpq.KNNIVFPQGraphEngine;
+import com.amazon.opendistroforelasticsearch.knn.index.v1736.NmsLibGraphEngine;
+import org.elasticsearch.test.ESTestCase;
+
+public class KNNGraphEnginesTests extends ESTestCase {
+
+    public void testNmsLibRegistered() {
+        KNNGraphEngine engine = KNNGraphEngines.getLatest(NmsLibGraphEngine.NAME);
+        assertTrue(engine instanceof NmsLibGraphEngine);
+        assertSame(engine, KNNGraphEngines.getEngine(NmsLibGraphEngine.NAME, engine.getVersion()));
+    }
+
+    public void testGraphFileNameRoundTrip() {
+        KNNGraphEngine engine = KNNGraphEngines.getLatest(NmsLibGraphEngine.NAME);
+        String fileName = KNNGraphEngines.graphFileName("_1a", engine, "my_vector");
+        assertEquals("_1a_nmslib-" + engine.getVersion() + "_my_vector.hnsw", fileName);
+        assertSame(engine, KNNGraphEngines.getGraphEngine("/data/index/" + fileName));
+        assertSame(engine, KNNGraphEngines.getGraphEngine(fileName + "c"));
+    }
+
+    public void testLegacyFileNameIsNmsLib() {
+        KNNGraphEngine engine = KNNGraphEngines.getGraphEngine("_0_1736_vector.hnswc");
+        assertEquals(NmsLibGraphEngine.NAME, engine.getName());
+        assertEquals(1736, engine.getVersion());
+    }
+
+    public void testIsGraphFileMatchesWholeName() {
+        assertTrue(KNNGraphEngines.isGraphFile("_1a_nmslib-2_b.hnsw", "_1a", "b", ".hnsw"));
+        assertTrue(KNNGraphEngines.isGraphFile("_1a_1736_b.hnswc", "_1a", "b", ".hnswc"));
+        assertTrue(KNNGraphEngines.isGraphFile("_1a_javahnsw-1_a_b.hnsw", "_1a", "a_b", ".hnsw"));
+        assertFalse(KNNGraphEngines.isGraphFile("_1a_javahnsw-1_a_b.hnsw", "_1a", "b", ".hnsw"));
+        assertFalse(KNNGraphEngines.isGraphFile("_1a_1736_a_b.hnsw", "_1a", "b", ".hnsw"));
+        assertFalse(KNNGraphEngines.isGraphFile("_1a_nmslib-2_b.hnsw", "_1", "b", ".hnsw"));
+        assertFalse(KNNGraphEngines.isGraphFile("_1a_nmslib-2_b.hnsw", "_1a", "b", ".hnswc"));
+        assertFalse(KNNGraphEngines.isGraphFile("_1a_b.hnsw", "_1a", "b", ".hnsw"));
+    }
+
+    public void testEngineNameWithUnderscore() {
+        KNNGraphEngine engine = KNNGraphEngines.getLatest(KNNIVFPQGraphEngine.NAME);
+        String fileName = KNNGraphEngines.graphFileName("_1a", engine, "my_vector");
+        assertSame(engine, KNNGraphEngines.getGraphEngine(fileName));
+        assertTrue(KNNGraphEngines.isGraphFile(fileName, "_1a", "my_vector", ".hnsw"));
+        assertFalse(KNNGraphEngines.isGraphFile(fileName, "_1a", "vector", ".hnsw"));
+    }
+
+    public void testParse() {
+        assertSame(KNNGraphEngines.getLatest(NmsLibGraphEngine.NAME), KNNGraphEngines.parse(null));
+        assertSame(KNNGraphEngines.getLatest(KNNIVFPQGraphEngine.NAME), KNNGraphEngines.parse("IVF_PQ"));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> KNNGraphEngines.parse("faiss"));
+        assertTrue(e.getMessage().contains(KNNHnswGraphEngine.NAME));
+    }
+
+    public void testUnknownEngine() {
+        expectThrows(IllegalStateException.class, () -> KNNGraphEngines.getGraphEngine("_0_unknown-1_vector.hnsw"));
+        expectThrows(IllegalStateException.class, () -> KNNGraphEngines.getGraphEngine("_0_nmslib-1_vector.hnsw"));
+        expectThrows(IllegalArgumentException.class, () -> KNNGraphEngines.getGraphEngine("_0.hnsw"));
+    }
+}
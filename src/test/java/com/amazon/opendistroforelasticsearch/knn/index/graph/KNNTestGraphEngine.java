@@ -0,0 +1,158 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Graph engine for testing the graph cache. Its graphs hold no data: a graph weighs one KB per byte of its file,
+ * so that tests size graphs with small files, and loads can be held up to interleave them with other cache
+ * operations.
+ */
+public class KNNTestGraphEngine implements KNNGraphEngine {
+
+    public static final String NAME = "test";
+
+    private static final AtomicInteger loadCount = new AtomicInteger();
+    private static volatile CountDownLatch loadStarted = new CountDownLatch(0);
+    private static volatile CountDownLatch loadReleased = new CountDownLatch(0);
+    private static volatile long loadMillis;
+
+    /**
+     * Makes the next loads wait for {@link #releaseLoads()}
+     *
+     * @return latch counted down as soon as a load starts
+     */
+    public static CountDownLatch holdLoads() {
+        loadStarted = new CountDownLatch(1);
+        loadReleased = new CountDownLatch(1);
+        return loadStarted;
+    }
+
+    public static void releaseLoads() {
+        loadReleased.countDown();
+    }
+
+    /**
+     * Makes loads take at least the given time, for the admission policy to weigh graphs by their load time
+     *
+     * @param millis time a load takes
+     */
+    public static void setLoadMillis(long millis) {
+        loadMillis = millis;
+    }
+
+    /**
+     * @return number of graphs loaded since the last {@link #reset()}
+     */
+    public static int getLoadCount() {
+        return loadCount.get();
+    }
+
+    public static void reset() {
+        releaseLoads();
+        loadCount.set(0);
+        loadMillis = 0;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public boolean supports(SpaceType spaceType) {
+        return true;
+    }
+
+    @Override
+    public int build(BinaryDocValuesSupplier values, SpaceType spaceType, Map<String, String> fieldAttributes,
+                     String path) {
+        throw new UnsupportedOperationException("Test graphs are written by the tests");
+    }
+
+    @Override
+    public KNNGraph load(String path, SpaceType spaceType) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new IOException("Graph file " + path + " does not exist");
+        }
+        loadCount.incrementAndGet();
+        loadStarted.countDown();
+        try {
+            if (!loadReleased.await(30, TimeUnit.SECONDS)) {
+                throw new IOException("Load of " + path + " was never released");
+            }
+            Thread.sleep(loadMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        return new TestGraph(file.length());
+    }
+
+    @Override
+    public long estimateMemorySize(String path) {
+        return new File(path).length();
+    }
+
+    /**
+     * A graph that records whether it was freed
+     */
+    public static class TestGraph extends KNNGraph {
+        private final long memorySize;
+        private volatile boolean freed;
+
+        TestGraph(long memorySize) {
+            this.memorySize = memorySize;
+        }
+
+        @Override
+        public int search(float[] query, int k, Map<String, String> fieldAttributes, long[] filter, int[] ids,
+                          float[] distances) {
+            return 0;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return memorySize;
+        }
+
+        @Override
+        public void free() {
+            if (freed) {
+                throw new IllegalStateException("Graph freed twice");
+            }
+            freed = true;
+        }
+
+        public boolean isFreed() {
+            return freed;
+        }
+    }
+}
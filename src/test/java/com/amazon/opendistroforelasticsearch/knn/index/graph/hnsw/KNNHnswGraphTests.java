@@ -0,0 +1,275 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.hnsw;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.VectorEncoding;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+
+public class KNNHnswGraphTests extends ESTestCase {
+
+    private static final int DIMENSION = 8;
+    private static final int DOCS = 300;
+
+    public void testSearchMatchesExactSearch() throws Exception {
+        for (SpaceType spaceType : new SpaceType[] {SpaceType.L2, SpaceType.L1, SpaceType.COSINESIMIL}) {
+            float[][] vectors = randomVectors();
+            KNNHnswGraph graph = buildGraph(spaceType, vectors);
+            try {
+                float[] query = vectors[randomInt(DOCS - 1)];
+                int k = 10;
+                int[] ids = new int[k];
+                float[] distances = new float[k];
+                // An ef as large as the graph visits every node reachable from the entry point
+                Map<String, String> attributes = Collections.singletonMap(KNNConstants.HNSW_ALGO_EF_SEARCH,
+                        String.valueOf(DOCS));
+                assertEquals(k, graph.search(query, k, attributes, null, ids, distances));
+                assertResults(spaceType, vectors, query, null, k, ids, distances);
+            } finally {
+                graph.release();
+            }
+        }
+    }
+
+    public void testFilter() throws Exception {
+        float[][] vectors = randomVectors();
+        KNNHnswGraph graph = buildGraph(SpaceType.L2, vectors);
+        try {
+            FixedBitSet filter = new FixedBitSet(DOCS);
+            for (int doc = 0; doc < DOCS; doc += 3) {
+                filter.set(doc);
+            }
+            float[] query = vectors[1];
+            int k = 5;
+            int[] ids = new int[k];
+            float[] distances = new float[k];
+            Map<String, String> attributes = Collections.singletonMap(KNNConstants.HNSW_ALGO_EF_SEARCH,
+                    String.valueOf(DOCS));
+            assertEquals(k, graph.search(query, k, attributes, filter.getBits(), ids, distances));
+            for (int i = 0; i < k; i++) {
+                assertTrue(filter.get(ids[i]));
+            }
+            assertResults(SpaceType.L2, vectors, query, filter, k, ids, distances);
+        } finally {
+            graph.release();
+        }
+    }
+
+    public void testSeedFromMergedGraph() throws Exception {
+        float[][] vectors = randomVectors();
+        // The first segment holds the last 200 docs of the merged segment, the second one the first 100
+        int offset = 100;
+        KNNHnswGraphBuilder segmentBuilder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64);
+        for (int doc = 0; doc < DOCS - offset; doc++) {
+            segmentBuilder.add(doc, vectors[doc + offset]);
+        }
+        String segmentPath = createTempDir().resolve("_0_javahnsw-1_vector.hnsw").toString();
+        segmentBuilder.write(segmentPath);
+
+        BitSet seededDocs = new BitSet();
+        assertFalse(new KNNHnswGraphBuilder(SpaceType.L2, 16, 64).seed(segmentPath, doc -> doc + offset, seededDocs));
+        // A graph that would be more than a quarter routing nodes is rebuilt
+        KNNHnswGraphBuilder droppingBuilder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64);
+        assertFalse(droppingBuilder.seed(segmentPath, doc -> doc % 3 == 0 ? -1 : doc + offset, seededDocs));
+        assertEquals(0, droppingBuilder.size());
+        assertTrue(seededDocs.isEmpty());
+
+        KNNHnswGraphBuilder builder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64);
+        assertTrue(builder.seed(segmentPath, doc -> doc + offset, seededDocs));
+        assertEquals(DOCS - offset, seededDocs.cardinality());
+        assertEquals(offset, seededDocs.nextSetBit(0));
+        for (int doc = 0; doc < DOCS; doc++) {
+            if (!seededDocs.get(doc)) {
+                builder.add(doc, vectors[doc]);
+            }
+        }
+        assertEquals(DOCS, builder.size());
+        String path = createTempDir().resolve("_1_javahnsw-1_vector.hnsw").toString();
+        builder.write(path);
+
+        KNNHnswGraph graph = KNNHnswGraph.open(path, SpaceType.L2);
+        try {
+            float[] query = vectors[randomInt(DOCS - 1)];
+            int k = 10;
+            int[] ids = new int[k];
+            float[] distances = new float[k];
+            Map<String, String> attributes = Collections.singletonMap(KNNConstants.HNSW_ALGO_EF_SEARCH,
+                    String.valueOf(DOCS));
+            assertEquals(k, graph.search(query, k, attributes, null, ids, distances));
+            assertResults(SpaceType.L2, vectors, query, null, k, ids, distances);
+        } finally {
+            graph.release();
+        }
+    }
+
+    public void testSeedWithDeletes() throws Exception {
+        float[][] vectors = randomVectors();
+        // The first segment holds the last 200 docs, one in ten of which are deleted, the second one the first 100
+        int offset = 100;
+        KNNHnswGraphBuilder segmentBuilder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64);
+        for (int doc = 0; doc < DOCS - offset; doc++) {
+            segmentBuilder.add(doc, vectors[doc + offset]);
+        }
+        String segmentPath = createTempDir().resolve("_0_javahnsw-1_vector.hnsw").toString();
+        segmentBuilder.write(segmentPath);
+
+        int[] docMap = new int[DOCS - offset];
+        float[][] mergedVectors = Arrays.copyOf(vectors, DOCS);
+        int mergedDocs = offset;
+        for (int doc = 0; doc < DOCS - offset; doc++) {
+            if (doc % 10 == 0) {
+                docMap[doc] = -1;
+            } else {
+                docMap[doc] = mergedDocs;
+                mergedVectors[mergedDocs++] = vectors[doc + offset];
+            }
+        }
+        mergedVectors = Arrays.copyOf(mergedVectors, mergedDocs);
+
+        // The nodes of the deleted docs stay in the graph to route searches
+        BitSet seededDocs = new BitSet();
+        KNNHnswGraphBuilder builder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64);
+        assertTrue(builder.seed(segmentPath, doc -> docMap[doc], seededDocs));
+        assertEquals(mergedDocs - offset, seededDocs.cardinality());
+        for (int doc = 0; doc < mergedDocs; doc++) {
+            if (!seededDocs.get(doc)) {
+                builder.add(doc, mergedVectors[doc]);
+            }
+        }
+        assertEquals(DOCS, builder.size());
+        String path = createTempDir().resolve("_1_javahnsw-1_vector.hnsw").toString();
+        builder.write(path);
+
+        // They are never returned, with or without a filter
+        KNNHnswGraph graph = KNNHnswGraph.open(path, SpaceType.L2);
+        try {
+            float[] query = vectors[offset + 10 * randomInt(DOCS / 10 - offset / 10 - 1)];
+            int k = 10;
+            int[] ids = new int[k];
+            float[] distances = new float[k];
+            Map<String, String> attributes = Collections.singletonMap(KNNConstants.HNSW_ALGO_EF_SEARCH,
+                    String.valueOf(DOCS));
+            assertEquals(k, graph.search(query, k, attributes, null, ids, distances));
+            assertResults(SpaceType.L2, mergedVectors, query, null, k, ids, distances);
+
+            FixedBitSet filter = new FixedBitSet(mergedDocs);
+            for (int doc = 0; doc < mergedDocs; doc += 2) {
+                filter.set(doc);
+            }
+            assertEquals(k, graph.search(query, k, attributes, filter.getBits(), ids, distances));
+            assertResults(SpaceType.L2, mergedVectors, query, filter, k, ids, distances);
+        } finally {
+            graph.release();
+        }
+
+        // A graph with routing nodes seeds the next merge in turn, keeping them
+        BitSet reseededDocs = new BitSet();
+        KNNHnswGraphBuilder reseededBuilder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64);
+        assertTrue(reseededBuilder.seed(path, doc -> doc, reseededDocs));
+        assertEquals(mergedDocs, reseededDocs.cardinality());
+        assertEquals(DOCS, reseededBuilder.size());
+    }
+
+    public void testQuantizedVectors() throws Exception {
+        float[][] vectors = randomVectors();
+        KNNHnswGraph fullPrecisionGraph = buildGraph(SpaceType.L2, vectors);
+        long fullPrecisionMemorySize = fullPrecisionGraph.getMemorySize();
+        fullPrecisionGraph.release();
+
+        for (VectorEncoding encoding : new VectorEncoding[] {VectorEncoding.FP16, VectorEncoding.INT8}) {
+            KNNHnswGraphBuilder builder = new KNNHnswGraphBuilder(SpaceType.L2, 8, 64, encoding);
+            for (int doc = 0; doc < DOCS; doc++) {
+                builder.add(doc, vectors[doc]);
+            }
+            String path = createTempDir().resolve("_0_javahnsw-1_vector.hnsw").toString();
+            builder.write(path);
+            // The decoded vectors would be quantized again
+            assertFalse(new KNNHnswGraphBuilder(SpaceType.L2, 8, 64, encoding).seed(path, doc -> doc, new BitSet()));
+
+            KNNHnswGraph graph = KNNHnswGraph.open(path, SpaceType.L2);
+            try {
+                assertTrue(graph.getMemorySize() < fullPrecisionMemorySize);
+                int queryDoc = randomInt(DOCS - 1);
+                int k = 10;
+                int[] ids = new int[k];
+                float[] distances = new float[k];
+                Map<String, String> attributes = Collections.singletonMap(KNNConstants.HNSW_ALGO_EF_SEARCH,
+                        String.valueOf(DOCS));
+                assertEquals(k, graph.search(vectors[queryDoc], k, attributes, null, ids, distances));
+                boolean foundQueryDoc = false;
+                for (int i = 0; i < k; i++) {
+                    // Distances to the decoded vectors, up to the quantization error
+                    assertEquals(SpaceType.L2.distance(vectors[queryDoc], vectors[ids[i]]), distances[i], 0.05f);
+                    foundQueryDoc |= ids[i] == queryDoc;
+                }
+                assertTrue(foundQueryDoc);
+            } finally {
+                graph.release();
+            }
+        }
+    }
+
+    private float[][] randomVectors() {
+        float[][] vectors = new float[DOCS][DIMENSION];
+        for (int i = 0; i < DOCS; i++) {
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = randomFloat();
+            }
+        }
+        return vectors;
+    }
+
+    private KNNHnswGraph buildGraph(SpaceType spaceType, float[][] vectors) throws Exception {
+        KNNHnswGraphBuilder builder = new KNNHnswGraphBuilder(spaceType, 8, 64);
+        for (int doc = 0; doc < vectors.length; doc++) {
+            builder.add(doc, vectors[doc]);
+        }
+        String path = createTempDir().resolve("_0_javahnsw-1_vector.hnsw").toString();
+        builder.write(path);
+        return KNNHnswGraph.open(path, spaceType);
+    }
+
+    /**
+     * Checks that the results are the k nearest accepted docs, allowing for ties in the distances
+     */
+    private static void assertResults(SpaceType spaceType, float[][] vectors, float[] query, FixedBitSet filter, int k,
+                                      int[] ids, float[] distances) {
+        float[] expected = new float[filter == null ? vectors.length : filter.cardinality()];
+        int count = 0;
+        for (int doc = 0; doc < vectors.length; doc++) {
+            if (filter == null || filter.get(doc)) {
+                expected[count++] = spaceType.distance(query, vectors[doc]);
+            }
+        }
+        Arrays.sort(expected);
+        float[] actual = new float[k];
+        for (int i = 0; i < k; i++) {
+            assertEquals(spaceType.distance(query, vectors[ids[i]]), distances[i], 1e-5f);
+            actual[i] = distances[i];
+        }
+        Arrays.sort(actual);
+        for (int i = 0; i < k; i++) {
+            assertEquals(expected[i], actual[i], 1e-5f);
+        }
+    }
+}
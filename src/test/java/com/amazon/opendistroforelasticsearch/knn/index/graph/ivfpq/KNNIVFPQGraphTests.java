@@ -0,0 +1,136 @@
+/*
+ *   Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License").
+ *   You may not use this file except in compliance with the License.
+ *   A copy of the License is located at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   or in the "license" file accompanying this file. This file is distributed
+ *   on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ *   express or implied. See the License for the specific language governing
+ *   permissions and limitations under the License.
+ */
+
+package com.amazon.opendistroforelasticsearch.knn.index.graph.ivfpq;
+
+import com.amazon.opendistroforelasticsearch.knn.index.SpaceType;
+import com.amazon.opendistroforelasticsearch.knn.index.codec.KNNVectorSerializer;
+import com.amazon.opendistroforelasticsearch.knn.index.util.KNNConstants;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class KNNIVFPQGraphTests extends ESTestCase {
+
+    private static final int DIMENSION = 8;
+    private static final int DOCS = 200;
+
+    public void testSearch() throws Exception {
+        float[][] vectors = new float[DOCS][DIMENSION];
+        for (int i = 0; i < DOCS; i++) {
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = randomFloat();
+            }
+        }
+        String path = createTempDir().resolve("_0_ivf_pq-1_vector.hnsw").toString();
+        assertEquals(DOCS, KNNIVFPQGraph.write(() -> new VectorValues(vectors), 4, 4, path));
+
+        KNNIVFPQGraph graph = KNNIVFPQGraph.open(path, SpaceType.L2);
+        try {
+            assertEquals(DOCS, graph.size());
+            assertEquals(4, graph.subspaces());
+            assertEquals(4, graph.lists());
+            int listSizes = 0;
+            for (int list = 0; list < graph.lists(); list++) {
+                listSizes += graph.listSize(list);
+            }
+            assertEquals(DOCS, listSizes);
+
+            // Scanning every list returns every doc once. The codebooks have as many codewords as there are
+            // vectors, so the codes are exact.
+            Map<String, String> attributes = Collections.singletonMap(KNNConstants.IVF_NPROBE, "4");
+            float[] query = vectors[randomInt(DOCS - 1)];
+            int[] ids = new int[DOCS];
+            float[] distances = new float[DOCS];
+            assertEquals(DOCS, graph.search(query, DOCS, attributes, null, ids, distances));
+            Set<Integer> docs = new HashSet<>();
+            for (int i = 0; i < DOCS; i++) {
+                assertTrue(docs.add(ids[i]));
+                assertEquals(SpaceType.L2.distance(query, vectors[ids[i]]), distances[i], 1e-4f);
+            }
+
+            // Docs that are not accepted are never returned
+            FixedBitSet filter = new FixedBitSet(DOCS);
+            for (int doc = 0; doc < DOCS; doc += 3) {
+                filter.set(doc);
+            }
+            int k = 5;
+            assertEquals(k, graph.search(query, k, attributes, filter.getBits(), ids, distances));
+            for (int i = 0; i < k; i++) {
+                assertTrue(filter.get(ids[i]));
+            }
+        } finally {
+            graph.release();
+        }
+    }
+
+    public void testNoVectors() throws Exception {
+        Path path = createTempDir().resolve("_0_ivf_pq-1_vector.hnsw");
+        assertEquals(0, KNNIVFPQGraph.write(() -> new VectorValues(new float[0][]), 4, 4, path.toString()));
+        assertFalse(Files.exists(path));
+    }
+
+    /**
+     * Doc values holding a vector for every doc
+     */
+    private static class VectorValues extends BinaryDocValues {
+        private final float[][] vectors;
+        private int doc = -1;
+
+        VectorValues(float[][] vectors) {
+            this.vectors = vectors;
+        }
+
+        @Override
+        public BytesRef binaryValue() {
+            return new BytesRef(KNNVectorSerializer.serialize(vectors[doc]));
+        }
+
+        @Override
+        public boolean advanceExact(int target) {
+            doc = target;
+            return target < vectors.length;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) {
+            doc = target < vectors.length ? target : NO_MORE_DOCS;
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return vectors.length;
+        }
+    }
+}
@@ -79,6 +79,18 @@ public class RestKNNStatsHandlerIT extends ESRestTestCase {
                     new KNNCacheSupplier<>(KNNIndexCache::getWeight)))
             .put(StatNames.CACHE_CAPACITY_REACHED.getName(), new KNNStat<>(false,
                     new KNNCacheSupplier<>(KNNIndexCache::isCacheCapacityReached)))
+            .put(StatNames.PENDING_FREE_COUNT.getName(), new KNNStat<>(false,
+                    new KNNCacheSupplier<>(KNNIndexCache::getPendingFreeCount)))
+            .put(StatNames.PENDING_FREE_MEMORY.getName(), new KNNStat<>(false,
+                    new KNNCacheSupplier<>(KNNIndexCache::getPendingFreeWeight)))
+            .put(StatNames.FREE_COUNT.getName(), new KNNStat<>(false,
+                    new KNNCacheSupplier<>(KNNIndexCache::getFreeCount)))
+            .put(StatNames.TOTAL_FREE_TIME.getName(), new KNNStat<>(false,
+                    new KNNCacheSupplier<>(KNNIndexCache::getTotalFreeTime)))
+            .put(StatNames.ADMISSION_REJECTED_COUNT.getName(), new KNNStat<>(false,
+                    new KNNCacheSupplier<>(KNNIndexCache::getRejectionCount)))
+            .put(StatNames.INDICES_IN_CACHE.getName(), new KNNStat<>(false,
+                    new KNNCacheSupplier<>(KNNIndexCache::getIndicesStats)))
             .put(StatNames.CIRCUIT_BREAKER_TRIGGERED.getName(), new KNNStat<>(true,
                     new KNNCircuitBreakerSupplier())).build();
 